@@ -0,0 +1,100 @@
+package org.ecsoya.fabric.client;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of a {@link BatchSubmitter} run, with per-item results in
+ * submission order and aggregate counts.
+ */
+public class BatchResult {
+
+	private final List<Item> items;
+	private final long elapsedNanos;
+	private final int succeeded;
+
+	BatchResult(List<Item> items, long elapsedNanos) {
+		this.items = Collections.unmodifiableList(items);
+		this.elapsedNanos = elapsedNanos;
+		int count = 0;
+		for (Item item : items) {
+			if (item.isSuccess()) {
+				count++;
+			}
+		}
+		this.succeeded = count;
+	}
+
+	public List<Item> getItems() {
+		return items;
+	}
+
+	public int getSubmitted() {
+		return items.size();
+	}
+
+	/**
+	 * Returns the number of transactions committed as valid.
+	 */
+	public int getSucceeded() {
+		return succeeded;
+	}
+
+	/**
+	 * Returns the number of transactions that failed to endorse, order or
+	 * commit, or that were committed as invalid.
+	 */
+	public int getFailed() {
+		return items.size() - succeeded;
+	}
+
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+	}
+
+	/**
+	 * Returns the number of committed transactions per second.
+	 */
+	public double getThroughput() {
+		if (elapsedNanos <= 0) {
+			return 0;
+		}
+		return succeeded * 1e9 / elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("submitted=%d, succeeded=%d, failed=%d, elapsed=%dms, throughput=%.1f tx/s",
+				getSubmitted(), getSucceeded(), getFailed(), getElapsedMillis(), getThroughput());
+	}
+
+	public static class Item {
+
+		private final int index;
+		private final TransactionResult result;
+		private final Throwable error;
+
+		Item(int index, TransactionResult result, Throwable error) {
+			this.index = index;
+			this.result = result;
+			this.error = error;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public TransactionResult getResult() {
+			return result;
+		}
+
+		public Throwable getError() {
+			return error;
+		}
+
+		public boolean isSuccess() {
+			return error == null && result != null && result.isValid();
+		}
+	}
+}
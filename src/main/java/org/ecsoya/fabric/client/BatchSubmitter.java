@@ -0,0 +1,150 @@
+package org.ecsoya.fabric.client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.hyperledger.fabric.sdk.TransactionProposalRequest;
+
+/**
+ * Submits a stream of transactions through a {@link ChannelClient}, keeping a
+ * bounded number of proposals and broadcasts in flight at the same time.
+ *
+ * <pre>
+ * BatchResult result = new BatchSubmitter(channelClient).maxProposalsInFlight(64).maxBroadcastsInFlight(128)
+ * 		.submit(requests);
+ * </pre>
+ */
+public class BatchSubmitter {
+
+	private static final Logger logger = Logger.getLogger(BatchSubmitter.class.getName());
+
+	private final ChannelClient channelClient;
+
+	private int maxProposalsInFlight = 32;
+	private int maxBroadcastsInFlight = 64;
+
+	public BatchSubmitter(ChannelClient channelClient) {
+		if (channelClient == null) {
+			throw new IllegalArgumentException("Channel client can't be empty.");
+		}
+		this.channelClient = channelClient;
+	}
+
+	/**
+	 * Maximum number of transactions waiting for endorsement at the same time.
+	 */
+	public BatchSubmitter maxProposalsInFlight(int maxProposalsInFlight) {
+		if (maxProposalsInFlight <= 0) {
+			throw new IllegalArgumentException("maxProposalsInFlight should be positive.");
+		}
+		this.maxProposalsInFlight = maxProposalsInFlight;
+		return this;
+	}
+
+	/**
+	 * Maximum number of endorsed transactions sent to the orderer and not yet
+	 * committed at the same time.
+	 */
+	public BatchSubmitter maxBroadcastsInFlight(int maxBroadcastsInFlight) {
+		if (maxBroadcastsInFlight <= 0) {
+			throw new IllegalArgumentException("maxBroadcastsInFlight should be positive.");
+		}
+		this.maxBroadcastsInFlight = maxBroadcastsInFlight;
+		return this;
+	}
+
+	public BatchResult submit(Stream<TransactionProposalRequest> requests) throws InterruptedException {
+		return submit(requests.iterator());
+	}
+
+	public BatchResult submit(Iterable<TransactionProposalRequest> requests) throws InterruptedException {
+		return submit(requests.iterator());
+	}
+
+	/**
+	 * Submit all requests and wait until every transaction has either committed
+	 * or failed. Results are returned in submission order.
+	 *
+	 * @param requests
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public BatchResult submit(Iterator<TransactionProposalRequest> requests) throws InterruptedException {
+		Semaphore proposals = new Semaphore(maxProposalsInFlight);
+		AsyncPermits broadcasts = new AsyncPermits(maxBroadcastsInFlight);
+		List<CompletableFuture<TransactionResult>> futures = new ArrayList<>();
+		long start = System.nanoTime();
+
+		while (requests.hasNext()) {
+			TransactionProposalRequest request = requests.next();
+			proposals.acquire();
+			// The proposal permit is held until a broadcast permit is granted, so a
+			// full orderer pipeline stops this loop instead of piling up endorsed
+			// transactions, and no completion thread ever waits for a permit
+			CompletableFuture<TransactionResult> future = channelClient.endorseAsync(request)
+					.thenCompose(responses -> broadcasts.acquire().thenApply(granted -> responses))
+					.whenComplete((responses, ex) -> proposals.release())
+					.thenCompose(responses -> channelClient.sendTransactionAsync(responses)
+							.whenComplete((result, ex) -> broadcasts.release()));
+			futures.add(future);
+		}
+
+		List<BatchResult.Item> items = new ArrayList<>(futures.size());
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				items.add(new BatchResult.Item(i, futures.get(i).join(), null));
+			} catch (CompletionException e) {
+				items.add(new BatchResult.Item(i, null, ChannelClient.unwrap(e)));
+			}
+		}
+		BatchResult result = new BatchResult(items, System.nanoTime() - start);
+		logger.log(Level.INFO, "Batch on channel " + channelClient.getName() + " finished: " + result);
+		return result;
+	}
+
+	/**
+	 * Permits granted by completing a future instead of blocking the caller.
+	 */
+	private static final class AsyncPermits {
+
+		private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+		private int available;
+
+		AsyncPermits(int permits) {
+			this.available = permits;
+		}
+
+		CompletableFuture<Void> acquire() {
+			synchronized (this) {
+				if (available > 0) {
+					available--;
+					return CompletableFuture.completedFuture(null);
+				}
+				CompletableFuture<Void> waiter = new CompletableFuture<>();
+				waiters.addLast(waiter);
+				return waiter;
+			}
+		}
+
+		void release() {
+			CompletableFuture<Void> waiter;
+			synchronized (this) {
+				waiter = waiters.pollFirst();
+				if (waiter == null) {
+					available++;
+					return;
+				}
+			}
+			// Hand the permit over outside the lock, the waiter's stages run here
+			waiter.complete(null);
+		}
+	}
+}
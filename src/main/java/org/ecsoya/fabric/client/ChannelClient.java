@@ -18,22 +18,78 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.ecsoya.fabric.client.ProposalSender.PreparedProposal;
+import org.ecsoya.fabric.client.endorser.EndorsementCollector;
+import org.ecsoya.fabric.client.endorser.EndorsementPolicyEvaluator;
+import org.ecsoya.fabric.client.endorser.EndorserSelector;
+import org.ecsoya.fabric.client.endorser.EndorserSelectors;
+import org.ecsoya.fabric.client.endorser.HedgePolicy;
+import org.ecsoya.fabric.client.event.BlockEventDispatcher;
+import org.ecsoya.fabric.client.event.BlockEventMode;
+import org.ecsoya.fabric.client.event.BlockStream;
+import org.ecsoya.fabric.client.event.ChaincodeEventSubscription;
+import org.ecsoya.fabric.client.event.CommitRegistry;
+import org.ecsoya.fabric.client.ledger.BlockBackfill;
+import org.ecsoya.fabric.client.ledger.StateMirror;
+import org.ecsoya.fabric.client.ledger.TransactionIndex;
+import org.ecsoya.fabric.client.ledger.TransactionStatus;
+import org.ecsoya.fabric.client.limit.AdmissionController;
+import org.ecsoya.fabric.client.query.CachePolicy;
+import org.ecsoya.fabric.client.query.QueryCache;
+import org.ecsoya.fabric.client.query.QueryCoalescer;
+import org.ecsoya.fabric.client.query.QueryKey;
+import org.ecsoya.fabric.client.node.CircuitBreaker;
+import org.ecsoya.fabric.client.node.LedgerHeightTracker;
+import org.ecsoya.fabric.client.node.NodeErrors;
+import org.ecsoya.fabric.client.node.NodeStats;
+import org.ecsoya.fabric.client.node.NodeStatsRegistry;
+import org.ecsoya.fabric.client.node.OrdererRouter;
+import org.ecsoya.fabric.network.FabricNetwork;
+import org.ecsoya.fabric.network.FabricOrgInfo;
+import org.ecsoya.fabric.util.LruCache;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse;
+import org.hyperledger.fabric.protos.peer.FabricTransaction.ProcessedTransaction;
 import org.hyperledger.fabric.sdk.BlockEvent.TransactionEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.BlockInfo.EnvelopeInfo;
 import org.hyperledger.fabric.sdk.ChaincodeEndorsementPolicy;
 import org.hyperledger.fabric.sdk.ChaincodeID;
+import org.hyperledger.fabric.sdk.ChaincodeResponse;
 import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.Channel.PeerOptions;
 import org.hyperledger.fabric.sdk.InstantiateProposalRequest;
+import org.hyperledger.fabric.sdk.Orderer;
 import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.Peer.PeerRole;
 import org.hyperledger.fabric.sdk.ProposalResponse;
 import org.hyperledger.fabric.sdk.QueryByChaincodeRequest;
 import org.hyperledger.fabric.sdk.TransactionInfo;
 import org.hyperledger.fabric.sdk.TransactionProposalRequest;
+import org.hyperledger.fabric.sdk.TransactionRequest;
 import org.hyperledger.fabric.sdk.TransactionRequest.Type;
 import org.hyperledger.fabric.sdk.UpgradeProposalRequest;
 import org.hyperledger.fabric.sdk.exception.ChaincodeEndorsementPolicyParseException;
@@ -41,6 +97,8 @@ import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
 import org.hyperledger.fabric.sdk.exception.ProposalException;
 import org.hyperledger.fabric.sdk.exception.TransactionException;
 
+import com.google.protobuf.InvalidProtocolBufferException;
+
 /**
  * Wrapper class for a channel client.
  * 
@@ -50,10 +108,45 @@ import org.hyperledger.fabric.sdk.exception.TransactionException;
 
 public class ChannelClient {
 
+	private static final long STATE_MIRROR_STOP_MILLIS = 30000;
+	private static final String QUERY_SYSTEM_CHAINCODE = "qscc";
+
 	private final String name;
 	private final Channel channel;
 	private final FabricClient fabClient;
 
+	private ExecutorService executorService;
+	private boolean ownExecutorService;
+	private int executorThreads = 64;
+	private ScheduledExecutorService scheduledExecutorService;
+
+	private final NodeStatsRegistry nodeStats = new NodeStatsRegistry();
+	private volatile EndorserSelector endorserSelector = EndorserSelectors.all();
+	private final ConcurrentMap<String, EndorsementPolicyEvaluator> endorsementPolicies = new ConcurrentHashMap<>();
+	private volatile int endorsementQuorum;
+	private volatile HedgePolicy hedgePolicy;
+
+	private final ProposalSender proposalSender;
+	private final OrdererRouter ordererRouter;
+
+	private volatile LruCache<String, TransactionInfo> transactionInfoCache = newTransactionInfoCache(1000, 32L << 20);
+	private volatile int transactionQueryFanout = 2;
+	private volatile int transactionQueryMaxPeers = 4;
+	private EndorsementCollector endorsementCollector;
+
+	private AdmissionController admissionController;
+	private BlockEventDispatcher blockEventDispatcher;
+	private LedgerHeightTracker ledgerHeightTracker;
+	private volatile long consistencyWaitMillis = 3000;
+	private CommitRegistry commitRegistry;
+	private volatile QueryCache queryCache;
+	private volatile QueryCoalescer queryCoalescer;
+	private volatile TransactionIndex transactionIndex;
+	private final List<BlockStream> blockStreams = new CopyOnWriteArrayList<>();
+	private final List<ChaincodeEventSubscription> chaincodeEventSubscriptions = new CopyOnWriteArrayList<>();
+	private final Map<String, StateMirror> stateMirrors = new ConcurrentHashMap<>();
+	private final Map<String, BlockStream> stateMirrorStreams = new HashMap<>();
+
 	/**
 	 * Constructor
 	 * 
@@ -67,6 +160,8 @@ public class ChannelClient {
 		this.name = name;
 		this.channel = channel;
 		this.fabClient = fabClient;
+		this.proposalSender = new ProposalSender(channel, fabClient.getInstance());
+		this.ordererRouter = new OrdererRouter(channel, nodeStats);
 	}
 
 	public Channel getChannel() {
@@ -81,6 +176,630 @@ public class ChannelClient {
 		return name;
 	}
 
+	/**
+	 * Returns the executor used to run the asynchronous submit pipeline. Unless
+	 * one has been set, a pool of at most {@link #setExecutorThreads(int)} daemon
+	 * threads is created on first use, further tasks wait in its queue. The
+	 * queue itself is not bounded: bound the requests in flight with
+	 * {@link #getAdmissionController()}.
+	 */
+	public synchronized ExecutorService getExecutorService() {
+		if (executorService == null) {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(executorThreads, executorThreads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(), runnable -> {
+						Thread thread = new Thread(runnable, "channel-client-" + name);
+						thread.setDaemon(true);
+						return thread;
+					});
+			pool.allowCoreThreadTimeOut(true);
+			executorService = pool;
+			ownExecutorService = true;
+		}
+		return executorService;
+	}
+
+	public synchronized int getExecutorThreads() {
+		return executorThreads;
+	}
+
+	/**
+	 * Set the maximum number of threads of the executor created by
+	 * {@link #getExecutorService()}, 64 by default. Applies to the executor
+	 * already created, not to one that has been set.
+	 * 
+	 * @param executorThreads
+	 */
+	public synchronized void setExecutorThreads(int executorThreads) {
+		if (executorThreads <= 0) {
+			throw new IllegalArgumentException("executorThreads should be positive.");
+		}
+		this.executorThreads = executorThreads;
+		if (ownExecutorService && executorService instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) executorService;
+			// The core size may never exceed the maximum size
+			if (executorThreads > pool.getMaximumPoolSize()) {
+				pool.setMaximumPoolSize(executorThreads);
+				pool.setCorePoolSize(executorThreads);
+			} else {
+				pool.setCorePoolSize(executorThreads);
+				pool.setMaximumPoolSize(executorThreads);
+			}
+		}
+	}
+
+	public synchronized void setExecutorService(ExecutorService executorService) {
+		if (ownExecutorService && this.executorService != null) {
+			this.executorService.shutdown();
+		}
+		this.executorService = executorService;
+		this.ownExecutorService = false;
+		this.endorsementCollector = null;
+	}
+
+	/**
+	 * Returns the single daemon thread used to schedule timeouts and delayed
+	 * work, created on first use.
+	 */
+	public synchronized ScheduledExecutorService getScheduledExecutorService() {
+		if (scheduledExecutorService == null) {
+			scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "channel-client-scheduler-" + name);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return scheduledExecutorService;
+	}
+
+	private synchronized EndorsementCollector getEndorsementCollector() {
+		if (endorsementCollector == null) {
+			endorsementCollector = new EndorsementCollector(getExecutorService(), getScheduledExecutorService(),
+					nodeStats, this::getPeerMspId);
+		}
+		return endorsementCollector;
+	}
+
+	/**
+	 * Returns the admission control of this channel, bounding the number of
+	 * endorsements and submitted transactions in flight. Nothing is limited until
+	 * it is configured.
+	 */
+	public synchronized AdmissionController getAdmissionController() {
+		if (admissionController == null) {
+			admissionController = new AdmissionController(getScheduledExecutorService());
+		}
+		return admissionController;
+	}
+
+	/**
+	 * Returns the block listener shared by everything consuming block events of
+	 * this channel. It is registered on the channel when first needed. Commit
+	 * tracking, ledger heights, the query cache and the transaction index only
+	 * need filtered blocks, see {@link FabricClient#setBlockEventMode} to have
+	 * the peers deliver those.
+	 */
+	public synchronized BlockEventDispatcher getBlockEventDispatcher() {
+		if (blockEventDispatcher == null) {
+			blockEventDispatcher = new BlockEventDispatcher(channel);
+			ledgerHeightTracker = new LedgerHeightTracker(channel, nodeStats, getExecutorService(),
+					getScheduledExecutorService());
+			blockEventDispatcher.addPeerListener(ledgerHeightTracker, BlockEventMode.FILTERED);
+		}
+		return blockEventDispatcher;
+	}
+
+	/**
+	 * Returns the tracker of the ledger height of each peer, starting the block
+	 * event dispatcher and height polling on first use. Once started, peers
+	 * lagging behind are avoided when selecting endorsing and query peers.
+	 * 
+	 * @return
+	 * @throws InvalidArgumentException if the block listener can't be registered
+	 */
+	public synchronized LedgerHeightTracker getLedgerHeightTracker() throws InvalidArgumentException {
+		getBlockEventDispatcher().start();
+		ledgerHeightTracker.start();
+		return ledgerHeightTracker;
+	}
+
+	private synchronized LedgerHeightTracker getLedgerHeightTrackerIfCreated() {
+		return ledgerHeightTracker;
+	}
+
+	public long getConsistencyWaitMillis() {
+		return consistencyWaitMillis;
+	}
+
+	/**
+	 * Set how long a query with a {@link ConsistencyToken} waits for a peer to
+	 * commit the token's block.
+	 * 
+	 * @param consistencyWaitMillis
+	 */
+	public void setConsistencyWaitMillis(long consistencyWaitMillis) {
+		this.consistencyWaitMillis = consistencyWaitMillis;
+	}
+
+	/**
+	 * Returns the registry of transactions waiting to be committed, starting the
+	 * block event dispatcher on first use.
+	 * 
+	 * @return
+	 * @throws InvalidArgumentException if the block listener can't be registered
+	 */
+	public synchronized CommitRegistry getCommitRegistry() throws InvalidArgumentException {
+		if (commitRegistry == null) {
+			BlockEventDispatcher dispatcher = getBlockEventDispatcher();
+			dispatcher.start();
+			commitRegistry = new CommitRegistry(getExecutorService(), getScheduledExecutorService());
+			dispatcher.addPeerListener(commitRegistry, BlockEventMode.FILTERED);
+		}
+		return commitRegistry;
+	}
+
+	/**
+	 * Enable caching of {@link #evaluate(QueryByChaincodeRequest)} results. No
+	 * result is cached until a {@link CachePolicy} allows it, cached results are
+	 * invalidated by committed blocks.
+	 * 
+	 * @param maxEntries The maximum number of cached results
+	 * @param maxBytes   The maximum total size of the cache
+	 * @return The cache, to set policies and read statistics
+	 * @throws InvalidArgumentException if the block listener can't be registered
+	 */
+	public synchronized QueryCache enableQueryCache(int maxEntries, long maxBytes) throws InvalidArgumentException {
+		if (queryCache == null) {
+			BlockEventDispatcher dispatcher = getBlockEventDispatcher();
+			dispatcher.start();
+			QueryCache cache = new QueryCache(maxEntries, maxBytes);
+			dispatcher.addBlockListener(cache, BlockEventMode.FILTERED);
+			queryCache = cache;
+		}
+		return queryCache;
+	}
+
+	public synchronized void disableQueryCache() {
+		if (queryCache != null) {
+			getBlockEventDispatcher().removeBlockListener(queryCache);
+			queryCache = null;
+		}
+	}
+
+	/**
+	 * Returns the query cache, null if not enabled.
+	 */
+	public QueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * Returns the coalescer collapsing identical concurrent evaluations, null if
+	 * disabled.
+	 */
+	public QueryCoalescer getQueryCoalescer() {
+		return queryCoalescer;
+	}
+
+	/**
+	 * Enable or disable collapsing identical evaluations in flight at the same
+	 * time into one call to a peer. Disabled by default. Evaluations with
+	 * transient data or their own user context are never collapsed, as the
+	 * query key doesn't tell them apart.
+	 * 
+	 * @param enabled
+	 */
+	public void setQueryCoalescing(boolean enabled) {
+		if (!enabled) {
+			queryCoalescer = null;
+		} else if (queryCoalescer == null) {
+			queryCoalescer = new QueryCoalescer();
+		}
+	}
+
+	/**
+	 * Enable the local index of committed transactions stored in the file, used
+	 * by {@link #getTransactionStatus(String)}. Blocks committed since the index
+	 * was last open are indexed in the background, new blocks as they are
+	 * delivered.
+	 * 
+	 * @param file The index file, created if it doesn't exist
+	 * @return The index
+	 * @throws IOException              if the index file can't be opened
+	 * @throws InvalidArgumentException if the block listener can't be registered
+	 */
+	public synchronized TransactionIndex enableTransactionIndex(File file)
+			throws IOException, InvalidArgumentException {
+		if (transactionIndex == null) {
+			BlockEventDispatcher dispatcher = getBlockEventDispatcher();
+			dispatcher.start();
+			TransactionIndex index = new TransactionIndex(file);
+			dispatcher.addBlockListener(index, BlockEventMode.FILTERED);
+			transactionIndex = index;
+			getExecutorService().execute(() -> catchUp(index));
+		}
+		return transactionIndex;
+	}
+
+	public synchronized void disableTransactionIndex() {
+		if (transactionIndex != null) {
+			getBlockEventDispatcher().removeBlockListener(transactionIndex);
+			transactionIndex.close();
+			transactionIndex = null;
+		}
+	}
+
+	/**
+	 * Returns the transaction index, null if not enabled.
+	 */
+	public TransactionIndex getTransactionIndex() {
+		return transactionIndex;
+	}
+
+	// Index the blocks committed while the index was closed
+	private void catchUp(TransactionIndex index) {
+		long target;
+		try {
+			target = channel.queryBlockchainInfo().getHeight();
+		} catch (Exception e) {
+			Logger.getLogger(ChannelClient.class.getName()).log(Level.WARNING,
+					"Catching up transaction index of channel " + name + " failed", e);
+			return;
+		}
+		long height = index.getHeight();
+		if (height >= target) {
+			return;
+		}
+		newBlockBackfill(height, target, block -> {
+			if (transactionIndex != index) {
+				throw new IllegalStateException("Transaction index disabled");
+			}
+			index.index(block);
+		}).start().whenComplete((count, e) -> {
+			if (e != null) {
+				Logger.getLogger(ChannelClient.class.getName()).log(Level.WARNING,
+						"Catching up transaction index of channel " + name + " failed", e);
+			} else {
+				Logger.getLogger(ChannelClient.class.getName()).log(Level.FINE,
+						"Transaction index of channel " + name + " caught up to block " + target);
+			}
+		});
+	}
+
+	/**
+	 * Enable a local mirror of the keys of the chaincode, kept in the directory.
+	 * The mirror resumes from its last snapshot, replaying the blocks committed
+	 * since, then follows new blocks as they are delivered. Reads of the mirror
+	 * don't reach any peer, they see the state as of {@link StateMirror#getHeight()}.
+	 * 
+	 * @param chaincodeName The chaincode whose keys are mirrored
+	 * @param directory     The directory of the mirror, created if it doesn't
+	 *                      exist
+	 * @return The mirror
+	 * @throws IOException              if the mirror can't be opened
+	 * @throws InvalidArgumentException if the block listener can't be registered
+	 */
+	public synchronized StateMirror enableStateMirror(String chaincodeName, File directory)
+			throws IOException, InvalidArgumentException {
+		StateMirror mirror = stateMirrors.get(chaincodeName);
+		if (mirror == null) {
+			mirror = new StateMirror(chaincodeName, directory);
+			BlockStream stream = newBlockStream(mirror::apply).from(mirror.getHeight());
+			try {
+				stream.start();
+			} catch (IOException e) {
+				blockStreams.remove(stream);
+				mirror.close();
+				throw e;
+			}
+			stateMirrors.put(chaincodeName, mirror);
+			stateMirrorStreams.put(chaincodeName, stream);
+		}
+		return mirror;
+	}
+
+	/**
+	 * Stop mirroring the chaincode, a snapshot of the mirror is saved first.
+	 */
+	public synchronized void disableStateMirror(String chaincodeName) {
+		StateMirror mirror = stateMirrors.remove(chaincodeName);
+		BlockStream stream = stateMirrorStreams.remove(chaincodeName);
+		if (stream != null) {
+			stream.stop();
+			blockStreams.remove(stream);
+		}
+		if (mirror != null) {
+			closeStateMirror(mirror, stream);
+		}
+	}
+
+	/**
+	 * Returns the mirror of the chaincode, null if not enabled.
+	 */
+	public StateMirror getStateMirror(String chaincodeName) {
+		return stateMirrors.get(chaincodeName);
+	}
+
+	// Close the mirror once the stream feeding it is done with its block
+	private void closeStateMirror(StateMirror mirror, BlockStream stream) {
+		try {
+			if (stream != null && !stream.awaitStop(STATE_MIRROR_STOP_MILLIS)) {
+				Logger.getLogger(ChannelClient.class.getName()).log(Level.WARNING, "Block stream of state mirror "
+						+ mirror.getChaincodeName() + " still running after " + STATE_MIRROR_STOP_MILLIS + "ms");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			mirror.close();
+		} catch (IOException e) {
+			Logger.getLogger(ChannelClient.class.getName()).log(Level.WARNING,
+					"Saving state mirror of channel " + name + " failed", e);
+		}
+	}
+
+	/**
+	 * Create a stream delivering the blocks of the channel to the consumer in
+	 * order. Configure where it starts and its checkpoint file, then
+	 * {@link BlockStream#start()} it.
+	 * 
+	 * @param consumer Processes the blocks
+	 * @return The stream, not started
+	 * @throws InvalidArgumentException if the block listener can't be registered
+	 */
+	public BlockStream newBlockStream(BlockStream.BlockConsumer consumer) throws InvalidArgumentException {
+		BlockEventDispatcher dispatcher;
+		synchronized (this) {
+			dispatcher = getBlockEventDispatcher();
+			dispatcher.start();
+		}
+		BlockStream stream = new BlockStream(channel, dispatcher, consumer);
+		blockStreams.add(stream);
+		return stream;
+	}
+
+	/**
+	 * Create a subscription to the chaincode events of valid transactions.
+	 * Configure its buffer, consumer threads and overflow policy, then
+	 * {@link ChaincodeEventSubscription#start()} it.
+	 * 
+	 * @param chaincodeName The chaincode setting the events, null for any
+	 * @param eventName     The regular expression the event name has to match,
+	 *                      null for any
+	 * @param consumer      Processes the events
+	 * @return The subscription, not started
+	 * @throws InvalidArgumentException if the block listener can't be registered
+	 */
+	public ChaincodeEventSubscription newChaincodeEventSubscription(String chaincodeName, String eventName,
+			ChaincodeEventSubscription.ChaincodeEventConsumer consumer) throws InvalidArgumentException {
+		BlockEventDispatcher dispatcher;
+		synchronized (this) {
+			dispatcher = getBlockEventDispatcher();
+			dispatcher.start();
+		}
+		ChaincodeEventSubscription subscription = new ChaincodeEventSubscription(dispatcher, chaincodeName,
+				eventName, consumer);
+		chaincodeEventSubscriptions.add(subscription);
+		return subscription;
+	}
+
+	/**
+	 * Create a backfill fetching the blocks of the range from the available
+	 * ledger query peers in parallel and delivering them to the consumer in
+	 * order. Configure it, then {@link BlockBackfill#start()} it.
+	 * 
+	 * @param fromBlock The first block to fetch
+	 * @param toBlock   The block after the last one to fetch
+	 * @param consumer  Processes the blocks
+	 * @return The backfill, not started
+	 */
+	public BlockBackfill newBlockBackfill(long fromBlock, long toBlock, BlockStream.BlockConsumer consumer) {
+		List<Peer> peers = getAvailablePeers(PeerRole.LEDGER_QUERY);
+		LedgerHeightTracker tracker = getLedgerHeightTrackerIfCreated();
+		if (tracker != null) {
+			// Prefer the peers known to have every block of the range
+			List<Peer> complete = tracker.filter(peers, toBlock);
+			if (!complete.isEmpty()) {
+				peers = complete;
+			}
+		}
+		return new BlockBackfill(channel, peers, nodeStats, getExecutorService(), fromBlock, toBlock, consumer);
+	}
+
+	/**
+	 * Returns the router choosing the orderer transactions are broadcast to.
+	 */
+	public OrdererRouter getOrdererRouter() {
+		return ordererRouter;
+	}
+
+	public NodeStatsRegistry getNodeStats() {
+		return nodeStats;
+	}
+
+	public EndorserSelector getEndorserSelector() {
+		return endorserSelector;
+	}
+
+	/**
+	 * Set the strategy choosing the peers proposals and queries are sent to. By
+	 * default every peer having the required role is used.
+	 * 
+	 * @param endorserSelector
+	 */
+	public void setEndorserSelector(EndorserSelector endorserSelector) {
+		this.endorserSelector = endorserSelector == null ? EndorserSelectors.all() : endorserSelector;
+	}
+
+	/**
+	 * Register the endorsement policy of a chaincode, used by policy aware
+	 * endorser selection. Policies given to the instantiate and upgrade methods
+	 * are registered automatically.
+	 * 
+	 * @param chaincodeName
+	 * @param policy
+	 * @throws InvalidArgumentException
+	 */
+	public void setEndorsementPolicy(String chaincodeName, ChaincodeEndorsementPolicy policy)
+			throws InvalidArgumentException {
+		if (policy == null) {
+			endorsementPolicies.remove(chaincodeName);
+		} else {
+			endorsementPolicies.put(chaincodeName, EndorsementPolicyEvaluator.compile(policy));
+		}
+	}
+
+	public EndorsementPolicyEvaluator getEndorsementPolicy(String chaincodeName) {
+		return endorsementPolicies.get(chaincodeName);
+	}
+
+	public int getEndorsementQuorum() {
+		return endorsementQuorum;
+	}
+
+	/**
+	 * Set the number of consistent endorsements to wait for when the chaincode
+	 * has no registered endorsement policy. With 0, the default, every selected
+	 * peer must endorse. Once the policy or quorum is met, proposals still in
+	 * flight are cancelled.
+	 * 
+	 * @param endorsementQuorum
+	 */
+	public void setEndorsementQuorum(int endorsementQuorum) {
+		this.endorsementQuorum = endorsementQuorum;
+	}
+
+	public HedgePolicy getHedgePolicy() {
+		return hedgePolicy;
+	}
+
+	/**
+	 * Enable hedged endorsement: a peer that is slower than its usual latency is
+	 * backed up with another endorsing peer of the same organization. Set to null,
+	 * the default, to disable hedging.
+	 * 
+	 * @param hedgePolicy
+	 */
+	public void setHedgePolicy(HedgePolicy hedgePolicy) {
+		this.hedgePolicy = hedgePolicy;
+	}
+
+	/**
+	 * Returns the peers of this channel having the given role. The roles are
+	 * taken from the channel section of the network configuration when it
+	 * defines the peer, otherwise from the options the peer was added with.
+	 * 
+	 * @param role
+	 * @return
+	 */
+	public List<Peer> getPeers(PeerRole role) {
+		FabricNetwork network = fabClient.getNetwork();
+		List<Peer> peers = new ArrayList<>();
+		for (Peer peer : channel.getPeers()) {
+			PeerOptions options = network == null ? null : network.getPeerOptions(name, peer.getName());
+			if (options == null) {
+				options = channel.getPeersOptions(peer);
+			}
+			EnumSet<PeerRole> roles = options == null ? null : options.getPeerRoles();
+			if (roles == null || roles.contains(role)) {
+				peers.add(peer);
+			}
+		}
+		return peers;
+	}
+
+	/**
+	 * Returns the MSP id of the organization the peer belongs to, or null if the
+	 * network configuration does not list the peer.
+	 * 
+	 * @param peer
+	 * @return
+	 */
+	public String getPeerMspId(Peer peer) {
+		FabricNetwork network = fabClient.getNetwork();
+		if (network == null) {
+			return null;
+		}
+		FabricOrgInfo org = network.getOrganizationInfoOfPeer(peer.getName());
+		return org == null ? null : org.getMspId();
+	}
+
+	private Collection<Peer> selectPeers(TransactionRequest request, PeerRole role) throws ProposalException {
+		List<Peer> candidates = getAvailablePeers(role);
+		LedgerHeightTracker tracker = getLedgerHeightTrackerIfCreated();
+		if (tracker != null) {
+			candidates = tracker.excludeLagging(candidates);
+		}
+		Collection<Peer> selected = candidates.isEmpty() ? null
+				: endorserSelector.select(this, request, candidates);
+		if (selected == null || selected.isEmpty()) {
+			throw new ProposalException("No peer with role " + role + " available on channel " + name);
+		}
+		return selected;
+	}
+
+	/**
+	 * Returns the peers of this channel having the given role whose circuit
+	 * breaker is not open.
+	 * 
+	 * @param role
+	 * @return
+	 */
+	public List<Peer> getAvailablePeers(PeerRole role) {
+		List<Peer> peers = getPeers(role);
+		peers.removeIf(peer -> !nodeStats.get(peer).isAvailable());
+		return peers;
+	}
+
+	// Returns the permits of the peers whose circuit breaker grants the request
+	private Map<Peer, Long> beginRequests(Collection<Peer> peers) throws ProposalException {
+		Map<Peer, Long> permits = new LinkedHashMap<>();
+		for (Peer peer : peers) {
+			long permit = nodeStats.get(peer).tryBegin();
+			if (permit != CircuitBreaker.REFUSED) {
+				permits.put(peer, permit);
+			}
+		}
+		if (permits.isEmpty()) {
+			throw new ProposalException("Circuit open on every selected peer of channel " + name);
+		}
+		return permits;
+	}
+
+	private void endRequests(Map<Peer, Long> permits, long start, Collection<ProposalResponse> responses) {
+		long latency = System.nanoTime() - start;
+		for (Map.Entry<Peer, Long> entry : permits.entrySet()) {
+			Peer peer = entry.getKey();
+			boolean success = false;
+			boolean reachable = false;
+			if (responses != null) {
+				for (ProposalResponse response : responses) {
+					if (peer.equals(response.getPeer())) {
+						success = response.getStatus() == ChaincodeResponse.Status.SUCCESS;
+						reachable = response.getProposalResponse() != null;
+						break;
+					}
+				}
+			}
+			nodeStats.get(peer).end(entry.getValue(), latency, success, reachable);
+		}
+	}
+
+	private Collection<ProposalResponse> endorse(TransactionProposalRequest request)
+			throws ProposalException, InvalidArgumentException {
+		try {
+			return endorseAsync(request).join();
+		} catch (CompletionException e) {
+			Throwable cause = unwrap(e);
+			if (cause instanceof ProposalException) {
+				throw (ProposalException) cause;
+			}
+			if (cause instanceof InvalidArgumentException) {
+				throw (InvalidArgumentException) cause;
+			}
+			throw new ProposalException(cause);
+		}
+	}
+
 	public Collection<ProposalResponse> instantiateJavaChainCode(String chaincodeName, String version,
 			String chaincodePath, String functionName, String[] functionArgs, String policyPath)
 			throws InvalidArgumentException, ProposalException, ChaincodeEndorsementPolicyParseException, IOException {
@@ -110,6 +829,7 @@ public class ChannelClient {
 			ChaincodeEndorsementPolicy chaincodeEndorsementPolicy = new ChaincodeEndorsementPolicy();
 			chaincodeEndorsementPolicy.fromYamlFile(new File(policyPath));
 			instantiateProposalRequest.setChaincodeEndorsementPolicy(chaincodeEndorsementPolicy);
+			setEndorsementPolicy(chaincodeName, chaincodeEndorsementPolicy);
 		}
 
 		Collection<ProposalResponse> responses = channel.sendInstantiationProposal(instantiateProposalRequest);
@@ -152,6 +872,7 @@ public class ChannelClient {
 			ChaincodeEndorsementPolicy chaincodeEndorsementPolicy = new ChaincodeEndorsementPolicy();
 			chaincodeEndorsementPolicy.fromYamlFile(new File(policyPath));
 			instantiateProposalRequest.setChaincodeEndorsementPolicy(chaincodeEndorsementPolicy);
+			setEndorsementPolicy(chaincodeName, chaincodeEndorsementPolicy);
 		}
 
 		Collection<ProposalResponse> responses = channel.sendInstantiationProposal(instantiateProposalRequest);
@@ -193,6 +914,7 @@ public class ChannelClient {
 			ChaincodeEndorsementPolicy chaincodeEndorsementPolicy = new ChaincodeEndorsementPolicy();
 			chaincodeEndorsementPolicy.fromYamlFile(new File(policyPath));
 			upgradeProposalRequest.setChaincodeEndorsementPolicy(chaincodeEndorsementPolicy);
+			setEndorsementPolicy(chaincodeName, chaincodeEndorsementPolicy);
 		}
 
 		Collection<ProposalResponse> responses = channel.sendUpgradeProposal(upgradeProposalRequest);
@@ -226,16 +948,290 @@ public class ChannelClient {
 	 * @return
 	 * @throws ProposalException
 	 * @throws InvalidArgumentException
+	 * @see #queryByTransactionIdAsync(String)
 	 */
 	public TransactionInfo queryByTransactionId(String txnId) throws ProposalException, InvalidArgumentException {
-		Logger.getLogger(ChannelClient.class.getName()).log(Level.INFO,
+		Logger.getLogger(ChannelClient.class.getName()).log(Level.FINE,
 				"Querying by trasaction id " + txnId + " on channel " + channel.getName());
-		Collection<Peer> peers = channel.getPeers();
-		for (Peer peer : peers) {
-			TransactionInfo info = channel.queryTransactionByID(peer, txnId);
+		try {
+			return queryByTransactionIdAsync(txnId).join();
+		} catch (CompletionException e) {
+			Throwable cause = unwrap(e);
+			if (cause instanceof ProposalException) {
+				throw (ProposalException) cause;
+			}
+			if (cause instanceof InvalidArgumentException) {
+				throw (InvalidArgumentException) cause;
+			}
+			throw new ProposalException(cause);
+		}
+	}
+
+	/**
+	 * Query a transaction by id asynchronously. The query is sent to
+	 * {@link #getTransactionQueryFanout()} ledger peers at once, fastest first,
+	 * and the first answer is used. Each failure brings in the next peer, up to
+	 * {@link #getTransactionQueryMaxPeers()} peers in total. Transactions found
+	 * are committed for good and are cached.
+	 * 
+	 * @param txnId
+	 * @return
+	 */
+	public CompletableFuture<TransactionInfo> queryByTransactionIdAsync(String txnId) {
+		TransactionInfo cached = transactionInfoCache.get(txnId);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		List<Peer> peers = getAvailablePeers(PeerRole.LEDGER_QUERY);
+		LedgerHeightTracker tracker = getLedgerHeightTrackerIfCreated();
+		if (tracker != null) {
+			peers = tracker.excludeLagging(peers);
+			TransactionIndex index = transactionIndex;
+			TransactionStatus status = index == null ? null : index.get(txnId);
+			if (status != null) {
+				// Only ask the peers known to have committed the block
+				List<Peer> committed = tracker.filter(peers, status.getBlockNumber() + 1);
+				if (!committed.isEmpty()) {
+					peers = committed;
+				}
+			}
+		}
+		if (peers.isEmpty()) {
+			return failedFuture(
+					new ProposalException("No peer with role " + PeerRole.LEDGER_QUERY + " available on channel " + name));
+		}
+		peers.sort(Comparator.comparingDouble(peer -> nodeStats.get(peer).getLatencyMillis()));
+		if (peers.size() > transactionQueryMaxPeers) {
+			peers = peers.subList(0, transactionQueryMaxPeers);
+		}
+		LruCache<String, TransactionInfo> cache = transactionInfoCache;
+		return new TransactionLookup(txnId, peers).start().thenApply(info -> {
+			cache.put(txnId, info);
 			return info;
+		});
+	}
+
+	/**
+	 * Set the bounds of the cache of transactions found by
+	 * {@link #queryByTransactionIdAsync(String)}, 1000 entries and 32 MB of
+	 * serialized transactions by default. The cache is emptied.
+	 * 
+	 * @param maxEntries The maximum number of transactions
+	 * @param maxBytes   The maximum total size of the serialized transactions
+	 */
+	public void setTransactionInfoCacheSize(int maxEntries, long maxBytes) {
+		transactionInfoCache = newTransactionInfoCache(maxEntries, maxBytes);
+	}
+
+	private static LruCache<String, TransactionInfo> newTransactionInfoCache(int maxEntries, long maxBytes) {
+		return new LruCache<>(maxEntries, maxBytes,
+				(txnId, info) -> info.getProcessedTransaction().getSerializedSize());
+	}
+
+	public int getTransactionQueryFanout() {
+		return transactionQueryFanout;
+	}
+
+	/**
+	 * Set the number of peers a transaction lookup is sent to at once.
+	 * 
+	 * @param transactionQueryFanout
+	 */
+	public void setTransactionQueryFanout(int transactionQueryFanout) {
+		if (transactionQueryFanout <= 0) {
+			throw new IllegalArgumentException("Fanout should be positive.");
+		}
+		this.transactionQueryFanout = transactionQueryFanout;
+	}
+
+	public int getTransactionQueryMaxPeers() {
+		return transactionQueryMaxPeers;
+	}
+
+	/**
+	 * Set the maximum number of peers a transaction lookup is sent to, including
+	 * failovers.
+	 * 
+	 * @param transactionQueryMaxPeers
+	 */
+	public void setTransactionQueryMaxPeers(int transactionQueryMaxPeers) {
+		if (transactionQueryMaxPeers <= 0) {
+			throw new IllegalArgumentException("Maximum number of peers should be positive.");
+		}
+		this.transactionQueryMaxPeers = transactionQueryMaxPeers;
+	}
+
+	/**
+	 * Returns the block a transaction was committed in, its position and
+	 * validation code.
+	 * 
+	 * @param txnId
+	 * @return
+	 * @throws ProposalException
+	 * @throws InvalidArgumentException
+	 * @see #getTransactionStatusAsync(String)
+	 */
+	public TransactionStatus getTransactionStatus(String txnId) throws ProposalException, InvalidArgumentException {
+		try {
+			return getTransactionStatusAsync(txnId).join();
+		} catch (CompletionException e) {
+			Throwable cause = unwrap(e);
+			if (cause instanceof ProposalException) {
+				throw (ProposalException) cause;
+			}
+			if (cause instanceof InvalidArgumentException) {
+				throw (InvalidArgumentException) cause;
+			}
+			throw new ProposalException(cause);
+		}
+	}
+
+	/**
+	 * Returns the status of the transaction from the transaction index when
+	 * enabled and the transaction is indexed, otherwise by querying the block of
+	 * the transaction from a peer.
+	 * 
+	 * @param txnId
+	 * @return
+	 */
+	public CompletableFuture<TransactionStatus> getTransactionStatusAsync(String txnId) {
+		TransactionIndex index = transactionIndex;
+		TransactionStatus status = index == null ? null : index.get(txnId);
+		if (status != null) {
+			return CompletableFuture.completedFuture(status);
+		}
+		List<Peer> peers = getAvailablePeers(PeerRole.LEDGER_QUERY);
+		if (peers.isEmpty()) {
+			return failedFuture(
+					new ProposalException("No peer with role " + PeerRole.LEDGER_QUERY + " available on channel " + name));
+		}
+		peers.sort(Comparator.comparingDouble(peer -> nodeStats.get(peer).getLatencyMillis()));
+		return CompletableFuture.supplyAsync(() -> {
+			List<String> errors = new ArrayList<>();
+			for (Peer peer : peers.subList(0, Math.min(peers.size(), transactionQueryMaxPeers))) {
+				NodeStats stats = nodeStats.get(peer);
+				long permit = stats.tryBegin();
+				if (permit == CircuitBreaker.REFUSED) {
+					errors.add(peer.getName() + ": circuit open");
+					continue;
+				}
+				long start = System.nanoTime();
+				BlockInfo block;
+				try {
+					block = channel.queryBlockByTransactionID(peer, txnId);
+					stats.end(permit, System.nanoTime() - start, true);
+				} catch (Exception e) {
+					stats.end(permit, System.nanoTime() - start, false, true);
+					errors.add(peer.getName() + ": " + e.getMessage());
+					continue;
+				}
+				if (index != null) {
+					index.index(block);
+				}
+				int position = 0;
+				for (EnvelopeInfo envelope : block.getEnvelopeInfos()) {
+					if (txnId.equals(envelope.getTransactionID())) {
+						return new TransactionStatus(txnId, block.getBlockNumber(), position,
+								envelope.getValidationCode());
+					}
+					position++;
+				}
+			}
+			throw new CompletionException(
+					new ProposalException("Query of transaction " + txnId + " status failed on " + errors));
+		}, getExecutorService());
+	}
+
+	/**
+	 * Looks a transaction up on several peers, completing with the first answer.
+	 */
+	private class TransactionLookup {
+
+		private final String txnId;
+		private final List<Peer> peers;
+		private final CompletableFuture<TransactionInfo> result = new CompletableFuture<>();
+		private final List<String> errors = new ArrayList<>();
+		private PreparedProposal proposal;
+		private int next;
+		private int running;
+
+		TransactionLookup(String txnId, List<Peer> peers) {
+			this.txnId = txnId;
+			this.peers = peers;
+		}
+
+		synchronized CompletableFuture<TransactionInfo> start() {
+			// The query the SDK sends for queryTransactionByID
+			QueryByChaincodeRequest request = fabClient.getInstance().newQueryProposalRequest();
+			request.setChaincodeID(ChaincodeID.newBuilder().setName(QUERY_SYSTEM_CHAINCODE).build());
+			request.setFcn("GetTransactionByID");
+			request.setArgs(channel.getName(), txnId);
+			try {
+				proposal = proposalSender.prepare(request);
+			} catch (ProposalException | InvalidArgumentException e) {
+				result.completeExceptionally(e);
+				return result;
+			}
+			int fanout = Math.min(transactionQueryFanout, peers.size());
+			for (int i = 0; i < fanout; i++) {
+				launch();
+			}
+			return result;
+		}
+
+		// Must be called holding the lock
+		private void launch() {
+			Peer peer = peers.get(next++);
+			running++;
+			getExecutorService().execute(() -> {
+				NodeStats stats = nodeStats.get(peer);
+				long permit = stats.tryBegin();
+				if (permit == CircuitBreaker.REFUSED) {
+					failed(peer, "circuit open");
+					return;
+				}
+				long start = System.nanoTime();
+				try {
+					TransactionInfo info = query(peer);
+					stats.end(permit, System.nanoTime() - start, true);
+					result.complete(info);
+				} catch (Exception e) {
+					stats.end(permit, System.nanoTime() - start, false, !NodeErrors.isUnreachable(e));
+					failed(peer, String.valueOf(e.getMessage()));
+				}
+			});
+		}
+
+		private TransactionInfo query(Peer peer) throws ProposalException {
+			FabricProposalResponse.Response response = proposalSender.call(proposal, peer).getResponse();
+			if (response.getStatus() != ChaincodeResponse.Status.SUCCESS.getStatus()) {
+				throw new ProposalException("status " + response.getStatus() + ": " + response.getMessage());
+			}
+			try {
+				return ProposalSender.newTransactionInfo(txnId, ProcessedTransaction.parseFrom(response.getPayload()));
+			} catch (InvalidProtocolBufferException e) {
+				throw new ProposalException(e);
+			}
+		}
+
+		private void failed(Peer peer, String message) {
+			ProposalException error = null;
+			synchronized (this) {
+				running--;
+				errors.add(peer.getName() + ": " + message);
+				if (result.isDone()) {
+					return;
+				}
+				if (next < peers.size()) {
+					launch();
+				} else if (running == 0) {
+					error = new ProposalException("Query of transaction " + txnId + " failed on " + errors);
+				}
+			}
+			if (error != null) {
+				result.completeExceptionally(error);
+			}
 		}
-		return null;
 	}
 
 	public Collection<ProposalResponse> queryByChaincode(QueryByChaincodeRequest request)
@@ -243,7 +1239,14 @@ public class ChannelClient {
 		Logger.getLogger(ChannelClient.class.getName()).log(Level.INFO,
 				"Sending transaction proposal on channel " + channel.getName());
 
-		Collection<ProposalResponse> response = channel.queryByChaincode(request, channel.getPeers());
+		Map<Peer, Long> permits = beginRequests(selectPeers(request, PeerRole.CHAINCODE_QUERY));
+		long start = System.nanoTime();
+		Collection<ProposalResponse> response = null;
+		try {
+			response = channel.queryByChaincode(request, permits.keySet());
+		} finally {
+			endRequests(permits, start, response);
+		}
 		for (ProposalResponse pres : response) {
 			String stringResponse = new String(pres.getChaincodeActionResponsePayload());
 			Logger.getLogger(ChannelClient.class.getName()).log(Level.INFO,
@@ -252,12 +1255,214 @@ public class ChannelClient {
 			Logger.getLogger(ChannelClient.class.getName()).log(Level.INFO, stringResponse);
 		}
 
-		CompletableFuture<TransactionEvent> cf = channel.sendTransaction(response);
-		Logger.getLogger(ChannelClient.class.getName()).log(Level.INFO, cf.toString());
-
 		return response;
 	}
 
+	/**
+	 * Evaluate a query on a single peer and return its payload. Nothing is sent
+	 * to the orderer.
+	 * 
+	 * @param request
+	 * @return
+	 * @throws ProposalException
+	 * @throws InvalidArgumentException
+	 * @see #evaluateAsync(QueryByChaincodeRequest)
+	 */
+	public byte[] evaluate(QueryByChaincodeRequest request) throws ProposalException, InvalidArgumentException {
+		try {
+			return evaluateAsync(request).join();
+		} catch (CompletionException e) {
+			Throwable cause = unwrap(e);
+			if (cause instanceof ProposalException) {
+				throw (ProposalException) cause;
+			}
+			if (cause instanceof InvalidArgumentException) {
+				throw (InvalidArgumentException) cause;
+			}
+			throw new ProposalException(cause);
+		}
+	}
+
+	public byte[] evaluate(String chaincode, String function, String... args)
+			throws ProposalException, InvalidArgumentException {
+		return evaluate(fabClient.newQueryByChangcodeRequest(chaincode, function, args));
+	}
+
+	/**
+	 * Evaluate a query asynchronously. The query is sent to the peer chosen by
+	 * the endorser selector, and on error to the other query peers one at a time,
+	 * fastest first, until one of them answers. A chaincode error is returned
+	 * as is, as the other peers would answer the same.
+	 * <p>
+	 * Results are served from the query cache when it is enabled and the
+	 * function's {@link CachePolicy} allows it. Identical queries in flight at the
+	 * same time share one call when coalescing is enabled. Queries with
+	 * transient data or their own user context bypass both, their results
+	 * depend on more than the query key.
+	 * 
+	 * @param request
+	 * @return A future of the chaincode response payload
+	 */
+	public CompletableFuture<byte[]> evaluateAsync(QueryByChaincodeRequest request) {
+		QueryCache cache = queryCache;
+		QueryCoalescer coalescer = queryCoalescer;
+		if (cache == null && coalescer == null || !isShareable(request)) {
+			return sendQuery(request);
+		}
+		QueryKey key = QueryKey.of(name, request);
+		if (cache == null || !cache.getPolicy(key).isCacheable()) {
+			return coalescer == null ? sendQuery(request) : coalescer.execute(key, () -> sendQuery(request));
+		}
+		byte[] cached = cache.get(key);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		long height = cache.getHeight();
+		CompletableFuture<byte[]> result = coalescer == null ? sendQuery(request)
+				: coalescer.execute(key, () -> sendQuery(request));
+		return result.thenApply(payload -> {
+			cache.put(key, payload, height);
+			return payload;
+		});
+	}
+
+	// Whether the result may be shared with other callers of the same query key
+	private static boolean isShareable(QueryByChaincodeRequest request) {
+		Map<String, byte[]> transientMap = request.getTransientMap();
+		return (transientMap == null || transientMap.isEmpty()) && ProposalSender.getUserContext(request) == null;
+	}
+
+	private CompletableFuture<byte[]> sendQuery(QueryByChaincodeRequest request) {
+		try {
+			return sendQuery(request, getQueryPeers(request));
+		} catch (ProposalException e) {
+			return failedFuture(e);
+		}
+	}
+
+	private CompletableFuture<byte[]> sendQuery(QueryByChaincodeRequest request, List<Peer> peers) {
+		try {
+			PreparedProposal proposal = proposalSender.prepare(request);
+			return CompletableFuture.supplyAsync(() -> {
+				try {
+					return evaluate(proposal, peers);
+				} catch (ProposalException | InvalidArgumentException e) {
+					throw new CompletionException(e);
+				}
+			}, getExecutorService());
+		} catch (ProposalException | InvalidArgumentException e) {
+			return failedFuture(e);
+		}
+	}
+
+	/**
+	 * Evaluate a query on a peer that has committed the token's block.
+	 * 
+	 * @param request
+	 * @param token
+	 * @return
+	 * @throws ProposalException
+	 * @throws InvalidArgumentException
+	 * @see #evaluateAsync(QueryByChaincodeRequest, ConsistencyToken)
+	 */
+	public byte[] evaluate(QueryByChaincodeRequest request, ConsistencyToken token)
+			throws ProposalException, InvalidArgumentException {
+		try {
+			return evaluateAsync(request, token).join();
+		} catch (CompletionException e) {
+			Throwable cause = unwrap(e);
+			if (cause instanceof ProposalException) {
+				throw (ProposalException) cause;
+			}
+			if (cause instanceof InvalidArgumentException) {
+				throw (InvalidArgumentException) cause;
+			}
+			throw new ProposalException(cause);
+		}
+	}
+
+	/**
+	 * Evaluate a query so that it sees at least the ledger the token was taken
+	 * at, typically the block of a transaction just submitted. Only query peers
+	 * known to have committed that block are used. If there is none yet, the
+	 * query waits up to {@link #getConsistencyWaitMillis()} for one to deliver
+	 * the block. Such queries bypass the query cache and coalescing.
+	 * 
+	 * @param request
+	 * @param token   The token of a committed transaction, null for no
+	 *                constraint
+	 * @return A future of the chaincode response payload
+	 */
+	public CompletableFuture<byte[]> evaluateAsync(QueryByChaincodeRequest request, ConsistencyToken token) {
+		if (token == null) {
+			return evaluateAsync(request);
+		}
+		List<Peer> peers;
+		LedgerHeightTracker tracker;
+		try {
+			peers = getQueryPeers(request);
+			tracker = getLedgerHeightTracker();
+		} catch (ProposalException | InvalidArgumentException e) {
+			return failedFuture(e);
+		}
+		long height = token.getMinLedgerHeight();
+		List<Peer> reached = tracker.filter(peers, height);
+		if (!reached.isEmpty()) {
+			return sendQuery(request, reached);
+		}
+		return tracker.awaitHeight(peers, height, consistencyWaitMillis).handle((peer, ex) -> {
+			if (ex != null) {
+				throw new CompletionException(new ProposalException("No peer of channel " + name
+						+ " has committed block " + token.getBlockNumber() + " within " + consistencyWaitMillis
+						+ "ms"));
+			}
+			return tracker.filter(peers, height);
+		}).thenCompose(ready -> sendQuery(request, ready));
+	}
+
+	// The selected query peers first, then the others by latency
+	private List<Peer> getQueryPeers(TransactionRequest request) throws ProposalException {
+		List<Peer> peers = new ArrayList<>(selectPeers(request, PeerRole.CHAINCODE_QUERY));
+		List<Peer> others = getAvailablePeers(PeerRole.CHAINCODE_QUERY);
+		others.removeAll(peers);
+		others.sort(Comparator.comparingDouble(peer -> nodeStats.get(peer).getLatencyMillis()));
+		peers.addAll(others);
+		return peers;
+	}
+
+	private byte[] evaluate(PreparedProposal proposal, List<Peer> peers)
+			throws ProposalException, InvalidArgumentException {
+		List<String> errors = new ArrayList<>();
+		for (Peer peer : peers) {
+			NodeStats stats = nodeStats.get(peer);
+			long permit = stats.tryBegin();
+			if (permit == CircuitBreaker.REFUSED) {
+				errors.add(peer.getName() + ": circuit open");
+				continue;
+			}
+			long start = System.nanoTime();
+			ProposalResponse response;
+			try {
+				response = proposalSender.send(proposal, peer);
+			} catch (ProposalException | InvalidArgumentException e) {
+				stats.end(permit, System.nanoTime() - start, false, false);
+				errors.add(peer.getName() + ": " + e.getMessage());
+				continue;
+			}
+			boolean success = response.getStatus() == ChaincodeResponse.Status.SUCCESS;
+			stats.end(permit, System.nanoTime() - start, success, response.getProposalResponse() != null);
+			if (success) {
+				return response.getChaincodeActionResponsePayload();
+			}
+			if (response.getProposalResponse() != null && response.getProposalResponse().getResponse()
+					.getStatus() >= ChaincodeResponse.Status.FAILURE.getStatus()) {
+				throw new ProposalException("Query failed on peer " + peer.getName() + ": " + response.getMessage());
+			}
+			errors.add(peer.getName() + ": " + response.getMessage());
+		}
+		throw new ProposalException("Query failed on every peer " + errors);
+	}
+
 	/**
 	 * Send transaction proposal.
 	 * 
@@ -271,7 +1476,7 @@ public class ChannelClient {
 		Logger.getLogger(ChannelClient.class.getName()).log(Level.INFO,
 				"Sending transaction proposal on channel " + channel.getName());
 
-		Collection<ProposalResponse> response = channel.sendTransactionProposal(request, channel.getPeers());
+		Collection<ProposalResponse> response = endorse(request);
 		for (ProposalResponse pres : response) {
 			String stringResponse = new String(pres.getChaincodeActionResponsePayload());
 			Logger.getLogger(ChannelClient.class.getName()).log(Level.INFO,
@@ -286,6 +1491,235 @@ public class ChannelClient {
 		return response;
 	}
 
+	/**
+	 * Submit a transaction without blocking the caller. The returned future runs
+	 * endorsement, ordering and commit, and completes once the transaction has
+	 * been committed on any peer with its block number and validation code.
+	 * 
+	 * @param request
+	 * @return
+	 */
+	public CompletableFuture<TransactionResult> submitAsync(TransactionProposalRequest request) {
+		return submitAsync(request, CommitStrategy.ANY_PEER);
+	}
+
+	public CompletableFuture<TransactionResult> submitAsync(String chaincode, String function, String... args) {
+		try {
+			return submitAsync(fabClient.newTransactionProposalRequest(chaincode, function, args));
+		} catch (InvalidArgumentException e) {
+			return failedFuture(e);
+		}
+	}
+
+	/**
+	 * Submit a transaction, completing the future as the commit strategy says.
+	 * {@link CommitStrategy#N_PEERS} waits for a single peer, use
+	 * {@link #submitAsync(TransactionProposalRequest, CommitStrategy, int)} to
+	 * wait for more.
+	 * 
+	 * @param request
+	 * @param strategy
+	 * @return
+	 */
+	public CompletableFuture<TransactionResult> submitAsync(TransactionProposalRequest request,
+			CommitStrategy strategy) {
+		return submitAsync(request, strategy, 1);
+	}
+
+	/**
+	 * Submit a transaction, completing the future as the commit strategy says.
+	 * 
+	 * @param request
+	 * @param strategy
+	 * @param peers    The number of peers to wait for with
+	 *                 {@link CommitStrategy#N_PEERS}, ignored otherwise
+	 * @return
+	 */
+	public CompletableFuture<TransactionResult> submitAsync(TransactionProposalRequest request,
+			CommitStrategy strategy, int peers) {
+		return throttled(request, () -> admitted(request, () -> collectEndorsements(request)
+				.thenCompose(responses -> sendTransactionAsync(responses, strategy, peers))));
+	}
+
+	/**
+	 * Collect endorsements for the request asynchronously. The future completes
+	 * as soon as consistent endorsements satisfy the chaincode's endorsement
+	 * policy or the endorsement quorum, and fails with a {@link ProposalException}
+	 * if they can not, or with an
+	 * {@link org.ecsoya.fabric.client.limit.AdmissionRejectedException} if the
+	 * request is not admitted.
+	 * 
+	 * @param request
+	 * @return
+	 */
+	public CompletableFuture<Collection<ProposalResponse>> endorseAsync(TransactionProposalRequest request) {
+		return throttled(request, () -> admitted(request, () -> collectEndorsements(request)));
+	}
+
+	private CompletableFuture<Collection<ProposalResponse>> collectEndorsements(TransactionProposalRequest request) {
+		try {
+			Collection<Peer> peers = selectPeers(request, PeerRole.ENDORSING_PEER);
+			PreparedProposal proposal = proposalSender.prepare(request);
+			EndorsementPolicyEvaluator policy = request.getChaincodeID() == null ? null
+					: getEndorsementPolicy(request.getChaincodeID().getName());
+			HedgePolicy hedging = hedgePolicy;
+			Collection<Peer> backups = hedging == null ? peers : getPeers(PeerRole.ENDORSING_PEER);
+			return getEndorsementCollector().collect(peers, backups, policy, endorsementQuorum, hedging,
+					peer -> proposalSender.send(proposal, peer));
+		} catch (ProposalException | InvalidArgumentException e) {
+			return failedFuture(e);
+		}
+	}
+
+	// Runs the action once the rate limits allow it, on the executor if it had
+	// to wait
+	private <T> CompletableFuture<T> throttled(TransactionRequest request, Supplier<CompletableFuture<T>> action) {
+		String chaincodeName = request.getChaincodeID() == null ? null : request.getChaincodeID().getName();
+		return fabClient.getRateLimiter()
+				.acquireAsync(channel.getName(), chaincodeName, request.getFcn(), getExecutorService())
+				.thenCompose(v -> action.get());
+	}
+
+	// Runs the action once admitted, holding the permit until it completes
+	private <T> CompletableFuture<T> admitted(TransactionRequest request, Supplier<CompletableFuture<T>> action) {
+		String chaincodeName = request.getChaincodeID() == null ? null : request.getChaincodeID().getName();
+		return getAdmissionController().acquire(chaincodeName).thenCompose(permit -> {
+			CompletableFuture<T> future;
+			try {
+				future = action.get();
+			} catch (RuntimeException e) {
+				permit.release();
+				throw e;
+			}
+			return future.whenComplete((result, ex) -> permit.release());
+		});
+	}
+
+	/**
+	 * Send endorsed responses to the orderer asynchronously. The future completes
+	 * when the transaction is committed on any peer, including transactions that
+	 * were committed as invalid.
+	 * 
+	 * @param responses
+	 * @return
+	 */
+	public CompletableFuture<TransactionResult> sendTransactionAsync(Collection<ProposalResponse> responses) {
+		return sendTransactionAsync(responses, CommitStrategy.ANY_PEER, 1);
+	}
+
+	/**
+	 * Send endorsed responses to the orderer asynchronously, completing the
+	 * future as the commit strategy says. Commit events are matched through the
+	 * channel's {@link CommitRegistry} rather than a listener per transaction.
+	 * 
+	 * @param responses
+	 * @param strategy
+	 * @param peers     The number of peers to wait for with
+	 *                  {@link CommitStrategy#N_PEERS}, ignored otherwise
+	 * @return
+	 */
+	public CompletableFuture<TransactionResult> sendTransactionAsync(Collection<ProposalResponse> responses,
+			CommitStrategy strategy, int peers) {
+		if (responses == null || responses.isEmpty()) {
+			return failedFuture(new InvalidArgumentException("sendTransaction responses may not be null or empty."));
+		}
+		String transactionId = responses.iterator().next().getTransactionID();
+		CommitRegistry registry = null;
+		CompletableFuture<TransactionEvent> committed = null;
+		if (strategy.waitsForCommit()) {
+			try {
+				registry = getCommitRegistry();
+				switch (strategy) {
+				case ALL_ORG_PEERS:
+					Set<String> orgPeers = getOrgEventSources();
+					committed = registry.register(transactionId, orgPeers, orgPeers.size());
+					break;
+				case N_PEERS:
+					committed = registry.register(transactionId, getEventSources(peers), peers);
+					break;
+				default:
+					committed = registry.register(transactionId);
+				}
+			} catch (InvalidArgumentException e) {
+				return failedFuture(e);
+			}
+		}
+
+		CompletableFuture<Orderer> ordered = CompletableFuture.supplyAsync(() -> {
+			try {
+				return ordererRouter.broadcast(responses);
+			} catch (TransactionException e) {
+				throw new CompletionException(e);
+			}
+		}, getExecutorService());
+		switch (strategy) {
+		case AFTER_ENDORSEMENT:
+			ordered.whenComplete((orderer, ex) -> {
+				if (ex != null) {
+					Logger.getLogger(ChannelClient.class.getName()).log(Level.WARNING,
+							"Transaction " + transactionId + " on channel " + channel.getName() + " failed",
+							unwrap(ex));
+				}
+			});
+			return CompletableFuture.completedFuture(TransactionResult.uncommitted(transactionId));
+		case ORDERER_ACK:
+			return ordered.thenApply(orderer -> TransactionResult.uncommitted(transactionId));
+		default:
+			CommitRegistry commits = registry;
+			ordered.whenComplete((orderer, ex) -> {
+				if (ex != null) {
+					commits.fail(transactionId, unwrap(ex));
+				}
+			});
+			return committed.thenApply(TransactionResult::fromEvent);
+		}
+	}
+
+	// The event source peers of the client's organization
+	private Set<String> getOrgEventSources() throws InvalidArgumentException {
+		String mspId = fabClient.getInstance().getUserContext().getMspId();
+		Set<String> names = new HashSet<>();
+		for (Peer peer : getPeers(PeerRole.EVENT_SOURCE)) {
+			if (mspId != null && mspId.equals(getPeerMspId(peer))) {
+				names.add(peer.getName());
+			}
+		}
+		if (names.isEmpty()) {
+			throw new InvalidArgumentException(
+					"No event source peer of organization " + mspId + " on channel " + channel.getName());
+		}
+		return names;
+	}
+
+	// The event source peers of the channel, at least count of them
+	private Set<String> getEventSources(int count) throws InvalidArgumentException {
+		if (count <= 0) {
+			throw new InvalidArgumentException("The number of peers to wait for should be positive.");
+		}
+		Set<String> names = new HashSet<>();
+		for (Peer peer : getPeers(PeerRole.EVENT_SOURCE)) {
+			names.add(peer.getName());
+		}
+		if (names.size() < count) {
+			throw new InvalidArgumentException("Can't wait for " + count + " peers, channel " + channel.getName()
+					+ " has " + names.size() + " event source peers");
+		}
+		return names;
+	}
+
+	static <T> CompletableFuture<T> failedFuture(Throwable ex) {
+		CompletableFuture<T> failed = new CompletableFuture<>();
+		failed.completeExceptionally(ex);
+		return failed;
+	}
+
+	static Throwable unwrap(Throwable ex) {
+		while (ex instanceof CompletionException && ex.getCause() != null) {
+			ex = ex.getCause();
+		}
+		return ex;
+	}
+
 	public Collection<ProposalResponse> upgradeJavaChainCode(String chaincodeName, String version, String chaincodePath,
 			String functionName, String[] functionArgs, String policyPath)
 			throws InvalidArgumentException, ProposalException, ChaincodeEndorsementPolicyParseException, IOException {
@@ -314,6 +1748,7 @@ public class ChannelClient {
 			ChaincodeEndorsementPolicy chaincodeEndorsementPolicy = new ChaincodeEndorsementPolicy();
 			chaincodeEndorsementPolicy.fromYamlFile(new File(policyPath));
 			request.setChaincodeEndorsementPolicy(chaincodeEndorsementPolicy);
+			setEndorsementPolicy(chaincodeName, chaincodeEndorsementPolicy);
 		}
 
 		Collection<ProposalResponse> responses = channel.sendUpgradeProposal(request);
@@ -325,9 +1760,50 @@ public class ChannelClient {
 	}
 
 	public void shutdown(boolean force) {
+		for (BlockStream stream : blockStreams) {
+			stream.stop();
+		}
+		blockStreams.clear();
+		for (ChaincodeEventSubscription subscription : chaincodeEventSubscriptions) {
+			subscription.close();
+		}
+		chaincodeEventSubscriptions.clear();
+		synchronized (this) {
+			for (Map.Entry<String, StateMirror> entry : stateMirrors.entrySet()) {
+				closeStateMirror(entry.getValue(), stateMirrorStreams.get(entry.getKey()));
+			}
+			stateMirrors.clear();
+			stateMirrorStreams.clear();
+			if (blockEventDispatcher != null) {
+				blockEventDispatcher.stop();
+				blockEventDispatcher = null;
+				ledgerHeightTracker.stop();
+				ledgerHeightTracker = null;
+			}
+			if (commitRegistry != null) {
+				commitRegistry.close();
+				commitRegistry = null;
+			}
+			queryCache = null;
+			if (transactionIndex != null) {
+				transactionIndex.close();
+				transactionIndex = null;
+			}
+		}
 		if (channel != null) {
 			channel.shutdown(force);
 		}
+		synchronized (this) {
+			if (ownExecutorService && executorService != null) {
+				executorService.shutdown();
+				executorService = null;
+			}
+			if (scheduledExecutorService != null) {
+				scheduledExecutorService.shutdownNow();
+				scheduledExecutorService = null;
+			}
+			endorsementCollector = null;
+		}
 	}
 
 }
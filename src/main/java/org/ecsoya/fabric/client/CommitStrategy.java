@@ -0,0 +1,43 @@
+package org.ecsoya.fabric.client;
+
+/**
+ * When a submitted transaction is considered done, trading latency for
+ * durability.
+ */
+public enum CommitStrategy {
+
+	/**
+	 * Return as soon as the transaction is endorsed. It is sent to the orderer in
+	 * the background and failures are only logged.
+	 */
+	AFTER_ENDORSEMENT,
+
+	/**
+	 * Return once the orderer has accepted the transaction.
+	 */
+	ORDERER_ACK,
+
+	/**
+	 * Return once the transaction is committed on any peer of the channel.
+	 */
+	ANY_PEER,
+
+	/**
+	 * Return once the transaction is committed on every event source peer of the
+	 * client's organization.
+	 */
+	ALL_ORG_PEERS,
+
+	/**
+	 * Return once the transaction is committed on a given number of peers.
+	 */
+	N_PEERS;
+
+	/**
+	 * Returns true if the result of a submit with this strategy carries the block
+	 * number and validation code of the transaction.
+	 */
+	public boolean waitsForCommit() {
+		return this == ANY_PEER || this == ALL_ORG_PEERS || this == N_PEERS;
+	}
+}
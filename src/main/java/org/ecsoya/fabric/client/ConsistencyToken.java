@@ -0,0 +1,47 @@
+package org.ecsoya.fabric.client;
+
+/**
+ * Marks a point in a channel's ledger, the block a transaction was committed
+ * in. Queries given the token only run on peers that have committed that
+ * block, so they see the transaction's writes.
+ */
+public final class ConsistencyToken {
+
+	private final long blockNumber;
+
+	public ConsistencyToken(long blockNumber) {
+		if (blockNumber < 0) {
+			throw new IllegalArgumentException("Block number can't be negative.");
+		}
+		this.blockNumber = blockNumber;
+	}
+
+	public long getBlockNumber() {
+		return blockNumber;
+	}
+
+	/**
+	 * Returns the ledger height a peer needs to have reached.
+	 */
+	public long getMinLedgerHeight() {
+		return blockNumber + 1;
+	}
+
+	/**
+	 * Returns the later of the two tokens, either may be null.
+	 */
+	public static ConsistencyToken max(ConsistencyToken a, ConsistencyToken b) {
+		if (a == null) {
+			return b;
+		}
+		if (b == null) {
+			return a;
+		}
+		return a.blockNumber >= b.blockNumber ? a : b;
+	}
+
+	@Override
+	public String toString() {
+		return "ConsistencyToken [blockNumber=" + blockNumber + "]";
+	}
+}
@@ -26,6 +26,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import org.ecsoya.fabric.client.event.BlockEventMode;
+import org.ecsoya.fabric.client.limit.RateLimiter;
 import org.ecsoya.fabric.network.FabricCAInfo;
 import org.ecsoya.fabric.network.FabricNetwork;
 import org.ecsoya.fabric.network.FabricOrgInfo;
@@ -34,6 +36,7 @@ import org.ecsoya.fabric.user.UserContext;
 import org.ecsoya.fabric.util.FabricUtil;
 import org.hyperledger.fabric.sdk.ChaincodeID;
 import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.Channel.PeerOptions;
 import org.hyperledger.fabric.sdk.EventHub;
 import org.hyperledger.fabric.sdk.HFClient;
 import org.hyperledger.fabric.sdk.InstallProposalRequest;
@@ -67,6 +70,10 @@ public class FabricClient {
 
 	private ChannelClient channelClient;
 
+	private final RateLimiter rateLimiter = new RateLimiter();
+
+	private BlockEventMode blockEventMode = BlockEventMode.FULL;
+
 	public FabricClient(FabricNetwork network) throws Exception {
 		this(network, createClientInstance());
 	}
@@ -180,6 +187,33 @@ public class FabricClient {
 		return instance;
 	}
 
+	/**
+	 * Return the rate limits applied to transactions submitted through the
+	 * channel clients of this client.
+	 * 
+	 * @return
+	 */
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * Set the blocks the event source peers deliver on channels loaded or
+	 * created afterwards, full blocks by default. Filtered blocks carry enough
+	 * to track commits at a fraction of the traffic, but have no read-write sets
+	 * nor chaincode event payloads: block streams query full blocks by number
+	 * instead, chaincode event subscriptions get events without payloads.
+	 * 
+	 * @param blockEventMode
+	 */
+	public void setBlockEventMode(BlockEventMode blockEventMode) {
+		this.blockEventMode = blockEventMode == null ? BlockEventMode.FULL : blockEventMode;
+	}
+
+	public BlockEventMode getBlockEventMode() {
+		return blockEventMode;
+	}
+
 	public CAClient getDefaultCAClient() {
 		if (defaultCAClient == null && network != null) {
 			try {
@@ -209,7 +243,7 @@ public class FabricClient {
 			channelClient = new ChannelClient(name, channel, this);
 		}
 		if (channelClient == null && network != null) {
-			channel = network.loadChannel(instance, name);
+			channel = network.loadChannel(instance, name, blockEventMode == BlockEventMode.FILTERED);
 			channel.initialize();
 			channelClient = new ChannelClient(name, channel, this);
 		}
@@ -236,7 +270,11 @@ public class FabricClient {
 				for (String peerName : peers) {
 					Peer peer = network.getPeer(instance, peerName);
 					if (peer != null) {
-						channel.addPeer(peer);
+						PeerOptions peerOptions = PeerOptions.createPeerOptions();
+						if (blockEventMode == BlockEventMode.FILTERED) {
+							peerOptions.registerEventsForFilteredBlocks();
+						}
+						channel.addPeer(peer, peerOptions);
 					}
 					EventHub eventHub = network.getEventHub(instance, peerName);
 					if (eventHub != null) {
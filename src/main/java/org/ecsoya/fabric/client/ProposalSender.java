@@ -0,0 +1,209 @@
+package org.ecsoya.fabric.client;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.hyperledger.fabric.protos.peer.FabricProposal.Proposal;
+import org.hyperledger.fabric.protos.peer.FabricProposal.SignedProposal;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse;
+import org.hyperledger.fabric.protos.peer.FabricTransaction.ProcessedTransaction;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.HFClient;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.TransactionInfo;
+import org.hyperledger.fabric.sdk.TransactionRequest;
+import org.hyperledger.fabric.sdk.User;
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+import org.hyperledger.fabric.sdk.exception.ProposalException;
+import org.hyperledger.fabric.sdk.transaction.ProposalBuilder;
+import org.hyperledger.fabric.sdk.transaction.TransactionContext;
+
+/**
+ * Signs a proposal once and sends it to peers one at a time, so that responses
+ * collected from separate calls share the same transaction id and can be sent
+ * to the orderer together.
+ * <p>
+ * The SDK only exposes sending a proposal to a fixed collection of peers at
+ * once, so the per peer send goes through the channel's private
+ * sendProposalToPeers method.
+ * <p>
+ * That method turns a failed gRPC call into a response carrying only a
+ * message, {@link #call(PreparedProposal, Peer)} goes to the peer directly
+ * instead so that the failure keeps its gRPC status.
+ */
+class ProposalSender {
+
+	private static final Method SEND_PROPOSAL_TO_PEERS;
+	private static final Method GET_USER_CONTEXT;
+	private static final Method SEND_PROPOSAL_ASYNC;
+	private static final Constructor<TransactionInfo> NEW_TRANSACTION_INFO;
+
+	static {
+		try {
+			SEND_PROPOSAL_TO_PEERS = Channel.class.getDeclaredMethod("sendProposalToPeers", Collection.class,
+					SignedProposal.class, TransactionContext.class);
+			SEND_PROPOSAL_TO_PEERS.setAccessible(true);
+			GET_USER_CONTEXT = TransactionRequest.class.getDeclaredMethod("getUserContext");
+			GET_USER_CONTEXT.setAccessible(true);
+			SEND_PROPOSAL_ASYNC = Peer.class.getDeclaredMethod("sendProposalAsync", SignedProposal.class);
+			SEND_PROPOSAL_ASYNC.setAccessible(true);
+			NEW_TRANSACTION_INFO = TransactionInfo.class.getDeclaredConstructor(String.class,
+					ProcessedTransaction.class);
+			NEW_TRANSACTION_INFO.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Returns the user context set on the request, null if it is signed by the
+	 * client's user. The SDK keeps the getter package private.
+	 */
+	static User getUserContext(TransactionRequest request) {
+		try {
+			return (User) GET_USER_CONTEXT.invoke(request);
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the transaction as the SDK's queries do, its constructor is
+	 * package private.
+	 */
+	static TransactionInfo newTransactionInfo(String txnId, ProcessedTransaction transaction) {
+		try {
+			return NEW_TRANSACTION_INFO.newInstance(txnId, transaction);
+		} catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A signed proposal ready to be sent to any number of peers.
+	 */
+	static class PreparedProposal {
+
+		private final SignedProposal signedProposal;
+		private final TransactionContext context;
+
+		PreparedProposal(SignedProposal signedProposal, TransactionContext context) {
+			this.signedProposal = signedProposal;
+			this.context = context;
+		}
+
+		String getTransactionId() {
+			return context.getTxID();
+		}
+	}
+
+	private final Channel channel;
+	private final HFClient client;
+
+	ProposalSender(Channel channel, HFClient client) {
+		this.channel = channel;
+		this.client = client;
+	}
+
+	PreparedProposal prepare(TransactionRequest request) throws ProposalException, InvalidArgumentException {
+		if (request == null) {
+			throw new InvalidArgumentException("The proposalRequest is null");
+		}
+		if (request.getFcn() == null || request.getFcn().isEmpty()) {
+			throw new InvalidArgumentException("The proposalRequest's fcn is null or empty.");
+		}
+		if (request.getChaincodeID() == null) {
+			throw new InvalidArgumentException("The proposalRequest's chaincode ID is null");
+		}
+		try {
+			// As the SDK does, the request's user signs if set
+			User userContext = getUserContext(request);
+			if (userContext == null) {
+				userContext = client.getUserContext();
+			}
+			TransactionContext context = new TransactionContext(channel, userContext, client.getCryptoSuite());
+			context.verify(request.doVerify());
+			context.setProposalWaitTime(request.getProposalWaitTime());
+			Proposal proposal = ProposalBuilder.newBuilder().context(context).request(request).build();
+			SignedProposal signedProposal = SignedProposal.newBuilder().setProposalBytes(proposal.toByteString())
+					.setSignature(context.signByteString(proposal.toByteArray())).build();
+			return new PreparedProposal(signedProposal, context);
+		} catch (ProposalException | InvalidArgumentException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ProposalException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	ProposalResponse send(PreparedProposal proposal, Peer peer) throws ProposalException, InvalidArgumentException {
+		try {
+			Collection<ProposalResponse> responses = (Collection<ProposalResponse>) SEND_PROPOSAL_TO_PEERS
+					.invoke(channel, Collections.singletonList(peer), proposal.signedProposal, proposal.context);
+			if (responses == null || responses.isEmpty()) {
+				throw new ProposalException("No response from peer " + peer.getName());
+			}
+			return responses.iterator().next();
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ProposalException) {
+				throw (ProposalException) cause;
+			}
+			if (cause instanceof InvalidArgumentException) {
+				throw (InvalidArgumentException) cause;
+			}
+			throw new ProposalException(cause);
+		} catch (IllegalAccessException e) {
+			throw new ProposalException(e);
+		}
+	}
+
+	/**
+	 * Send the proposal to the peer and wait for its answer, without the
+	 * channel's handling of the response. A call that fails is thrown with the
+	 * gRPC error as its cause.
+	 */
+	@SuppressWarnings("unchecked")
+	FabricProposalResponse.ProposalResponse call(PreparedProposal proposal, Peer peer) throws ProposalException {
+		Future<FabricProposalResponse.ProposalResponse> future;
+		try {
+			future = (Future<FabricProposalResponse.ProposalResponse>) SEND_PROPOSAL_ASYNC.invoke(peer,
+					proposal.signedProposal);
+		} catch (InvocationTargetException e) {
+			throw failure("Sending proposal to peer " + peer.getName() + " failed", e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new ProposalException(e);
+		}
+		try {
+			return future.get(proposal.context.getProposalWaitTime(), TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			throw failure("Proposal to peer " + peer.getName() + " failed", e.getCause());
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			throw new ProposalException("Proposal to peer " + peer.getName() + " timed out", e);
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new ProposalException(e);
+		}
+	}
+
+	private static ProposalException failure(String message, Throwable cause) {
+		if (cause instanceof ProposalException) {
+			return (ProposalException) cause;
+		}
+		if (cause instanceof Exception) {
+			return new ProposalException(message + ": " + cause.getMessage(), (Exception) cause);
+		}
+		return new ProposalException(cause);
+	}
+
+}
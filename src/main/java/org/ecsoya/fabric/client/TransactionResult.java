@@ -0,0 +1,81 @@
+package org.ecsoya.fabric.client;
+
+import org.hyperledger.fabric.protos.peer.FabricTransaction.TxValidationCode;
+import org.hyperledger.fabric.sdk.BlockEvent.TransactionEvent;
+
+/**
+ * Result of a submitted transaction. Depending on the {@link CommitStrategy}
+ * the transaction may not be committed yet, in which case only its id is
+ * known.
+ */
+public class TransactionResult {
+
+	private final String transactionId;
+	private final long blockNumber;
+	private final TxValidationCode validationCode;
+
+	public TransactionResult(String transactionId, long blockNumber, TxValidationCode validationCode) {
+		this.transactionId = transactionId;
+		this.blockNumber = blockNumber;
+		this.validationCode = validationCode;
+	}
+
+	/**
+	 * Result of a transaction that has not been committed yet.
+	 */
+	public static TransactionResult uncommitted(String transactionId) {
+		return new TransactionResult(transactionId, -1, null);
+	}
+
+	public static TransactionResult fromEvent(TransactionEvent event) {
+		TxValidationCode code = TxValidationCode.forNumber(event.getValidationCode());
+		return new TransactionResult(event.getTransactionID(), event.getBlockEvent().getBlockNumber(),
+				code == null ? TxValidationCode.UNRECOGNIZED : code);
+	}
+
+	public String getTransactionId() {
+		return transactionId;
+	}
+
+	/**
+	 * Returns the number of the block the transaction was committed in, -1 if not
+	 * known.
+	 */
+	public long getBlockNumber() {
+		return blockNumber;
+	}
+
+	/**
+	 * Returns the validation code of the committed transaction, null if not
+	 * known.
+	 */
+	public TxValidationCode getValidationCode() {
+		return validationCode;
+	}
+
+	public boolean isCommitted() {
+		return validationCode != null;
+	}
+
+	/**
+	 * Returns a token for queries that must see this transaction, null if the
+	 * transaction is not known to be committed.
+	 * 
+	 * @see ChannelClient#evaluateAsync(org.hyperledger.fabric.sdk.QueryByChaincodeRequest,
+	 *      ConsistencyToken)
+	 */
+	public ConsistencyToken getConsistencyToken() {
+		return blockNumber < 0 ? null : new ConsistencyToken(blockNumber);
+	}
+
+	public boolean isValid() {
+		return validationCode == TxValidationCode.VALID;
+	}
+
+	@Override
+	public String toString() {
+		return "TransactionResult [transactionId=" + transactionId + ", blockNumber=" + blockNumber
+				+ ", validationCode=" + validationCode + "]";
+	}
+
+}
@@ -0,0 +1,276 @@
+package org.ecsoya.fabric.client.endorser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.ecsoya.fabric.client.node.CircuitBreaker;
+import org.ecsoya.fabric.client.node.NodeStatsRegistry;
+import org.hyperledger.fabric.sdk.ChaincodeResponse;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.exception.ProposalException;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Sends a proposal to several peers in parallel and completes as soon as
+ * enough consistent endorsements have arrived, either satisfying the
+ * endorsement policy or reaching the configured quorum. Proposals still in
+ * flight at that point are cancelled and the time they had been waiting is
+ * recorded as skipped in the peer's
+ * {@link org.ecsoya.fabric.client.node.NodeStats}.
+ * <p>
+ * With a {@link HedgePolicy}, a peer that has not answered within its latency
+ * percentile is backed up by another peer of the same organization. Both fill
+ * the same slot and whichever answers first counts.
+ */
+public class EndorsementCollector {
+
+	/**
+	 * Sends the proposal to a single peer.
+	 */
+	public interface ProposalCall {
+		ProposalResponse send(Peer peer) throws Exception;
+	}
+
+	private final Executor executor;
+	private final ScheduledExecutorService scheduler;
+	private final NodeStatsRegistry nodeStats;
+	private final Function<Peer, String> mspId;
+
+	public EndorsementCollector(Executor executor, ScheduledExecutorService scheduler, NodeStatsRegistry nodeStats,
+			Function<Peer, String> mspId) {
+		this.executor = executor;
+		this.scheduler = scheduler;
+		this.nodeStats = nodeStats;
+		this.mspId = mspId;
+	}
+
+	public CompletableFuture<Collection<ProposalResponse>> collect(Collection<Peer> peers,
+			EndorsementPolicyEvaluator policy, int quorum, ProposalCall call) {
+		return collect(peers, Collections.emptyList(), policy, quorum, null, call);
+	}
+
+	/**
+	 * Collect endorsements from the peers.
+	 *
+	 * @param peers   The peers to send the proposal to
+	 * @param backups The peers a slow peer may be hedged with
+	 * @param policy  The endorsement policy of the chaincode, may be null
+	 * @param quorum  The number of consistent endorsements to wait for when there
+	 *                is no policy, 0 or less to wait for all peers
+	 * @param hedging The hedge policy, null to disable hedging
+	 * @param call    Sends the proposal to one peer
+	 * @return A future of consistent, successful responses
+	 */
+	public CompletableFuture<Collection<ProposalResponse>> collect(Collection<Peer> peers, Collection<Peer> backups,
+			EndorsementPolicyEvaluator policy, int quorum, HedgePolicy hedging, ProposalCall call) {
+		if (peers.isEmpty()) {
+			CompletableFuture<Collection<ProposalResponse>> failed = new CompletableFuture<>();
+			failed.completeExceptionally(new ProposalException("No peer to send the proposal to"));
+			return failed;
+		}
+		int required = quorum > 0 ? Math.min(quorum, peers.size()) : peers.size();
+		Round round = new Round(policy, required, call);
+		Runnable completion = round.start(peers);
+		if (completion != null) {
+			completion.run();
+			return round.result;
+		}
+		if (hedging != null && scheduler != null) {
+			hedging.deposit(peers.size());
+			for (Peer peer : peers) {
+				long delay = hedging.delayMillis(nodeStats.get(peer).getHistogram());
+				if (delay >= 0) {
+					scheduler.schedule(() -> round.hedge(peer, backups, hedging), delay, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		return round.result;
+	}
+
+	private class Round {
+
+		private final CompletableFuture<Collection<ProposalResponse>> result = new CompletableFuture<>();
+		private final EndorsementPolicyEvaluator policy;
+		private final int required;
+		private final ProposalCall call;
+
+		private final Map<Peer, Future<?>> pending = new HashMap<>();
+		private final Map<Peer, Long> started = new HashMap<>();
+		private final Map<Peer, Long> permits = new HashMap<>();
+		// The primary peer whose slot each peer fills
+		private final Map<Peer, Peer> slots = new HashMap<>();
+		private final Map<ByteString, List<ProposalResponse>> consistent = new LinkedHashMap<>();
+		private final List<String> errors = new ArrayList<>();
+
+		Round(EndorsementPolicyEvaluator policy, int required, ProposalCall call) {
+			this.policy = policy;
+			this.required = required;
+			this.call = call;
+		}
+
+		// Returns the completion of the round if no peer could be sent to
+		synchronized Runnable start(Collection<Peer> peers) {
+			for (Peer peer : peers) {
+				if (started.containsKey(peer)) {
+					continue;
+				}
+				slots.put(peer, peer);
+				long permit = nodeStats.get(peer).tryBegin();
+				if (permit == CircuitBreaker.REFUSED) {
+					errors.add(peer.getName() + ": circuit open");
+				} else {
+					send(peer, permit);
+				}
+			}
+			return pending.isEmpty() ? finish() : null;
+		}
+
+		synchronized void hedge(Peer primary, Collection<Peer> backups, HedgePolicy hedging) {
+			if (result.isDone() || !pending.containsKey(primary)) {
+				return;
+			}
+			String msp = mspId.apply(primary);
+			if (msp == null) {
+				return;
+			}
+			Peer backup = null;
+			for (Peer candidate : backups) {
+				if (started.containsKey(candidate) || !msp.equals(mspId.apply(candidate))
+						|| !nodeStats.get(candidate).isAvailable()) {
+					continue;
+				}
+				if (backup == null
+						|| nodeStats.get(candidate).getLatencyMillis() < nodeStats.get(backup).getLatencyMillis()) {
+					backup = candidate;
+				}
+			}
+			if (backup == null || !hedging.tryAcquire()) {
+				return;
+			}
+			long permit = nodeStats.get(backup).tryBegin();
+			if (permit == CircuitBreaker.REFUSED) {
+				hedging.release();
+				return;
+			}
+			slots.put(backup, primary);
+			send(backup, permit);
+		}
+
+		// Send to a peer that granted the permit, must be called holding the lock
+		void send(Peer peer, long permit) {
+			started.put(peer, System.nanoTime());
+			permits.put(peer, permit);
+			FutureTask<Void> task = new FutureTask<>(() -> {
+				ProposalResponse response = null;
+				Throwable error = null;
+				try {
+					response = call.send(peer);
+				} catch (Throwable e) {
+					error = e;
+				}
+				Runnable completion = received(peer, response, error);
+				if (completion != null) {
+					completion.run();
+				}
+			}, null);
+			pending.put(peer, task);
+			executor.execute(task);
+		}
+
+		private synchronized Runnable received(Peer peer, ProposalResponse response, Throwable error) {
+			if (pending.remove(peer) == null) {
+				return null;
+			}
+			boolean success = error == null && response != null
+					&& response.getStatus() == ChaincodeResponse.Status.SUCCESS;
+			boolean reachable = error == null && response != null && response.getProposalResponse() != null;
+			nodeStats.get(peer).end(permits.get(peer), System.nanoTime() - started.get(peer), success, reachable);
+			if (result.isDone()) {
+				return null;
+			}
+			if (success) {
+				List<ProposalResponse> group = consistent.computeIfAbsent(
+						response.getProposalResponse().getPayload(), k -> new ArrayList<>());
+				group.add(response);
+				if (isSatisfied(group)) {
+					cancelPending();
+					return () -> result.complete(group);
+				}
+			} else {
+				String message = error != null ? error.getMessage()
+						: response == null ? "no response" : response.getMessage();
+				errors.add(peer.getName() + ": " + message);
+			}
+			if (pending.isEmpty()) {
+				return finish();
+			}
+			return null;
+		}
+
+		private boolean isSatisfied(List<ProposalResponse> group) {
+			if (policy == null) {
+				return filled(group).size() >= required;
+			}
+			List<String> msps = new ArrayList<>(group.size());
+			for (ProposalResponse response : group) {
+				msps.add(mspId.apply(response.getPeer()));
+			}
+			return policy.isSatisfiedBy(msps);
+		}
+
+		private Set<Peer> filled(List<ProposalResponse> group) {
+			Set<Peer> filled = new HashSet<>();
+			for (ProposalResponse response : group) {
+				filled.add(slots.get(response.getPeer()));
+			}
+			return filled;
+		}
+
+		// Every peer has answered without the policy or quorum being met
+		private Runnable finish() {
+			if (policy == null && consistent.size() == 1) {
+				List<ProposalResponse> group = consistent.values().iterator().next();
+				if (filled(group).containsAll(slots.values())) {
+					// Every slot endorsed but there are fewer than the quorum, without
+					// a policy leave the decision to the committing peers
+					return () -> result.complete(group);
+				}
+			}
+			String message;
+			if (consistent.size() > 1) {
+				message = "Endorsements are inconsistent";
+			} else if (!errors.isEmpty()) {
+				message = "Endorsement failed on " + errors;
+			} else {
+				message = "Endorsements do not satisfy the endorsement policy";
+			}
+			return () -> result.completeExceptionally(new ProposalException(message));
+		}
+
+		private void cancelPending() {
+			long now = System.nanoTime();
+			for (Map.Entry<Peer, Future<?>> entry : pending.entrySet()) {
+				entry.getValue().cancel(true);
+				Peer peer = entry.getKey();
+				nodeStats.get(peer).skip(permits.get(peer), now - started.get(peer));
+			}
+			pending.clear();
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package org.ecsoya.fabric.client.endorser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+import org.hyperledger.fabric.protos.common.MspPrincipal.MSPPrincipal;
+import org.hyperledger.fabric.protos.common.MspPrincipal.MSPRole;
+import org.hyperledger.fabric.protos.common.MspPrincipal.MSPRole.MSPRoleType;
+import org.hyperledger.fabric.protos.common.Policies.SignaturePolicy;
+import org.hyperledger.fabric.protos.common.Policies.SignaturePolicyEnvelope;
+import org.hyperledger.fabric.sdk.ChaincodeEndorsementPolicy;
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * A chaincode endorsement policy compiled into an in-memory rule tree, able to
+ * tell whether a set of endorsing organizations satisfies the policy.
+ * <p>
+ * Evaluation follows the peer's signature policy semantics: every endorsement
+ * is used by at most one principal, so "2 out of Org1.member, Org1.member"
+ * needs endorsements from two different Org1 peers.
+ */
+public class EndorsementPolicyEvaluator {
+
+	private interface Rule {
+		boolean evaluate(String[] endorsers, boolean[] used);
+	}
+
+	private final Rule root;
+
+	private EndorsementPolicyEvaluator(Rule root) {
+		this.root = root;
+	}
+
+	public static EndorsementPolicyEvaluator compile(ChaincodeEndorsementPolicy policy)
+			throws InvalidArgumentException {
+		if (policy == null) {
+			throw new InvalidArgumentException("Endorsement policy can't be null.");
+		}
+		return compile(policy.getChaincodeEndorsementPolicyAsBytes());
+	}
+
+	public static EndorsementPolicyEvaluator compile(byte[] policyBytes) throws InvalidArgumentException {
+		try {
+			SignaturePolicyEnvelope envelope = SignaturePolicyEnvelope.parseFrom(policyBytes);
+			List<String> principals = new ArrayList<>();
+			for (MSPPrincipal principal : envelope.getIdentitiesList()) {
+				principals.add(toMspId(principal));
+			}
+			return new EndorsementPolicyEvaluator(compileRule(envelope.getRule(), principals));
+		} catch (InvalidProtocolBufferException e) {
+			throw new InvalidArgumentException(e);
+		}
+	}
+
+	// Returns the MSP a peer endorsement must come from to match the principal,
+	// or null if no peer endorsement can match it.
+	private static String toMspId(MSPPrincipal principal) throws InvalidProtocolBufferException {
+		if (principal.getPrincipalClassification() != MSPPrincipal.Classification.ROLE) {
+			return null;
+		}
+		MSPRole role = MSPRole.parseFrom(principal.getPrincipal());
+		if (role.getRole() != MSPRoleType.MEMBER && role.getRole() != MSPRoleType.PEER) {
+			return null;
+		}
+		return role.getMspIdentifier();
+	}
+
+	private static Rule compileRule(SignaturePolicy policy, List<String> principals)
+			throws InvalidArgumentException {
+		switch (policy.getTypeCase()) {
+		case SIGNED_BY:
+			int index = policy.getSignedBy();
+			if (index < 0 || index >= principals.size()) {
+				throw new InvalidArgumentException("Endorsement policy refers to unknown identity " + index);
+			}
+			String mspId = principals.get(index);
+			return (endorsers, used) -> {
+				if (mspId == null) {
+					return false;
+				}
+				for (int i = 0; i < endorsers.length; i++) {
+					if (!used[i] && mspId.equals(endorsers[i])) {
+						used[i] = true;
+						return true;
+					}
+				}
+				return false;
+			};
+		case N_OUT_OF:
+			int n = policy.getNOutOf().getN();
+			List<Rule> rules = new ArrayList<>();
+			for (SignaturePolicy rule : policy.getNOutOf().getRulesList()) {
+				rules.add(compileRule(rule, principals));
+			}
+			return (endorsers, used) -> {
+				int verified = 0;
+				boolean[] attempt = new boolean[used.length];
+				for (Rule rule : rules) {
+					System.arraycopy(used, 0, attempt, 0, used.length);
+					if (rule.evaluate(endorsers, attempt)) {
+						verified++;
+						System.arraycopy(attempt, 0, used, 0, used.length);
+					}
+				}
+				return verified >= n;
+			};
+		default:
+			throw new InvalidArgumentException("Unsupported endorsement policy rule " + policy.getTypeCase());
+		}
+	}
+
+	/**
+	 * Returns true if endorsements from the given MSPs satisfy the policy. Each
+	 * element stands for one endorsement.
+	 * 
+	 * @param endorserMspIds
+	 * @return
+	 */
+	public boolean isSatisfiedBy(List<String> endorserMspIds) {
+		String[] endorsers = endorserMspIds.toArray(new String[endorserMspIds.size()]);
+		return root.evaluate(endorsers, new boolean[endorsers.length]);
+	}
+
+	/**
+	 * Computes a small, low cost set of endorsers satisfying the policy. Endorsers
+	 * are added in order of increasing cost until the policy is satisfied, then
+	 * every endorser the policy does not need is dropped again, most expensive
+	 * first.
+	 * 
+	 * @param candidates The possible endorsers
+	 * @param mspId      Returns the MSP of an endorser
+	 * @param cost       Returns the cost of an endorser, e.g. its latency
+	 * @return The selected endorsers, or null if all candidates together can not
+	 *         satisfy the policy
+	 */
+	public <T> List<T> selectEndorsers(List<T> candidates, Function<T, String> mspId, ToDoubleFunction<T> cost) {
+		List<T> sorted = new ArrayList<>(candidates);
+		Collections.sort(sorted, Comparator.comparingDouble(cost));
+
+		List<T> selected = new ArrayList<>();
+		List<String> msps = new ArrayList<>();
+		for (T candidate : sorted) {
+			String msp = mspId.apply(candidate);
+			if (msp == null) {
+				continue;
+			}
+			selected.add(candidate);
+			msps.add(msp);
+			if (isSatisfiedBy(msps)) {
+				for (int i = selected.size() - 1; i >= 0; i--) {
+					String removed = msps.remove(i);
+					if (isSatisfiedBy(msps)) {
+						selected.remove(i);
+					} else {
+						msps.add(i, removed);
+					}
+				}
+				return selected;
+			}
+		}
+		return null;
+	}
+
+}
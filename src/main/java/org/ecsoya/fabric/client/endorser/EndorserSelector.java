@@ -0,0 +1,27 @@
+package org.ecsoya.fabric.client.endorser;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.ecsoya.fabric.client.ChannelClient;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.TransactionRequest;
+
+/**
+ * Chooses the peers a proposal is sent to. Built-in strategies are available
+ * from {@link EndorserSelectors}.
+ */
+public interface EndorserSelector {
+
+	/**
+	 * Select the peers to send the request to.
+	 * 
+	 * @param client     The channel client sending the request
+	 * @param request    The transaction or query request
+	 * @param candidates The peers of the channel having the role required by the
+	 *                   request, never empty
+	 * @return The selected peers, a subset of the candidates
+	 */
+	Collection<Peer> select(ChannelClient client, TransactionRequest request, List<Peer> candidates);
+
+}
@@ -0,0 +1,152 @@
+package org.ecsoya.fabric.client.endorser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ecsoya.fabric.client.ChannelClient;
+import org.ecsoya.fabric.client.node.NodeStats;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.TransactionRequest;
+
+/**
+ * Built-in {@link EndorserSelector} strategies.
+ */
+public final class EndorserSelectors {
+
+	private EndorserSelectors() {
+	}
+
+	/**
+	 * Send to every candidate peer.
+	 */
+	public static EndorserSelector all() {
+		return (client, request, candidates) -> candidates;
+	}
+
+	/**
+	 * Send to a single peer, rotating over the candidates.
+	 */
+	public static EndorserSelector roundRobin() {
+		return new RoundRobinSelector();
+	}
+
+	/**
+	 * Send to the single peer with the fewest requests in flight.
+	 */
+	public static EndorserSelector leastOutstanding() {
+		return new LeastOutstandingSelector();
+	}
+
+	/**
+	 * Send to the single peer with the lowest moving average latency.
+	 */
+	public static EndorserSelector lowestLatency() {
+		return new LowestLatencySelector();
+	}
+
+	/**
+	 * Send to one peer of each organization, picking the lowest latency peer
+	 * within an organization.
+	 */
+	public static EndorserSelector onePerOrg() {
+		return onePerOrg(lowestLatency());
+	}
+
+	/**
+	 * Send to one peer of each organization, picking it with the given strategy.
+	 */
+	public static EndorserSelector onePerOrg(EndorserSelector withinOrg) {
+		return new OnePerOrgSelector(withinOrg);
+	}
+
+	/**
+	 * Send to the lowest latency set of peers satisfying the chaincode's
+	 * endorsement policy, or to every candidate when the policy is unknown.
+	 */
+	public static EndorserSelector policyAware() {
+		return new PolicyEndorserSelector(all());
+	}
+
+	/**
+	 * Send to the lowest latency set of peers satisfying the chaincode's
+	 * endorsement policy, or use the fallback when the policy is unknown.
+	 */
+	public static EndorserSelector policyAware(EndorserSelector fallback) {
+		return new PolicyEndorserSelector(fallback);
+	}
+
+	static class RoundRobinSelector implements EndorserSelector {
+
+		private final AtomicInteger next = new AtomicInteger();
+
+		@Override
+		public Collection<Peer> select(ChannelClient client, TransactionRequest request, List<Peer> candidates) {
+			int index = Math.floorMod(next.getAndIncrement(), candidates.size());
+			return Collections.singletonList(candidates.get(index));
+		}
+	}
+
+	static class LeastOutstandingSelector implements EndorserSelector {
+
+		@Override
+		public Collection<Peer> select(ChannelClient client, TransactionRequest request, List<Peer> candidates) {
+			Peer best = null;
+			NodeStats bestStats = null;
+			for (Peer peer : candidates) {
+				NodeStats stats = client.getNodeStats().get(peer);
+				if (best == null || stats.getOutstanding() < bestStats.getOutstanding()
+						|| (stats.getOutstanding() == bestStats.getOutstanding()
+								&& stats.getLatencyMillis() < bestStats.getLatencyMillis())) {
+					best = peer;
+					bestStats = stats;
+				}
+			}
+			return Collections.singletonList(best);
+		}
+	}
+
+	static class LowestLatencySelector implements EndorserSelector {
+
+		@Override
+		public Collection<Peer> select(ChannelClient client, TransactionRequest request, List<Peer> candidates) {
+			Peer best = null;
+			double bestLatency = Double.MAX_VALUE;
+			for (Peer peer : candidates) {
+				double latency = client.getNodeStats().get(peer).getLatencyMillis();
+				if (latency < bestLatency) {
+					best = peer;
+					bestLatency = latency;
+				}
+			}
+			return Collections.singletonList(best);
+		}
+	}
+
+	static class OnePerOrgSelector implements EndorserSelector {
+
+		private final EndorserSelector withinOrg;
+
+		OnePerOrgSelector(EndorserSelector withinOrg) {
+			this.withinOrg = withinOrg;
+		}
+
+		@Override
+		public Collection<Peer> select(ChannelClient client, TransactionRequest request, List<Peer> candidates) {
+			Map<String, List<Peer>> byOrg = new LinkedHashMap<>();
+			for (Peer peer : candidates) {
+				String mspId = client.getPeerMspId(peer);
+				byOrg.computeIfAbsent(mspId == null ? peer.getName() : mspId, k -> new ArrayList<>()).add(peer);
+			}
+			List<Peer> selected = new ArrayList<>();
+			for (List<Peer> orgPeers : byOrg.values()) {
+				selected.addAll(withinOrg.select(client, request, orgPeers));
+			}
+			return selected;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package org.ecsoya.fabric.client.endorser;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ecsoya.fabric.client.node.LatencyHistogram;
+
+/**
+ * Configures hedged endorsement: when a peer has not answered within its
+ * observed latency percentile, the same signed proposal is also sent to
+ * another peer of the same organization and the first valid response wins.
+ * <p>
+ * Hedges are paid from a budget that earns {@code maxExtraLoad} tokens per
+ * proposal and holds at most {@code burst} tokens, so hedging never adds more
+ * than that share of extra proposals over time.
+ */
+public class HedgePolicy {
+
+	private double percentile = 95;
+	private long minDelayMillis = 10;
+	private long minSamples = 20;
+	private double maxExtraLoad = 0.1;
+	private double burst = 10;
+
+	private double tokens;
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong denied = new AtomicLong();
+
+	/**
+	 * The latency percentile of the primary peer after which a hedge is sent.
+	 */
+	public HedgePolicy percentile(double percentile) {
+		if (percentile <= 0 || percentile >= 100) {
+			throw new IllegalArgumentException("Percentile should be between 0 and 100.");
+		}
+		this.percentile = percentile;
+		return this;
+	}
+
+	/**
+	 * The minimum time to wait before hedging, whatever the percentile says.
+	 */
+	public HedgePolicy minDelayMillis(long minDelayMillis) {
+		this.minDelayMillis = minDelayMillis;
+		return this;
+	}
+
+	/**
+	 * The number of latency samples a peer needs before it is hedged.
+	 */
+	public HedgePolicy minSamples(long minSamples) {
+		this.minSamples = minSamples;
+		return this;
+	}
+
+	/**
+	 * The share of extra proposals hedging may add, e.g. 0.1 for 10%.
+	 */
+	public HedgePolicy maxExtraLoad(double maxExtraLoad) {
+		if (maxExtraLoad < 0) {
+			throw new IllegalArgumentException("maxExtraLoad can't be negative.");
+		}
+		this.maxExtraLoad = maxExtraLoad;
+		return this;
+	}
+
+	/**
+	 * The number of hedges that may be sent in a row once the budget is full.
+	 */
+	public HedgePolicy burst(double burst) {
+		this.burst = burst;
+		return this;
+	}
+
+	/**
+	 * Returns the hedge delay for a peer with the given latency histogram, or -1
+	 * if the peer should not be hedged yet.
+	 */
+	long delayMillis(LatencyHistogram histogram) {
+		if (histogram.getCount() < minSamples) {
+			return -1;
+		}
+		return Math.max(minDelayMillis, (long) Math.ceil(histogram.getPercentileMillis(percentile)));
+	}
+
+	synchronized void deposit(int proposals) {
+		tokens = Math.min(burst, tokens + proposals * maxExtraLoad);
+	}
+
+	synchronized boolean tryAcquire() {
+		if (tokens >= 1) {
+			tokens -= 1;
+			hedges.incrementAndGet();
+			return true;
+		}
+		denied.incrementAndGet();
+		return false;
+	}
+
+	// Give back the token of a hedge that could not be sent
+	synchronized void release() {
+		tokens = Math.min(burst, tokens + 1);
+		hedges.decrementAndGet();
+	}
+
+	/**
+	 * Returns the number of hedged proposals sent.
+	 */
+	public long getHedges() {
+		return hedges.get();
+	}
+
+	/**
+	 * Returns the number of hedges not sent because the budget was exhausted.
+	 */
+	public long getDenied() {
+		return denied.get();
+	}
+
+}
@@ -0,0 +1,41 @@
+package org.ecsoya.fabric.client.endorser;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.ecsoya.fabric.client.ChannelClient;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.TransactionRequest;
+
+/**
+ * Sends a proposal to the lowest latency set of peers that satisfies the
+ * endorsement policy registered for the chaincode on the channel client.
+ * Requests for chaincodes without a known policy, or whose policy the
+ * candidates can not satisfy, are handed to the fallback selector.
+ * 
+ * @see ChannelClient#setEndorsementPolicy(String,
+ *      org.hyperledger.fabric.sdk.ChaincodeEndorsementPolicy)
+ */
+public class PolicyEndorserSelector implements EndorserSelector {
+
+	private final EndorserSelector fallback;
+
+	public PolicyEndorserSelector(EndorserSelector fallback) {
+		this.fallback = fallback == null ? EndorserSelectors.all() : fallback;
+	}
+
+	@Override
+	public Collection<Peer> select(ChannelClient client, TransactionRequest request, List<Peer> candidates) {
+		String chaincode = request.getChaincodeID() == null ? null : request.getChaincodeID().getName();
+		EndorsementPolicyEvaluator policy = chaincode == null ? null : client.getEndorsementPolicy(chaincode);
+		if (policy != null) {
+			List<Peer> selected = policy.selectEndorsers(candidates, client::getPeerMspId,
+					peer -> client.getNodeStats().get(peer).getLatencyMillis());
+			if (selected != null) {
+				return selected;
+			}
+		}
+		return fallback.select(client, request, candidates);
+	}
+
+}
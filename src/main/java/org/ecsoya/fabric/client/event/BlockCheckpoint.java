@@ -0,0 +1,65 @@
+package org.ecsoya.fabric.client.event;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The number of the last block a consumer has processed, kept in a file. The
+ * file is replaced atomically by writing a temporary file next to it, syncing
+ * it and renaming it over the old one, so that a crash leaves either the old
+ * or the new block number.
+ */
+public class BlockCheckpoint {
+
+	private final File file;
+
+	public BlockCheckpoint(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the number of the last processed block, -1 if none was saved.
+	 */
+	public long load() throws IOException {
+		if (!file.exists()) {
+			return -1;
+		}
+		String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+		try {
+			return Long.parseLong(content);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid block checkpoint " + file + ": " + content, e);
+		}
+	}
+
+	/**
+	 * Save the number of the last processed block.
+	 */
+	public void save(long blockNumber) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		byte[] content = (blockNumber + "\n").getBytes(StandardCharsets.UTF_8);
+		try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(content);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
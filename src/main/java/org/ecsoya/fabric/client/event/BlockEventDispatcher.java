@@ -0,0 +1,192 @@
+package org.ecsoya.fabric.client.event;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockListener;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.Channel.PeerOptions;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.Peer.PeerRole;
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+
+/**
+ * The single block listener registered on a channel, shared by every consumer
+ * of block events of a {@link org.ecsoya.fabric.client.ChannelClient}.
+ * <p>
+ * The channel delivers each block once per event source. Peer listeners see
+ * every delivery, which tells them which peer has committed what. Block
+ * listeners see each block only once, from whichever peer delivered it first.
+ * <p>
+ * Each listener declares the {@link BlockEventMode} it needs. Whether the
+ * peers deliver full or filtered blocks is set by their
+ * {@link PeerOptions} when they are added to the channel, the dispatcher
+ * never changes it. A listener needing full blocks on a channel delivering
+ * filtered blocks is logged, {@link BlockEvent#isFiltered()} tells the
+ * listener which kind it got.
+ */
+public class BlockEventDispatcher implements BlockListener {
+
+	private static final Logger logger = Logger.getLogger(BlockEventDispatcher.class.getName());
+
+	private final Channel channel;
+	private final CopyOnWriteArrayList<BlockListener> peerListeners = new CopyOnWriteArrayList<>();
+	private final CopyOnWriteArrayList<BlockListener> blockListeners = new CopyOnWriteArrayList<>();
+	private final Map<BlockListener, BlockEventMode> modes = new ConcurrentHashMap<>();
+
+	private String handle;
+	private long highestBlock = -1;
+
+	public BlockEventDispatcher(Channel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Register on the channel, does nothing if already started.
+	 */
+	public synchronized void start() throws InvalidArgumentException {
+		if (handle != null) {
+			return;
+		}
+		handle = channel.registerBlockListener(this);
+	}
+
+	public synchronized void stop() {
+		if (handle != null) {
+			try {
+				channel.unregisterBlockListener(handle);
+			} catch (InvalidArgumentException e) {
+				logger.log(Level.FINE, "Unregister block listener failed", e);
+			}
+			handle = null;
+		}
+	}
+
+	public synchronized boolean isStarted() {
+		return handle != null;
+	}
+
+	/**
+	 * Returns the number of the highest block received, -1 if none.
+	 */
+	public synchronized long getHighestBlock() {
+		return highestBlock;
+	}
+
+	/**
+	 * Returns the blocks the channel's event source peers deliver: filtered if
+	 * every one of them was added for filtered blocks, full otherwise.
+	 */
+	public BlockEventMode getDeliveryMode() {
+		boolean filtered = false;
+		for (Peer peer : channel.getPeers()) {
+			PeerOptions options = channel.getPeersOptions(peer);
+			if (options == null || !options.getPeerRoles().contains(PeerRole.EVENT_SOURCE)) {
+				continue;
+			}
+			if (!options.isRegisterEventsForFilteredBlocks()) {
+				return BlockEventMode.FULL;
+			}
+			filtered = true;
+		}
+		return filtered ? BlockEventMode.FILTERED : BlockEventMode.FULL;
+	}
+
+	/**
+	 * Add a listener receiving the event of every peer for every block, needing
+	 * full blocks.
+	 */
+	public void addPeerListener(BlockListener listener) {
+		addPeerListener(listener, BlockEventMode.FULL);
+	}
+
+	/**
+	 * Add a listener receiving the event of every peer for every block.
+	 */
+	public void addPeerListener(BlockListener listener, BlockEventMode mode) {
+		checkMode(listener, mode);
+		modes.put(listener, mode);
+		peerListeners.add(listener);
+	}
+
+	public void removePeerListener(BlockListener listener) {
+		peerListeners.remove(listener);
+		removeMode(listener);
+	}
+
+	/**
+	 * Add a listener receiving every block once, in increasing block number,
+	 * needing full blocks.
+	 */
+	public void addBlockListener(BlockListener listener) {
+		addBlockListener(listener, BlockEventMode.FULL);
+	}
+
+	/**
+	 * Add a listener receiving every block once, in increasing block number.
+	 */
+	public void addBlockListener(BlockListener listener, BlockEventMode mode) {
+		checkMode(listener, mode);
+		modes.put(listener, mode);
+		blockListeners.add(listener);
+	}
+
+	public void removeBlockListener(BlockListener listener) {
+		blockListeners.remove(listener);
+		removeMode(listener);
+	}
+
+	private void removeMode(BlockListener listener) {
+		if (!peerListeners.contains(listener) && !blockListeners.contains(listener)) {
+			modes.remove(listener);
+		}
+	}
+
+	/**
+	 * Returns the delivery the listeners need: full blocks if any listener needs
+	 * them, null if there is no listener.
+	 */
+	public BlockEventMode getRequiredMode() {
+		if (modes.isEmpty()) {
+			return null;
+		}
+		return modes.containsValue(BlockEventMode.FULL) ? BlockEventMode.FULL : BlockEventMode.FILTERED;
+	}
+
+	private void checkMode(BlockListener listener, BlockEventMode mode) {
+		if (mode == BlockEventMode.FULL && getDeliveryMode() == BlockEventMode.FILTERED) {
+			logger.log(Level.WARNING, "Block listener " + listener + " needs full blocks, channel "
+					+ channel.getName() + " delivers filtered blocks");
+		}
+	}
+
+	@Override
+	public void received(BlockEvent blockEvent) {
+		for (BlockListener listener : peerListeners) {
+			dispatch(listener, blockEvent);
+		}
+		// The channel delivers events one at a time, holding the lock keeps
+		// unique blocks in order should that change
+		synchronized (this) {
+			if (blockEvent.getBlockNumber() <= highestBlock) {
+				return;
+			}
+			highestBlock = blockEvent.getBlockNumber();
+			for (BlockListener listener : blockListeners) {
+				dispatch(listener, blockEvent);
+			}
+		}
+	}
+
+	private void dispatch(BlockListener listener, BlockEvent blockEvent) {
+		try {
+			listener.received(blockEvent);
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Block listener failed on block " + blockEvent.getBlockNumber(), e);
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package org.ecsoya.fabric.client.event;
+
+/**
+ * What a block listener needs the peers to deliver.
+ */
+public enum BlockEventMode {
+	/**
+	 * Full blocks, with every transaction's envelope, read-write sets and
+	 * chaincode event payloads.
+	 */
+	FULL,
+	/**
+	 * Filtered blocks, carrying the block number and for each transaction its
+	 * id, type, validation code and the names of its chaincode events without
+	 * their payloads. Enough to track commits at a fraction of the traffic.
+	 */
+	FILTERED
+}
@@ -0,0 +1,329 @@
+package org.ecsoya.fabric.client.event;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.BlockListener;
+import org.hyperledger.fabric.sdk.Channel;
+
+/**
+ * Delivers the blocks of a channel to a consumer in order, one at a time,
+ * from a start block on. Blocks committed before the stream caught up are
+ * queried by number, then blocks are taken from the live block events.
+ * <p>
+ * At most {@code bufferSize} live blocks are held while the consumer is
+ * busy. Live blocks arriving while the buffer is full are dropped and
+ * queried by number when their turn comes, so a slow consumer never blocks
+ * the channel's event thread.
+ * <p>
+ * With a {@link BlockCheckpoint}, the number of each processed block is saved
+ * after the consumer returned, and the stream resumes after it on the next
+ * start. Delivery is at least once: a block whose consumer returned but whose
+ * number was not saved yet, because of a crash or a checkpoint interval
+ * above one, is delivered again. A consumer needing exactly once has to
+ * commit its own effects and the block number together, or ignore blocks it
+ * has already applied.
+ */
+public class BlockStream implements BlockListener {
+
+	/**
+	 * Processes one block.
+	 */
+	public interface BlockConsumer {
+		void accept(BlockInfo block) throws Exception;
+	}
+
+	private static final Logger logger = Logger.getLogger(BlockStream.class.getName());
+
+	private final Channel channel;
+	private final BlockEventDispatcher dispatcher;
+	private final BlockConsumer consumer;
+
+	private long startBlock;
+	private BlockCheckpoint checkpoint;
+	private int checkpointInterval = 1;
+	private int bufferSize = 256;
+	private BlockEventMode mode = BlockEventMode.FULL;
+	private long retryMillis = 1000;
+
+	private final ArrayDeque<BlockInfo> buffer = new ArrayDeque<>();
+	private long knownHeight;
+	private long next = -1;
+	private long dropped;
+	private Thread thread;
+	private volatile boolean running;
+	private volatile Throwable failure;
+
+	public BlockStream(Channel channel, BlockEventDispatcher dispatcher, BlockConsumer consumer) {
+		this.channel = channel;
+		this.dispatcher = dispatcher;
+		this.consumer = consumer;
+	}
+
+	/**
+	 * The first block to deliver when there is no checkpoint, 0 by default.
+	 */
+	public synchronized BlockStream from(long startBlock) {
+		if (startBlock < 0) {
+			throw new IllegalArgumentException("Start block can't be negative.");
+		}
+		this.startBlock = startBlock;
+		return this;
+	}
+
+	/**
+	 * Save processed blocks to the checkpoint file and resume from it.
+	 */
+	public synchronized BlockStream checkpoint(File file) {
+		this.checkpoint = file == null ? null : new BlockCheckpoint(file);
+		return this;
+	}
+
+	/**
+	 * Save the checkpoint every {@code interval} blocks. Blocks processed since
+	 * the last save are delivered again after a crash.
+	 */
+	public synchronized BlockStream checkpointInterval(int interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Checkpoint interval should be positive.");
+		}
+		this.checkpointInterval = interval;
+		return this;
+	}
+
+	/**
+	 * Maximum number of live blocks held for the consumer.
+	 */
+	public synchronized BlockStream bufferSize(int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Buffer size should be positive.");
+		}
+		this.bufferSize = bufferSize;
+		return this;
+	}
+
+	/**
+	 * The blocks the consumer needs, full by default. Blocks the stream catches
+	 * up with are always full blocks, and so are live blocks on a channel
+	 * delivering filtered blocks: those are queried by number.
+	 */
+	public synchronized BlockStream mode(BlockEventMode mode) {
+		this.mode = mode == null ? BlockEventMode.FULL : mode;
+		return this;
+	}
+
+	/**
+	 * How long to wait before querying a block again after a failure.
+	 */
+	public synchronized BlockStream retryMillis(long retryMillis) {
+		if (retryMillis <= 0) {
+			throw new IllegalArgumentException("Retry millis should be positive.");
+		}
+		this.retryMillis = retryMillis;
+		return this;
+	}
+
+	/**
+	 * Start delivering blocks, does nothing if already started or still
+	 * processing a block after {@link #stop()}.
+	 *
+	 * @throws IOException if the checkpoint can't be read
+	 */
+	public synchronized BlockStream start() throws IOException {
+		if (running || thread != null) {
+			return this;
+		}
+		long last = checkpoint == null ? -1 : checkpoint.load();
+		next = last >= 0 ? last + 1 : startBlock;
+		failure = null;
+		running = true;
+		dispatcher.addBlockListener(this, mode);
+		thread = new Thread(this::run, "block-stream-" + channel.getName());
+		thread.setDaemon(true);
+		thread.start();
+		return this;
+	}
+
+	/**
+	 * Stop delivering blocks once the block being processed is done. The last
+	 * processed block is saved to the checkpoint then.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		dispatcher.removeBlockListener(this);
+		buffer.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Wait for the block being processed after {@link #stop()} to be done.
+	 *
+	 * @param timeoutMillis How long to wait at most
+	 * @return True if the stream thread is done
+	 */
+	public synchronized boolean awaitStop(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (thread != null) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Returns the number of the next block to deliver.
+	 */
+	public synchronized long getNextBlock() {
+		return next;
+	}
+
+	/**
+	 * Returns how many blocks the stream is behind the highest known block.
+	 */
+	public synchronized long getLag() {
+		return Math.max(0, knownHeight - next);
+	}
+
+	/**
+	 * Returns the number of live blocks dropped because the buffer was full.
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Returns the error of the consumer that stopped the stream, null if none.
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	@Override
+	public synchronized void received(BlockEvent blockEvent) {
+		long number = blockEvent.getBlockNumber();
+		knownHeight = Math.max(knownHeight, number + 1);
+		if (number < next) {
+			return;
+		}
+		if (blockEvent.isFiltered() && mode == BlockEventMode.FULL) {
+			// The channel delivers filtered blocks, the full block is queried
+		} else if (buffer.size() >= bufferSize) {
+			dropped++;
+		} else {
+			buffer.addLast(blockEvent);
+		}
+		notifyAll();
+	}
+
+	private void run() {
+		try {
+			long height = channel.queryBlockchainInfo().getHeight();
+			synchronized (this) {
+				knownHeight = Math.max(knownHeight, height);
+			}
+		} catch (Exception e) {
+			logger.log(Level.FINE, "Query blockchain info of channel " + channel.getName() + " failed", e);
+		}
+		int unsaved = 0;
+		while (running) {
+			BlockInfo block;
+			long number;
+			synchronized (this) {
+				number = next;
+				block = take(number);
+			}
+			if (!running) {
+				break;
+			}
+			try {
+				if (block == null) {
+					block = channel.queryBlockByNumber(number);
+				}
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Query block " + number + " of channel " + channel.getName() + " failed", e);
+				pause();
+				continue;
+			}
+			try {
+				consumer.accept(block);
+				synchronized (this) {
+					next = number + 1;
+				}
+				if (checkpoint != null && ++unsaved >= checkpointInterval) {
+					checkpoint.save(number);
+					unsaved = 0;
+				}
+			} catch (Exception e) {
+				logger.log(Level.SEVERE, "Block stream of channel " + channel.getName() + " stopped at block " + number,
+						e);
+				failure = e;
+				stop();
+			}
+		}
+		if (checkpoint != null && unsaved > 0) {
+			long last;
+			synchronized (this) {
+				last = next - 1;
+			}
+			try {
+				checkpoint.save(last);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Save checkpoint of block stream of channel " + channel.getName()
+						+ " failed, blocks after " + (last - unsaved) + " will be delivered again", e);
+			}
+		}
+		synchronized (this) {
+			thread = null;
+			notifyAll();
+		}
+	}
+
+	// Returns the live block with the number, or null if it has to be queried,
+	// waiting while the block is not committed yet. Must be called holding the
+	// lock
+	private BlockInfo take(long number) {
+		while (running) {
+			while (!buffer.isEmpty() && buffer.peekFirst().getBlockNumber() < number) {
+				buffer.pollFirst();
+			}
+			BlockInfo head = buffer.peekFirst();
+			if (head != null && head.getBlockNumber() == number) {
+				return buffer.pollFirst();
+			}
+			if (head != null || number < knownHeight) {
+				return null;
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				stop();
+			}
+		}
+		return null;
+	}
+
+	private synchronized void pause() {
+		try {
+			wait(retryMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			stop();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package org.ecsoya.fabric.client.event;
+
+/**
+ * A chaincode event set by a valid transaction.
+ */
+public final class ChaincodeEventInfo {
+
+	private final String chaincodeId;
+	private final String eventName;
+	private final String transactionId;
+	private final long blockNumber;
+	private final byte[] payload;
+
+	public ChaincodeEventInfo(String chaincodeId, String eventName, String transactionId, long blockNumber,
+			byte[] payload) {
+		this.chaincodeId = chaincodeId;
+		this.eventName = eventName;
+		this.transactionId = transactionId;
+		this.blockNumber = blockNumber;
+		this.payload = payload;
+	}
+
+	public String getChaincodeId() {
+		return chaincodeId;
+	}
+
+	public String getEventName() {
+		return eventName;
+	}
+
+	public String getTransactionId() {
+		return transactionId;
+	}
+
+	public long getBlockNumber() {
+		return blockNumber;
+	}
+
+	/**
+	 * Returns the payload of the event, empty if delivered in a filtered block.
+	 */
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	@Override
+	public String toString() {
+		return "ChaincodeEventInfo [chaincodeId=" + chaincodeId + ", eventName=" + eventName + ", transactionId="
+				+ transactionId + ", blockNumber=" + blockNumber + "]";
+	}
+}
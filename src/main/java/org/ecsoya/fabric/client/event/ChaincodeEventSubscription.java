@@ -0,0 +1,569 @@
+package org.ecsoya.fabric.client.event;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockEvent.TransactionEvent;
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo;
+import org.hyperledger.fabric.sdk.BlockListener;
+import org.hyperledger.fabric.sdk.ChaincodeEvent;
+
+/**
+ * Delivers the chaincode events of valid transactions matching a chaincode
+ * name and an event name pattern to a consumer.
+ * <p>
+ * The channel's event thread only queues matching events. A dispatch thread
+ * of the subscription moves them into a ring buffer of {@code capacity}
+ * events, taken by {@code consumerThreads} threads. With more than one
+ * consumer thread, events are processed concurrently and may complete out of
+ * order. When the buffer is full the {@link OverflowPolicy} applies.
+ * <p>
+ * The queue in front of the buffer holds at most {@code capacity} events as
+ * well. When it is full, the oldest queued event is dropped with
+ * {@link OverflowPolicy#DROP_OLDEST}. Otherwise the event thread waits up to
+ * {@code maxBlockMillis} for room, 0 by default, and the event is dropped if
+ * there is still none. Either way the drop is counted in
+ * {@link #getDropped()}.
+ */
+public class ChaincodeEventSubscription implements BlockListener {
+
+	/**
+	 * Processes one event.
+	 */
+	public interface ChaincodeEventConsumer {
+		void accept(ChaincodeEventInfo event) throws Exception;
+	}
+
+	public enum OverflowPolicy {
+		/**
+		 * Wait for room in the buffer. The dispatch thread waits, events keep
+		 * being queued meanwhile up to the queue's bound.
+		 */
+		BLOCK,
+		/**
+		 * Drop the oldest event in the buffer.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Append events to a file until the consumers catch up. Events are only
+		 * lost if the dispatch thread falls a whole queue behind writing them.
+		 */
+		SPILL
+	}
+
+	private static final Logger logger = Logger.getLogger(ChaincodeEventSubscription.class.getName());
+
+	private final BlockEventDispatcher dispatcher;
+	private final String chaincodeName;
+	private final Pattern eventName;
+	private final ChaincodeEventConsumer consumer;
+
+	private int capacity = 1024;
+	private int consumerThreads = 1;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+	private File spillFile;
+	private long maxBlockMillis;
+	private BlockEventMode mode = BlockEventMode.FULL;
+
+	private final ArrayDeque<ChaincodeEventInfo> pending = new ArrayDeque<>();
+	private ChaincodeEventInfo[] ring;
+	private long head;
+	private long tail;
+	private long spilled;
+	private boolean running;
+	private Thread dispatchThread;
+
+	// Only used by the dispatch thread
+	private RandomAccessFile spill;
+	private long spillRead;
+	private long spillWrite;
+
+	private long published;
+	private long delivered;
+	private long dropped;
+	private long failed;
+	private long highestBlock = -1;
+	private long deliveredBlock = -1;
+
+	/**
+	 * @param dispatcher    The block events of the channel
+	 * @param chaincodeName The chaincode setting the events, null for any
+	 * @param eventName     The regular expression the event name has to match,
+	 *                      null for any
+	 * @param consumer      Processes the events
+	 */
+	public ChaincodeEventSubscription(BlockEventDispatcher dispatcher, String chaincodeName, String eventName,
+			ChaincodeEventConsumer consumer) {
+		this.dispatcher = dispatcher;
+		this.chaincodeName = chaincodeName;
+		this.eventName = eventName == null ? null : Pattern.compile(eventName);
+		this.consumer = consumer;
+	}
+
+	/**
+	 * Number of events the ring buffer holds, rounded up to a power of two.
+	 */
+	public synchronized ChaincodeEventSubscription capacity(int capacity) {
+		if (capacity <= 0 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Capacity should be between 1 and 2^30.");
+		}
+		int rounded = 1;
+		while (rounded < capacity) {
+			rounded <<= 1;
+		}
+		this.capacity = rounded;
+		return this;
+	}
+
+	/**
+	 * Number of threads processing events.
+	 */
+	public synchronized ChaincodeEventSubscription consumerThreads(int consumerThreads) {
+		if (consumerThreads <= 0) {
+			throw new IllegalArgumentException("Consumer threads should be positive.");
+		}
+		this.consumerThreads = consumerThreads;
+		return this;
+	}
+
+	/**
+	 * What to do with events arriving while the buffer is full,
+	 * {@link OverflowPolicy#DROP_OLDEST} by default.
+	 *
+	 * @param overflowPolicy The policy
+	 * @param spillFile      The file events are spilled to with
+	 *                       {@link OverflowPolicy#SPILL}
+	 */
+	public synchronized ChaincodeEventSubscription overflow(OverflowPolicy overflowPolicy, File spillFile) {
+		if (overflowPolicy == OverflowPolicy.SPILL && spillFile == null) {
+			throw new IllegalArgumentException("Spill file is required.");
+		}
+		this.overflowPolicy = overflowPolicy == null ? OverflowPolicy.DROP_OLDEST : overflowPolicy;
+		this.spillFile = spillFile;
+		return this;
+	}
+
+	/**
+	 * How long the channel's event thread may wait for room in the queue with
+	 * {@link OverflowPolicy#BLOCK} or {@link OverflowPolicy#SPILL}, holding
+	 * back the delivery of blocks to every other listener meanwhile. 0 by
+	 * default, the event is dropped at once.
+	 */
+	public synchronized ChaincodeEventSubscription maxBlockMillis(long maxBlockMillis) {
+		if (maxBlockMillis < 0) {
+			throw new IllegalArgumentException("Max block millis can't be negative.");
+		}
+		this.maxBlockMillis = maxBlockMillis;
+		return this;
+	}
+
+	/**
+	 * The blocks the events are taken from. Events from
+	 * {@link BlockEventMode#FILTERED} blocks have no payload.
+	 */
+	public synchronized ChaincodeEventSubscription mode(BlockEventMode mode) {
+		this.mode = mode == null ? BlockEventMode.FULL : mode;
+		return this;
+	}
+
+	/**
+	 * Start delivering events, does nothing if already started or still
+	 * stopping.
+	 *
+	 * @throws IOException if the spill file can't be created
+	 */
+	public synchronized ChaincodeEventSubscription start() throws IOException {
+		if (running || dispatchThread != null) {
+			return this;
+		}
+		if (overflowPolicy == OverflowPolicy.SPILL) {
+			File parent = spillFile.getAbsoluteFile().getParentFile();
+			if (parent != null) {
+				parent.mkdirs();
+			}
+			spill = new RandomAccessFile(spillFile, "rw");
+			spill.setLength(0);
+			spillRead = 0;
+			spillWrite = 0;
+		}
+		spilled = 0;
+		pending.clear();
+		ring = new ChaincodeEventInfo[capacity];
+		head = 0;
+		tail = 0;
+		running = true;
+		dispatchThread = new Thread(this::dispatch, "chaincode-events-" + chaincodeName + "-dispatch");
+		dispatchThread.setDaemon(true);
+		dispatchThread.start();
+		for (int i = 0; i < consumerThreads; i++) {
+			Thread thread = new Thread(this::consume, "chaincode-events-" + chaincodeName + "-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		dispatcher.addBlockListener(this, mode);
+		return this;
+	}
+
+	/**
+	 * Stop delivering events. Events still queued, buffered or spilled are
+	 * discarded.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			pending.clear();
+			notifyAll();
+		}
+		dispatcher.removeBlockListener(this);
+	}
+
+	public synchronized boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Returns the number of events matched.
+	 */
+	public synchronized long getPublished() {
+		return published;
+	}
+
+	/**
+	 * Returns the number of events processed by the consumer.
+	 */
+	public synchronized long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * Returns the number of events dropped because the buffer or the queue was
+	 * full, or they could not be spilled.
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Returns the number of events the consumer failed on.
+	 */
+	public synchronized long getFailed() {
+		return failed;
+	}
+
+	/**
+	 * Returns the number of events waiting, queued, in the buffer and spilled.
+	 */
+	public synchronized long getQueued() {
+		return pending.size() + tail - head + spilled;
+	}
+
+	/**
+	 * Returns the number of events queued for the dispatch thread.
+	 */
+	public synchronized int getPending() {
+		return pending.size();
+	}
+
+	/**
+	 * Returns the number of events the queue for the dispatch thread holds at
+	 * most, past which events are dropped.
+	 */
+	public synchronized int getMaxPending() {
+		return ring == null ? capacity : ring.length;
+	}
+
+	/**
+	 * Returns the number of events waiting in the spill file.
+	 */
+	public synchronized long getSpilled() {
+		return spilled;
+	}
+
+	/**
+	 * Returns how many blocks the last processed event is behind the last block
+	 * received, 0 if nothing is waiting.
+	 */
+	public synchronized long getBlockLag() {
+		if (pending.isEmpty() && tail == head && spilled == 0) {
+			return 0;
+		}
+		return Math.max(0, highestBlock - deliveredBlock);
+	}
+
+	@Override
+	public void received(BlockEvent blockEvent) {
+		long blockNumber = blockEvent.getBlockNumber();
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			highestBlock = Math.max(highestBlock, blockNumber);
+		}
+		for (TransactionEvent transaction : blockEvent.getTransactionEvents()) {
+			if (!transaction.isValid()) {
+				continue;
+			}
+			for (TransactionActionInfo action : transaction.getTransactionActionInfos()) {
+				ChaincodeEvent event = action.getEvent();
+				if (event == null || !matches(event)) {
+					continue;
+				}
+				byte[] payload = event.getPayload();
+				publish(new ChaincodeEventInfo(event.getChaincodeId(), event.getEventName(), event.getTxId(),
+						blockNumber, payload == null ? new byte[0] : payload));
+			}
+		}
+	}
+
+	private boolean matches(ChaincodeEvent event) {
+		return (chaincodeName == null || chaincodeName.equals(event.getChaincodeId()))
+				&& (eventName == null || eventName.matcher(event.getEventName()).matches());
+	}
+
+	private synchronized void publish(ChaincodeEventInfo event) {
+		if (!running) {
+			return;
+		}
+		published++;
+		if (pending.size() >= ring.length) {
+			if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+				pending.pollFirst();
+				dropped++;
+			} else if (!awaitPendingRoom()) {
+				if (running) {
+					dropped++;
+				}
+				return;
+			}
+		}
+		pending.addLast(event);
+		notifyAll();
+	}
+
+	// Wait up to maxBlockMillis for room in the queue, must be called holding
+	// the lock
+	private boolean awaitPendingRoom() {
+		long deadline = System.currentTimeMillis() + maxBlockMillis;
+		try {
+			while (running && pending.size() >= ring.length) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				wait(remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return running;
+	}
+
+	// Move queued events to the buffer, spilling them or waiting for room as the
+	// overflow policy says, and spilled events back once there is room. The
+	// spill file is only read and written here, outside the lock.
+	private void dispatch() {
+		List<ChaincodeEventInfo> batch = new ArrayList<>();
+		try {
+			while (true) {
+				int room;
+				synchronized (this) {
+					while (running && pending.isEmpty() && !(spilled > 0 && tail - head < ring.length)) {
+						wait();
+					}
+					if (!running) {
+						return;
+					}
+					room = spilled > 0 ? (int) Math.min(spilled, ring.length - (tail - head)) : 0;
+				}
+				if (room > 0) {
+					refill(room);
+				}
+				synchronized (this) {
+					while (running && !pending.isEmpty()) {
+						if (spilled > 0 || tail - head == ring.length) {
+							if (overflowPolicy == OverflowPolicy.SPILL) {
+								// Keep the order of the events already spilled
+								batch.addAll(pending);
+								pending.clear();
+								notifyAll();
+								break;
+							}
+							if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+								ring[index(head)] = null;
+								head++;
+								dropped++;
+							} else {
+								wait();
+								continue;
+							}
+						}
+						ring[index(tail)] = pending.pollFirst();
+						tail++;
+						notifyAll();
+					}
+				}
+				if (!batch.isEmpty()) {
+					spill(batch);
+					batch.clear();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			closeSpill();
+			synchronized (this) {
+				dispatchThread = null;
+			}
+		}
+	}
+
+	private void consume() {
+		while (true) {
+			ChaincodeEventInfo event;
+			synchronized (this) {
+				while (running && head == tail) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				if (!running) {
+					return;
+				}
+				event = ring[index(head)];
+				ring[index(head)] = null;
+				head++;
+				notifyAll();
+			}
+			boolean success = true;
+			try {
+				consumer.accept(event);
+			} catch (Exception e) {
+				success = false;
+				logger.log(Level.WARNING, "Chaincode event consumer failed on " + event, e);
+			}
+			synchronized (this) {
+				if (success) {
+					delivered++;
+				} else {
+					failed++;
+				}
+				deliveredBlock = Math.max(deliveredBlock, event.getBlockNumber());
+			}
+		}
+	}
+
+	private int index(long sequence) {
+		return (int) (sequence & (ring.length - 1));
+	}
+
+	// Append the events to the spill file
+	private void spill(List<ChaincodeEventInfo> events) {
+		int written = 0;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			for (ChaincodeEventInfo event : events) {
+				bytes.reset();
+				out.writeInt(0);
+				out.writeUTF(String.valueOf(event.getChaincodeId()));
+				out.writeUTF(String.valueOf(event.getEventName()));
+				out.writeUTF(String.valueOf(event.getTransactionId()));
+				out.writeLong(event.getBlockNumber());
+				out.writeInt(event.getPayload().length);
+				out.write(event.getPayload());
+				out.flush();
+				byte[] record = bytes.toByteArray();
+				int length = record.length - 4;
+				record[0] = (byte) (length >>> 24);
+				record[1] = (byte) (length >>> 16);
+				record[2] = (byte) (length >>> 8);
+				record[3] = (byte) length;
+				spill.seek(spillWrite);
+				spill.write(record);
+				spillWrite += record.length;
+				written++;
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Spill chaincode events to " + spillFile + " failed", e);
+		}
+		synchronized (this) {
+			spilled += written;
+			dropped += events.size() - written;
+		}
+	}
+
+	// Move up to count spilled events back to the buffer
+	private void refill(int count) {
+		List<ChaincodeEventInfo> events = new ArrayList<>(count);
+		boolean failed = false;
+		try {
+			while (events.size() < count) {
+				spill.seek(spillRead);
+				int length = spill.readInt();
+				String chaincodeId = spill.readUTF();
+				String name = spill.readUTF();
+				String transactionId = spill.readUTF();
+				long blockNumber = spill.readLong();
+				byte[] payload = new byte[spill.readInt()];
+				spill.readFully(payload);
+				spillRead += 4 + length;
+				events.add(new ChaincodeEventInfo(chaincodeId, name, transactionId, blockNumber, payload));
+			}
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Read spilled chaincode events from " + spillFile + " failed", e);
+			failed = true;
+		}
+		boolean empty;
+		synchronized (this) {
+			for (ChaincodeEventInfo event : events) {
+				ring[index(tail)] = event;
+				tail++;
+			}
+			spilled -= events.size();
+			if (failed) {
+				dropped += spilled;
+				spilled = 0;
+			}
+			empty = spilled == 0;
+			notifyAll();
+		}
+		if (empty) {
+			spillRead = 0;
+			spillWrite = 0;
+			try {
+				spill.setLength(0);
+			} catch (IOException e) {
+				logger.log(Level.FINE, "Truncate spill file " + spillFile + " failed", e);
+			}
+		}
+	}
+
+	private void closeSpill() {
+		if (spill != null) {
+			try {
+				spill.close();
+			} catch (IOException e) {
+				logger.log(Level.FINE, "Close spill file " + spillFile + " failed", e);
+			}
+			spill = null;
+			spillFile.delete();
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package org.ecsoya.fabric.client.event;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.ecsoya.fabric.client.event.TimerWheel.Timeout;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockEvent.TransactionEvent;
+import org.hyperledger.fabric.sdk.BlockListener;
+
+/**
+ * Correlates committed transactions with the futures waiting for them. Block
+ * events are matched by transaction id against a map of pending futures, so
+ * one block listener serves every transaction of the channel, and waiting
+ * transactions expire on a shared {@link TimerWheel} instead of a timer each.
+ * <p>
+ * Futures are completed on the given executor, never on the event thread.
+ */
+public class CommitRegistry implements BlockListener {
+
+	private static final long TICK_MILLIS = 100;
+	private static final int WHEEL_SIZE = 1024;
+
+	private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<>();
+	private final TimerWheel timers = new TimerWheel(TICK_MILLIS, WHEEL_SIZE);
+	private final Executor executor;
+	private final ScheduledFuture<?> ticker;
+
+	private volatile long timeoutMillis = 120000;
+
+	public CommitRegistry(Executor executor, ScheduledExecutorService scheduler) {
+		this.executor = executor;
+		this.ticker = scheduler.scheduleAtFixedRate(timers::advance, TICK_MILLIS, TICK_MILLIS,
+				TimeUnit.MILLISECONDS);
+	}
+
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * Set how long to wait for a transaction to commit before its future fails
+	 * with a {@link TimeoutException}.
+	 *
+	 * @param timeoutMillis
+	 */
+	public void setTimeoutMillis(long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Wait for the transaction to commit. Register before sending the
+	 * transaction to the orderer so that the commit event can't be missed.
+	 *
+	 * @param transactionId
+	 * @return A future of the first commit event of the transaction
+	 */
+	public CompletableFuture<TransactionEvent> register(String transactionId) {
+		return register(transactionId, null, 1);
+	}
+
+	/**
+	 * Wait for the transaction to commit on a number of peers. An invalid
+	 * transaction completes on its first event, as every peer reaches the same
+	 * verdict.
+	 *
+	 * @param transactionId
+	 * @param peers         The names of the peers to count, null for any peer
+	 * @param required      The number of peers the transaction must commit on
+	 * @return A future of the commit event completing the wait
+	 */
+	public CompletableFuture<TransactionEvent> register(String transactionId, Set<String> peers, int required) {
+		Pending entry = new Pending(peers, Math.max(1, required));
+		entry.timeout = timers.schedule(() -> expire(transactionId, entry), timeoutMillis);
+		Pending existing = pending.putIfAbsent(transactionId, entry);
+		if (existing != null) {
+			entry.timeout.cancel();
+			return existing.future;
+		}
+		return entry.future;
+	}
+
+	/**
+	 * Stop waiting for the transaction and fail its future, e.g. when the orderer
+	 * refused it.
+	 */
+	public boolean fail(String transactionId, Throwable ex) {
+		Pending entry = pending.remove(transactionId);
+		if (entry == null) {
+			return false;
+		}
+		entry.timeout.cancel();
+		executor.execute(() -> entry.future.completeExceptionally(ex));
+		return true;
+	}
+
+	/**
+	 * Returns the number of transactions waiting for their commit event.
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	@Override
+	public void received(BlockEvent blockEvent) {
+		if (pending.isEmpty()) {
+			return;
+		}
+		String source = sourceOf(blockEvent);
+		for (TransactionEvent event : blockEvent.getTransactionEvents()) {
+			Pending entry = pending.get(event.getTransactionID());
+			if (entry != null && entry.committed(source, event.isValid())
+					&& pending.remove(event.getTransactionID(), entry)) {
+				entry.timeout.cancel();
+				executor.execute(() -> entry.future.complete(event));
+			}
+		}
+	}
+
+	/**
+	 * Stop the timer and cancel every pending future.
+	 */
+	public void close() {
+		ticker.cancel(false);
+		for (String transactionId : pending.keySet()) {
+			Pending entry = pending.remove(transactionId);
+			if (entry != null) {
+				entry.timeout.cancel();
+				entry.future.cancel(false);
+			}
+		}
+	}
+
+	private void expire(String transactionId, Pending entry) {
+		if (pending.remove(transactionId, entry)) {
+			executor.execute(() -> entry.future.completeExceptionally(new TimeoutException(
+					"Transaction " + transactionId + " not committed within " + timeoutMillis + "ms")));
+		}
+	}
+
+	private static String sourceOf(BlockEvent blockEvent) {
+		if (blockEvent.getPeer() != null) {
+			return blockEvent.getPeer().getName();
+		}
+		return eventHubOf(blockEvent);
+	}
+
+	// Channels may still be configured with event hubs, which only the
+	// deprecated getter tells apart
+	@SuppressWarnings("deprecation")
+	private static String eventHubOf(BlockEvent blockEvent) {
+		return blockEvent.getEventHub() == null ? null : blockEvent.getEventHub().getName();
+	}
+
+	private static class Pending {
+		private final CompletableFuture<TransactionEvent> future = new CompletableFuture<>();
+		private final Set<String> peers;
+		private final int required;
+		private final Set<String> committed = new HashSet<>();
+		private volatile Timeout timeout;
+
+		Pending(Set<String> peers, int required) {
+			this.peers = peers;
+			this.required = required;
+		}
+
+		// Returns true once the wait is over
+		synchronized boolean committed(String source, boolean valid) {
+			if (!valid) {
+				return true;
+			}
+			if (peers == null || peers.contains(source)) {
+				committed.add(source);
+			}
+			return committed.size() >= required;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package org.ecsoya.fabric.client.event;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timer wheel: timeouts are put in one of a fixed number of buckets
+ * and {@link #advance()} expires a single bucket per tick, so scheduling and
+ * cancelling cost O(1) however many timeouts are waiting. Timeouts fire with
+ * the resolution of one tick, up to one tick late but never early.
+ */
+public class TimerWheel {
+
+	private static final Logger logger = Logger.getLogger(TimerWheel.class.getName());
+
+	private final long tickMillis;
+	private final List<Set<Timeout>> buckets;
+	private long tick;
+	private int size;
+
+	public TimerWheel(long tickMillis, int wheelSize) {
+		if (tickMillis <= 0 || wheelSize <= 0) {
+			throw new IllegalArgumentException("Tick duration and wheel size should be positive.");
+		}
+		this.tickMillis = tickMillis;
+		this.buckets = new ArrayList<>(wheelSize);
+		for (int i = 0; i < wheelSize; i++) {
+			buckets.add(new LinkedHashSet<>());
+		}
+	}
+
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * Run the task once the delay has elapsed, unless the returned timeout is
+	 * cancelled before.
+	 */
+	public synchronized Timeout schedule(Runnable task, long delayMillis) {
+		// Part of the current tick has already elapsed, one more tick keeps the
+		// timeout from firing early
+		long ticks = Math.max(0, (delayMillis + tickMillis - 1) / tickMillis) + 1;
+		Timeout timeout = new Timeout(task, tick + ticks);
+		timeout.bucket = bucketOf(timeout.deadline);
+		timeout.bucket.add(timeout);
+		size++;
+		return timeout;
+	}
+
+	/**
+	 * Move the wheel one tick forward and run the timeouts expiring on it. Called
+	 * every {@link #getTickMillis()} milliseconds.
+	 */
+	public void advance() {
+		List<Timeout> expired = new ArrayList<>();
+		synchronized (this) {
+			tick++;
+			Iterator<Timeout> it = bucketOf(tick).iterator();
+			while (it.hasNext()) {
+				Timeout timeout = it.next();
+				if (timeout.deadline <= tick) {
+					it.remove();
+					timeout.bucket = null;
+					size--;
+					expired.add(timeout);
+				}
+			}
+		}
+		for (Timeout timeout : expired) {
+			try {
+				timeout.task.run();
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Timeout task failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of timeouts waiting to expire.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	private Set<Timeout> bucketOf(long tick) {
+		return buckets.get((int) (tick % buckets.size()));
+	}
+
+	public class Timeout {
+
+		private final Runnable task;
+		private final long deadline;
+		private Set<Timeout> bucket;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancel the timeout, returns false if it has already expired.
+		 */
+		public boolean cancel() {
+			synchronized (TimerWheel.this) {
+				if (bucket == null) {
+					return false;
+				}
+				bucket.remove(this);
+				bucket = null;
+				size--;
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package org.ecsoya.fabric.client.ledger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ecsoya.fabric.client.event.BlockStream.BlockConsumer;
+import org.ecsoya.fabric.client.node.CircuitBreaker;
+import org.ecsoya.fabric.client.node.NodeStats;
+import org.ecsoya.fabric.client.node.NodeStatsRegistry;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.exception.ProposalException;
+
+/**
+ * Fetches a range of historical blocks from several peers in parallel and
+ * hands them to a consumer strictly in order.
+ * <p>
+ * The range is split into segments of {@code segmentSize} blocks. Each of
+ * the {@code parallelism} workers takes the lowest segment not taken yet and
+ * queries its blocks one by one, from its own peer, moving to the next peer
+ * when a query fails. Fetched blocks wait in a reorder buffer until the
+ * consumer reaches them. The buffer holds at most {@code maxBufferedBytes} of
+ * serialized blocks, except for the block the consumer waits for, which is
+ * always admitted so that the backfill can't stall. Workers that would go
+ * over the budget wait for the consumer, each holding at most one block.
+ */
+public class BlockBackfill {
+
+	private static final Logger logger = Logger.getLogger(BlockBackfill.class.getName());
+
+	private final Channel channel;
+	private final List<Peer> peers;
+	private final NodeStatsRegistry nodeStats;
+	private final Executor executor;
+	private final long fromBlock;
+	private final long toBlock;
+	private final BlockConsumer consumer;
+
+	private int parallelism = 4;
+	private int segmentSize = 100;
+	private long maxBufferedBytes = 64 * 1024 * 1024;
+	private int maxAttempts = 3;
+
+	private final TreeMap<Long, BlockInfo> buffer = new TreeMap<>();
+	private final CompletableFuture<Long> result = new CompletableFuture<>();
+	private long nextSegment;
+	private long next;
+	private long bufferedBytes;
+	private boolean started;
+	private boolean stopped;
+
+	/**
+	 * @param channel   The channel
+	 * @param peers     The peers to query blocks from
+	 * @param nodeStats Records the latency of the queries
+	 * @param executor  Runs the workers and the consumer
+	 * @param fromBlock The first block to fetch
+	 * @param toBlock   The block after the last one to fetch
+	 * @param consumer  Processes the blocks in order
+	 */
+	public BlockBackfill(Channel channel, Collection<Peer> peers, NodeStatsRegistry nodeStats, Executor executor,
+			long fromBlock, long toBlock, BlockConsumer consumer) {
+		if (fromBlock < 0 || toBlock < fromBlock) {
+			throw new IllegalArgumentException("Invalid block range [" + fromBlock + ", " + toBlock + ").");
+		}
+		this.channel = channel;
+		this.peers = new ArrayList<>(peers);
+		this.nodeStats = nodeStats;
+		this.executor = executor;
+		this.fromBlock = fromBlock;
+		this.toBlock = toBlock;
+		this.consumer = consumer;
+		this.nextSegment = fromBlock;
+		this.next = fromBlock;
+	}
+
+	/**
+	 * Number of segments fetched at the same time.
+	 */
+	public synchronized BlockBackfill parallelism(int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("Parallelism should be positive.");
+		}
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * Number of consecutive blocks a worker fetches before taking the next
+	 * segment.
+	 */
+	public synchronized BlockBackfill segmentSize(int segmentSize) {
+		if (segmentSize <= 0) {
+			throw new IllegalArgumentException("Segment size should be positive.");
+		}
+		this.segmentSize = segmentSize;
+		return this;
+	}
+
+	/**
+	 * Maximum size of the blocks waiting in the reorder buffer.
+	 */
+	public synchronized BlockBackfill maxBufferedBytes(long maxBufferedBytes) {
+		if (maxBufferedBytes <= 0) {
+			throw new IllegalArgumentException("Buffer size should be positive.");
+		}
+		this.maxBufferedBytes = maxBufferedBytes;
+		return this;
+	}
+
+	/**
+	 * Number of peers a block is queried from before the backfill fails.
+	 */
+	public synchronized BlockBackfill maxAttempts(int maxAttempts) {
+		if (maxAttempts <= 0) {
+			throw new IllegalArgumentException("Attempts should be positive.");
+		}
+		this.maxAttempts = maxAttempts;
+		return this;
+	}
+
+	/**
+	 * Start the backfill, does nothing if already started.
+	 *
+	 * @return A future of the number of blocks delivered, failing with the error
+	 *         of a block no peer returned or of the consumer
+	 */
+	public synchronized CompletableFuture<Long> start() {
+		if (started) {
+			return result;
+		}
+		started = true;
+		if (peers.isEmpty()) {
+			result.completeExceptionally(new ProposalException("No peer to query blocks from"));
+			return result;
+		}
+		int workers = (int) Math.min(parallelism, (toBlock - fromBlock + segmentSize - 1) / segmentSize);
+		for (int i = 0; i < workers; i++) {
+			int worker = i;
+			executor.execute(() -> fetch(worker));
+		}
+		executor.execute(this::deliver);
+		return result;
+	}
+
+	/**
+	 * Stop fetching and delivering blocks, completing the backfill exceptionally.
+	 */
+	public void cancel() {
+		fail(new IllegalStateException("Backfill cancelled"));
+	}
+
+	public synchronized boolean isDone() {
+		return result.isDone();
+	}
+
+	/**
+	 * Returns the number of the next block to deliver.
+	 */
+	public synchronized long getNextBlock() {
+		return next;
+	}
+
+	/**
+	 * Returns the number of blocks delivered.
+	 */
+	public synchronized long getDelivered() {
+		return next - fromBlock;
+	}
+
+	public synchronized long getBufferedBytes() {
+		return bufferedBytes;
+	}
+
+	public synchronized int getBufferedBlocks() {
+		return buffer.size();
+	}
+
+	private synchronized boolean isStopped() {
+		return stopped;
+	}
+
+	private void fetch(int worker) {
+		int peer = worker % peers.size();
+		while (true) {
+			long start;
+			long end;
+			synchronized (this) {
+				if (stopped || nextSegment >= toBlock) {
+					return;
+				}
+				start = nextSegment;
+				end = Math.min(toBlock, start + segmentSize);
+				nextSegment = end;
+			}
+			for (long number = start; number < end; number++) {
+				BlockInfo block = null;
+				List<String> errors = new ArrayList<>();
+				for (int attempt = 0; block == null && attempt < maxAttempts; attempt++) {
+					if (isStopped()) {
+						return;
+					}
+					Peer target = peers.get(peer);
+					NodeStats stats = nodeStats.get(target);
+					long permit = stats.tryBegin();
+					if (permit == CircuitBreaker.REFUSED) {
+						errors.add(target.getName() + ": circuit open");
+						peer = (peer + 1) % peers.size();
+						continue;
+					}
+					long begin = System.nanoTime();
+					try {
+						block = channel.queryBlockByNumber(target, number);
+						stats.end(permit, System.nanoTime() - begin, true);
+					} catch (Exception e) {
+						stats.end(permit, System.nanoTime() - begin, false);
+						errors.add(target.getName() + ": " + e.getMessage());
+						peer = (peer + 1) % peers.size();
+					}
+				}
+				if (block == null) {
+					fail(new ProposalException("Query block " + number + " failed on " + errors));
+					return;
+				}
+				if (!offer(block)) {
+					return;
+				}
+			}
+		}
+	}
+
+	// Waits for room in the buffer, returns false if the backfill is over
+	private synchronized boolean offer(BlockInfo block) {
+		long size = sizeOf(block);
+		while (!stopped && block.getBlockNumber() != next && bufferedBytes + size > maxBufferedBytes) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				fail(e);
+			}
+		}
+		if (stopped) {
+			return false;
+		}
+		buffer.put(block.getBlockNumber(), block);
+		bufferedBytes += size;
+		notifyAll();
+		return true;
+	}
+
+	private void deliver() {
+		while (true) {
+			BlockInfo block;
+			synchronized (this) {
+				while (!stopped && next < toBlock && !buffer.containsKey(next)) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						fail(e);
+					}
+				}
+				if (stopped) {
+					return;
+				}
+				if (next >= toBlock) {
+					break;
+				}
+				block = buffer.remove(next);
+				bufferedBytes -= sizeOf(block);
+			}
+			try {
+				consumer.accept(block);
+			} catch (Exception e) {
+				logger.log(Level.SEVERE, "Backfill of channel " + channel.getName() + " stopped at block "
+						+ block.getBlockNumber(), e);
+				fail(e);
+				return;
+			}
+			synchronized (this) {
+				next++;
+				// Wake up the worker holding the next block
+				notifyAll();
+			}
+		}
+		result.complete(toBlock - fromBlock);
+	}
+
+	private void fail(Throwable error) {
+		synchronized (this) {
+			stopped = true;
+			buffer.clear();
+			bufferedBytes = 0;
+			notifyAll();
+		}
+		result.completeExceptionally(error);
+	}
+
+	private static long sizeOf(BlockInfo block) {
+		return block.isFiltered() ? block.getFilteredBlock().getSerializedSize()
+				: block.getBlock().getSerializedSize();
+	}
+}
@@ -0,0 +1,191 @@
+package org.ecsoya.fabric.client.ledger;
+
+import static org.ecsoya.fabric.client.ledger.WireFormat.LENGTH_DELIMITED;
+import static org.ecsoya.fabric.client.ledger.WireFormat.NOT_FOUND;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.hyperledger.fabric.protos.peer.FabricTransaction.TxValidationCode;
+
+/**
+ * A block read in place from its serialized bytes. Parsing only locates the
+ * header and the envelopes of the block, the fields of a transaction are
+ * read when asked for through {@link #getTransaction(int)}, and byte fields
+ * are returned as read-only views of the block bytes instead of copies. This
+ * avoids building the protobuf object graph of the whole block, which
+ * allocates several objects per field.
+ * <p>
+ * A block may be shared between threads, the transactions it returns may not.
+ */
+public final class RawBlock {
+
+	// Index of the transactions filter in the block metadata
+	private static final int TRANSACTIONS_FILTER = 2;
+
+	private final byte[] bytes;
+	private final ByteBuffer buffer;
+	private final long number;
+	private final long previousHash;
+	private final long dataHash;
+	private final long[] envelopes;
+	private final long transactionsFilter;
+
+	private RawBlock(byte[] bytes, long number, long previousHash, long dataHash, long[] envelopes,
+			long transactionsFilter) {
+		this.bytes = bytes;
+		this.buffer = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		this.number = number;
+		this.previousHash = previousHash;
+		this.dataHash = dataHash;
+		this.envelopes = envelopes;
+		this.transactionsFilter = transactionsFilter;
+	}
+
+	/**
+	 * Index the serialized block, the bytes must not be modified afterwards.
+	 *
+	 * @param bytes A serialized {@code common.Block}
+	 * @return The block
+	 * @throws IllegalArgumentException if the bytes are not a valid block
+	 */
+	public static RawBlock parse(byte[] bytes) {
+		WireFormat wire = new WireFormat(bytes).reset(0, bytes.length);
+		long header = NOT_FOUND;
+		long data = NOT_FOUND;
+		long metadata = NOT_FOUND;
+		while (wire.next()) {
+			if (wire.wireType() != LENGTH_DELIMITED) {
+				wire.skip();
+				continue;
+			}
+			switch (wire.field()) {
+			case 1:
+				header = wire.readSlice();
+				break;
+			case 2:
+				data = wire.readSlice();
+				break;
+			case 3:
+				metadata = wire.readSlice();
+				break;
+			default:
+				wire.skip();
+			}
+		}
+		long number = wire.findVarint(header, 1, 0);
+		long previousHash = wire.find(header, 2);
+		long dataHash = wire.find(header, 3);
+
+		long[] envelopes = new long[16];
+		int count = 0;
+		if (data != NOT_FOUND) {
+			wire.reset(data);
+			while (wire.next()) {
+				if (wire.field() == 1 && wire.wireType() == LENGTH_DELIMITED) {
+					if (count == envelopes.length) {
+						envelopes = Arrays.copyOf(envelopes, count * 2);
+					}
+					envelopes[count++] = wire.readSlice();
+				} else {
+					wire.skip();
+				}
+			}
+		}
+
+		long transactionsFilter = NOT_FOUND;
+		if (metadata != NOT_FOUND) {
+			wire.reset(metadata);
+			int index = 0;
+			while (wire.next()) {
+				if (wire.field() == 1 && wire.wireType() == LENGTH_DELIMITED) {
+					long entry = wire.readSlice();
+					if (index++ == TRANSACTIONS_FILTER) {
+						transactionsFilter = entry;
+					}
+				} else {
+					wire.skip();
+				}
+			}
+		}
+		return new RawBlock(bytes, number, previousHash, dataHash, Arrays.copyOf(envelopes, count),
+				transactionsFilter);
+	}
+
+	public long getNumber() {
+		return number;
+	}
+
+	public ByteBuffer getPreviousHash() {
+		return view(previousHash);
+	}
+
+	public ByteBuffer getDataHash() {
+		return view(dataHash);
+	}
+
+	/**
+	 * Returns the number of envelopes in the block.
+	 */
+	public int getTransactionCount() {
+		return envelopes.length;
+	}
+
+	/**
+	 * Returns the validation code of the transaction, {@code NOT_VALIDATED} if
+	 * the block has no transactions filter.
+	 */
+	public byte getValidationCode(int index) {
+		checkIndex(index);
+		if (transactionsFilter == NOT_FOUND || index >= WireFormat.length(transactionsFilter)) {
+			return (byte) TxValidationCode.NOT_VALIDATED_VALUE;
+		}
+		return bytes[WireFormat.start(transactionsFilter) + index];
+	}
+
+	public boolean isValid(int index) {
+		return getValidationCode(index) == TxValidationCode.VALID_VALUE;
+	}
+
+	/**
+	 * Returns a view of the transaction at the position in the block.
+	 */
+	public RawTransaction getTransaction(int index) {
+		checkIndex(index);
+		return new RawTransaction(this, index, envelopes[index]);
+	}
+
+	/**
+	 * Returns the serialized envelope of the transaction.
+	 */
+	public ByteBuffer getEnvelope(int index) {
+		checkIndex(index);
+		return view(envelopes[index]);
+	}
+
+	byte[] bytes() {
+		return bytes;
+	}
+
+	ByteBuffer view(long slice) {
+		ByteBuffer view = buffer.duplicate();
+		if (slice == NOT_FOUND) {
+			view.limit(0);
+		} else {
+			int start = WireFormat.start(slice);
+			view.limit(start + WireFormat.length(slice)).position(start);
+		}
+		return view.slice();
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= envelopes.length) {
+			throw new IndexOutOfBoundsException("Transaction " + index + " of block " + number);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "RawBlock [number=" + number + ", transactions=" + envelopes.length + "]";
+	}
+}
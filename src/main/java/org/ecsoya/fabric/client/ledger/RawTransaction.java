@@ -0,0 +1,203 @@
+package org.ecsoya.fabric.client.ledger;
+
+import static org.ecsoya.fabric.client.ledger.WireFormat.LENGTH_DELIMITED;
+import static org.ecsoya.fabric.client.ledger.WireFormat.NOT_FOUND;
+
+import java.nio.ByteBuffer;
+
+import org.hyperledger.fabric.protos.common.Common.HeaderType;
+
+/**
+ * A transaction of a {@link RawBlock}, read in place. The channel header is
+ * read the first time one of its fields is asked for, write sets and
+ * chaincode events are walked on each visit without being kept.
+ */
+public final class RawTransaction {
+
+	/**
+	 * Visits the writes of a transaction.
+	 */
+	public interface WriteVisitor {
+		/**
+		 * @param namespace The chaincode the key belongs to
+		 * @param key       The key written
+		 * @param delete    True if the key is deleted
+		 * @param value     A view of the value written, empty for a delete
+		 */
+		void visit(String namespace, String key, boolean delete, ByteBuffer value);
+	}
+
+	/**
+	 * Visits the chaincode events of a transaction.
+	 */
+	public interface ChaincodeEventVisitor {
+		void visit(String chaincodeId, String eventName, ByteBuffer payload);
+	}
+
+	private final RawBlock block;
+	private final int index;
+	private final long envelope;
+	private final WireFormat wire;
+
+	private boolean headerRead;
+	private int type;
+	private long channelId;
+	private long transactionId;
+	private long timestamp;
+	private long data;
+
+	RawTransaction(RawBlock block, int index, long envelope) {
+		this.block = block;
+		this.index = index;
+		this.envelope = envelope;
+		this.wire = new WireFormat(block.bytes());
+	}
+
+	public RawBlock getBlock() {
+		return block;
+	}
+
+	/**
+	 * Returns the position of the transaction in its block.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Returns the {@link HeaderType} number of the transaction.
+	 */
+	public int getType() {
+		readHeader();
+		return type;
+	}
+
+	public boolean isEndorserTransaction() {
+		return getType() == HeaderType.ENDORSER_TRANSACTION_VALUE;
+	}
+
+	public String getTransactionId() {
+		readHeader();
+		return wire.string(transactionId);
+	}
+
+	public String getChannelId() {
+		readHeader();
+		return wire.string(channelId);
+	}
+
+	/**
+	 * Returns the time the transaction was proposed, 0 if not set.
+	 */
+	public long getTimestampMillis() {
+		readHeader();
+		long seconds = wire.findVarint(timestamp, 1, 0);
+		long nanos = wire.findVarint(timestamp, 2, 0);
+		return seconds * 1000 + nanos / 1000000;
+	}
+
+	public byte getValidationCode() {
+		return block.getValidationCode(index);
+	}
+
+	public boolean isValid() {
+		return block.isValid(index);
+	}
+
+	/**
+	 * Visit the keys written by the transaction, in the order of its actions
+	 * and namespaces. Private data collections are not visited.
+	 */
+	public void forEachWrite(WriteVisitor visitor) {
+		if (!isEndorserTransaction()) {
+			return;
+		}
+		WireFormat actions = new WireFormat(block.bytes()).reset(data);
+		while (actions.next()) {
+			if (actions.field() != 1 || actions.wireType() != LENGTH_DELIMITED) {
+				actions.skip();
+				continue;
+			}
+			long results = wire.find(chaincodeAction(actions.readSlice()), 1);
+			if (results == NOT_FOUND) {
+				continue;
+			}
+			WireFormat namespaces = new WireFormat(block.bytes()).reset(results);
+			while (namespaces.next()) {
+				if (namespaces.field() != 2 || namespaces.wireType() != LENGTH_DELIMITED) {
+					namespaces.skip();
+					continue;
+				}
+				long namespace = namespaces.readSlice();
+				String name = wire.string(wire.find(namespace, 1));
+				long rwset = wire.find(namespace, 2);
+				if (rwset == NOT_FOUND) {
+					continue;
+				}
+				WireFormat writes = new WireFormat(block.bytes()).reset(rwset);
+				while (writes.next()) {
+					if (writes.field() != 3 || writes.wireType() != LENGTH_DELIMITED) {
+						writes.skip();
+						continue;
+					}
+					long write = writes.readSlice();
+					boolean delete = wire.findVarint(write, 2, 0) != 0;
+					visitor.visit(name, wire.string(wire.find(write, 1)), delete, block.view(wire.find(write, 3)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Visit the chaincode events set by the transaction.
+	 */
+	public void forEachChaincodeEvent(ChaincodeEventVisitor visitor) {
+		if (!isEndorserTransaction()) {
+			return;
+		}
+		WireFormat actions = new WireFormat(block.bytes()).reset(data);
+		while (actions.next()) {
+			if (actions.field() != 1 || actions.wireType() != LENGTH_DELIMITED) {
+				actions.skip();
+				continue;
+			}
+			long event = wire.find(chaincodeAction(actions.readSlice()), 2);
+			if (event == NOT_FOUND || WireFormat.length(event) == 0) {
+				continue;
+			}
+			visitor.visit(wire.string(wire.find(event, 1)), wire.string(wire.find(event, 3)),
+					block.view(wire.find(event, 4)));
+		}
+	}
+
+	// TransactionAction > ChaincodeActionPayload > ChaincodeEndorsedAction >
+	// ProposalResponsePayload > ChaincodeAction
+	private long chaincodeAction(long action) {
+		long actionPayload = wire.find(action, 2);
+		long endorsedAction = wire.find(actionPayload, 2);
+		long responsePayload = wire.find(endorsedAction, 1);
+		return wire.find(responsePayload, 2);
+	}
+
+	// Envelope > Payload > Header > ChannelHeader
+	private void readHeader() {
+		if (headerRead) {
+			return;
+		}
+		long payload = wire.find(envelope, 1);
+		long header = wire.find(payload, 1);
+		long channelHeader = wire.find(header, 1);
+		type = (int) wire.findVarint(channelHeader, 1, 0);
+		timestamp = wire.find(channelHeader, 3);
+		channelId = wire.find(channelHeader, 4);
+		transactionId = wire.find(channelHeader, 5);
+		data = wire.find(payload, 2);
+		headerRead = true;
+	}
+
+	@Override
+	public String toString() {
+		return "RawTransaction [block=" + block.getNumber() + ", index=" + index + ", transactionId="
+				+ getTransactionId() + "]";
+	}
+}
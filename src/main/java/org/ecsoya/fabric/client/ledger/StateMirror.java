@@ -0,0 +1,468 @@
+package org.ecsoya.fabric.client.ledger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset.KVWrite;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.BlockInfo.EnvelopeInfo;
+import org.hyperledger.fabric.sdk.BlockInfo.EnvelopeType;
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo;
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo.NsRwsetInfo;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * A local copy of the world state of one chaincode, kept up to date by
+ * applying the writes of the valid transactions of each block, in block
+ * order.
+ * <p>
+ * Keys are kept sorted on the heap, values in a log of memory mapped
+ * segments off the heap. Overwritten values are left in the log until the
+ * dead space exceeds the live data, when the log is compacted. The writes of
+ * a block are applied at once, readers never see half a block.
+ * <p>
+ * The log is a working copy rebuilt on open. What survives restarts is the
+ * snapshot, the whole state and its height written to a file replaced
+ * atomically. On open the mirror loads the snapshot and the blocks from its
+ * height on have to be applied again.
+ */
+public class StateMirror implements Closeable {
+
+	private static final Logger logger = Logger.getLogger(StateMirror.class.getName());
+
+	private static final int MAGIC = 0x46534D31;
+	private static final long SEGMENT_SIZE = 64L << 20;
+	private static final long MIN_COMPACT_BYTES = 64L << 20;
+
+	private final String chaincodeName;
+	private final File directory;
+	private final File logFile;
+	private final File snapshotFile;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Object snapshotLock = new Object();
+
+	private final TreeMap<String, Location> index = new TreeMap<>();
+	private RandomAccessFile log;
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+	private long writePosition;
+	private long liveBytes;
+	private long height;
+	private volatile long snapshotHeight;
+	private boolean closed;
+	private volatile long snapshotIntervalBlocks = 1000;
+
+	/**
+	 * Open the mirror of the chaincode stored in the directory, loading its
+	 * snapshot if there is one.
+	 *
+	 * @param chaincodeName The chaincode whose state is mirrored
+	 * @param directory     Holds the snapshot and the working log
+	 * @throws IOException if the snapshot can't be read or the log created
+	 */
+	public StateMirror(String chaincodeName, File directory) throws IOException {
+		this.chaincodeName = chaincodeName;
+		this.directory = directory;
+		this.logFile = new File(directory, "state.log");
+		this.snapshotFile = new File(directory, "state.snapshot");
+		directory.mkdirs();
+		log = openLog(logFile);
+		if (snapshotFile.exists()) {
+			loadSnapshot();
+		}
+	}
+
+	public String getChaincodeName() {
+		return chaincodeName;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the number of blocks applied, the next block to apply.
+	 */
+	public long getHeight() {
+		lock.readLock().lock();
+		try {
+			return height;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public long getSnapshotIntervalBlocks() {
+		return snapshotIntervalBlocks;
+	}
+
+	/**
+	 * Set how many blocks are applied between snapshots, 0 or less to only
+	 * snapshot on {@link #snapshot()} and {@link #close()}.
+	 */
+	public void setSnapshotIntervalBlocks(long snapshotIntervalBlocks) {
+		this.snapshotIntervalBlocks = snapshotIntervalBlocks;
+	}
+
+	/**
+	 * Returns the number of keys.
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return index.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns a copy of the value of the key, null if it doesn't exist.
+	 */
+	public byte[] get(String key) {
+		lock.readLock().lock();
+		try {
+			Location location = index.get(key);
+			if (location == null) {
+				return null;
+			}
+			byte[] value = new byte[location.length];
+			read(location).get(value);
+			return value;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Visit the keys from {@code startKey} included to {@code endKey} excluded
+	 * in order, with a read-only view of their value. The values are only valid
+	 * during the visit. Empty or null bounds are open, as in chaincode range
+	 * queries.
+	 */
+	public void forEachInRange(String startKey, String endKey, BiConsumer<String, ByteBuffer> visitor) {
+		lock.readLock().lock();
+		try {
+			NavigableMap<String, Location> range = index;
+			boolean hasStart = startKey != null && !startKey.isEmpty();
+			boolean hasEnd = endKey != null && !endKey.isEmpty();
+			if (hasStart && hasEnd) {
+				range = index.subMap(startKey, true, endKey, false);
+			} else if (hasStart) {
+				range = index.tailMap(startKey, true);
+			} else if (hasEnd) {
+				range = index.headMap(endKey, false);
+			}
+			for (Map.Entry<String, Location> entry : range.entrySet()) {
+				visitor.accept(entry.getKey(), read(entry.getValue()));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns a copy of the keys and values of the range, in key order.
+	 *
+	 * @see #forEachInRange(String, String, BiConsumer)
+	 */
+	public Map<String, byte[]> getRange(String startKey, String endKey) {
+		Map<String, byte[]> values = new LinkedHashMap<>();
+		forEachInRange(startKey, endKey, (key, value) -> {
+			byte[] copy = new byte[value.remaining()];
+			value.get(copy);
+			values.put(key, copy);
+		});
+		return values;
+	}
+
+	/**
+	 * Apply the writes of the valid transactions of the block to the
+	 * chaincode's keys. Blocks below the height are ignored.
+	 *
+	 * @param block A full block
+	 * @throws IllegalArgumentException if the block is filtered
+	 * @throws IllegalStateException    if blocks before this one are missing
+	 * @throws IOException              if the log can't grow
+	 */
+	public void apply(BlockInfo block) throws IOException {
+		if (block.isFiltered()) {
+			throw new IllegalArgumentException("Block " + block.getBlockNumber() + " is filtered, it has no writes");
+		}
+		long number = block.getBlockNumber();
+		long current = getHeight();
+		if (number < current) {
+			return;
+		}
+		if (number > current) {
+			throw new IllegalStateException(
+					"State mirror of " + chaincodeName + " is at block " + current + ", can't apply block " + number);
+		}
+		// Collect the writes outside the lock, values are views of the parsed
+		// block
+		List<String> keys = new ArrayList<>();
+		List<ByteBuffer> values = new ArrayList<>();
+		try {
+			for (EnvelopeInfo envelope : block.getEnvelopeInfos()) {
+				if (envelope.getType() != EnvelopeType.TRANSACTION_ENVELOPE || !envelope.isValid()) {
+					continue;
+				}
+				for (TransactionActionInfo action : ((TransactionEnvelopeInfo) envelope)
+						.getTransactionActionInfos()) {
+					TxReadWriteSetInfo rwset = action.getTxReadWriteSet();
+					if (rwset == null) {
+						continue;
+					}
+					for (NsRwsetInfo namespace : rwset.getNsRwsetInfos()) {
+						if (!chaincodeName.equals(namespace.getNamespace())) {
+							continue;
+						}
+						for (KVWrite write : namespace.getRwset().getWritesList()) {
+							keys.add(write.getKey());
+							values.add(write.getIsDelete() ? null : write.getValue().asReadOnlyByteBuffer());
+						}
+					}
+				}
+			}
+		} catch (InvalidProtocolBufferException e) {
+			throw new IOException("Read the writes of block " + number + " failed", e);
+		}
+		lock.writeLock().lock();
+		try {
+			if (closed) {
+				throw new IOException("State mirror of " + chaincodeName + " is closed");
+			}
+			if (number != height) {
+				return;
+			}
+			for (int i = 0; i < keys.size(); i++) {
+				ByteBuffer value = values.get(i);
+				Location old = value == null ? index.remove(keys.get(i)) : index.put(keys.get(i), append(value));
+				if (old != null) {
+					liveBytes -= old.length;
+				}
+			}
+			height = number + 1;
+			if (writePosition > MIN_COMPACT_BYTES && writePosition > 2 * liveBytes) {
+				compact();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		long interval = snapshotIntervalBlocks;
+		if (interval > 0 && number + 1 - snapshotHeight >= interval) {
+			snapshot();
+		}
+	}
+
+	/**
+	 * Write the whole state and its height to the snapshot file. Blocks are not
+	 * applied meanwhile.
+	 */
+	public void snapshot() throws IOException {
+		// One snapshot at a time, they share the temporary file
+		synchronized (snapshotLock) {
+			File tmp = new File(snapshotFile.getPath() + ".tmp");
+			long snapshot;
+			lock.readLock().lock();
+			try {
+				if (closed) {
+					throw new IOException("State mirror of " + chaincodeName + " is closed");
+				}
+				snapshot = writeSnapshot(tmp);
+			} finally {
+				lock.readLock().unlock();
+			}
+			Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			snapshotHeight = Math.max(snapshotHeight, snapshot);
+			logger.log(Level.FINE, "State mirror of " + chaincodeName + " saved at block " + snapshot);
+		}
+	}
+
+	// Must be called holding a lock
+	private long writeSnapshot(File tmp) throws IOException {
+		try (FileOutputStream file = new FileOutputStream(tmp);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeUTF(chaincodeName);
+			out.writeLong(height);
+			out.writeInt(index.size());
+			byte[] copy = new byte[4096];
+			for (Map.Entry<String, Location> entry : index.entrySet()) {
+				byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+				out.writeInt(key.length);
+				out.write(key);
+				ByteBuffer value = read(entry.getValue());
+				out.writeInt(value.remaining());
+				while (value.hasRemaining()) {
+					int length = Math.min(copy.length, value.remaining());
+					value.get(copy, 0, length);
+					out.write(copy, 0, length);
+				}
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		return height;
+	}
+
+	/**
+	 * Save a snapshot and release the log.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.readLock().lock();
+		try {
+			if (closed) {
+				return;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		try {
+			snapshot();
+		} finally {
+			lock.writeLock().lock();
+			try {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				segments.clear();
+				index.clear();
+				log.close();
+				logFile.delete();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	private void loadSnapshot() throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(snapshotFile), 1 << 16))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a state snapshot: " + snapshotFile);
+			}
+			String name = in.readUTF();
+			if (!chaincodeName.equals(name)) {
+				throw new IOException("Snapshot " + snapshotFile + " is the state of " + name);
+			}
+			long snapshot = in.readLong();
+			int count = in.readInt();
+			lock.writeLock().lock();
+			try {
+				for (int i = 0; i < count; i++) {
+					byte[] key = new byte[in.readInt()];
+					in.readFully(key);
+					byte[] value = new byte[in.readInt()];
+					in.readFully(value);
+					index.put(new String(key, StandardCharsets.UTF_8), append(ByteBuffer.wrap(value)));
+				}
+				height = snapshot;
+				snapshotHeight = snapshot;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	// Must be called holding the write lock
+	private Location append(ByteBuffer value) throws IOException {
+		int length = value.remaining();
+		if (length > SEGMENT_SIZE) {
+			throw new IOException("Value of " + length + " bytes is too large");
+		}
+		if (writePosition % SEGMENT_SIZE + length > SEGMENT_SIZE) {
+			// Values don't straddle segments
+			writePosition = (writePosition / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+		}
+		int segment = (int) (writePosition / SEGMENT_SIZE);
+		while (segments.size() <= segment) {
+			segments.add(log.getChannel().map(FileChannel.MapMode.READ_WRITE, segments.size() * SEGMENT_SIZE,
+					SEGMENT_SIZE));
+		}
+		ByteBuffer target = segments.get(segment).duplicate();
+		target.position((int) (writePosition % SEGMENT_SIZE));
+		target.put(value.duplicate());
+		Location location = new Location(writePosition, length);
+		writePosition += length;
+		liveBytes += length;
+		return location;
+	}
+
+	// Must be called holding a lock
+	private ByteBuffer read(Location location) {
+		ByteBuffer view = segments.get((int) (location.position / SEGMENT_SIZE)).duplicate();
+		int start = (int) (location.position % SEGMENT_SIZE);
+		view.limit(start + location.length).position(start);
+		return view.slice().asReadOnlyBuffer();
+	}
+
+	// Copy the live values to a new log, must be called holding the write lock
+	private void compact() throws IOException {
+		File compactFile = new File(directory, "state.log.compact");
+		RandomAccessFile oldLog = log;
+		List<MappedByteBuffer> oldSegments = new ArrayList<>(segments);
+		long before = writePosition;
+		log = openLog(compactFile);
+		segments.clear();
+		writePosition = 0;
+		liveBytes = 0;
+		for (Map.Entry<String, Location> entry : index.entrySet()) {
+			Location location = entry.getValue();
+			ByteBuffer value = oldSegments.get((int) (location.position / SEGMENT_SIZE)).duplicate();
+			int start = (int) (location.position % SEGMENT_SIZE);
+			value.limit(start + location.length).position(start);
+			entry.setValue(append(value));
+		}
+		oldLog.close();
+		Files.move(compactFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		logger.log(Level.FINE,
+				"State mirror log of " + chaincodeName + " compacted from " + before + " to " + writePosition + " bytes");
+	}
+
+	private static RandomAccessFile openLog(File file) throws IOException {
+		RandomAccessFile log = new RandomAccessFile(file, "rw");
+		log.setLength(0);
+		return log;
+	}
+
+	private static final class Location {
+		private final long position;
+		private final int length;
+
+		Location(long position, int length) {
+			this.position = position;
+			this.length = length;
+		}
+	}
+}
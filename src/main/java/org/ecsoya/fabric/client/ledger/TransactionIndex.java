@@ -0,0 +1,335 @@
+package org.ecsoya.fabric.client.ledger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.BlockInfo.EnvelopeInfo;
+import org.hyperledger.fabric.sdk.BlockListener;
+
+/**
+ * Maps the transaction ids of a channel to the block and position they were
+ * committed at, and their validation code, so that the status of a
+ * transaction can be looked up without asking a peer.
+ * <p>
+ * The index is an open addressing hash table in a memory mapped file, which
+ * survives restarts. Each entry takes 48 bytes: the transaction id as 32
+ * bytes (a SHA-256 of the id if it is not the usual 64 hex characters), the
+ * block number, the position and the validation code. The table doubles into
+ * a new file, renamed over the old one, when it is 70% full.
+ * <p>
+ * {@link #getHeight()} is the number of blocks indexed without a gap from the
+ * genesis block, blocks received ahead of it are indexed too and the height
+ * catches up once the missing blocks are indexed. After a restart, blocks
+ * from the height on have to be indexed again, which is harmless as a
+ * transaction id keeps its first entry.
+ */
+public class TransactionIndex implements BlockListener, Closeable {
+
+	private static final Logger logger = Logger.getLogger(TransactionIndex.class.getName());
+
+	private static final int MAGIC = 0x46545849;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int SLOT_SIZE = 48;
+	private static final int KEY_SIZE = 32;
+	private static final int MIN_CAPACITY = 1 << 10;
+	private static final int MAX_CAPACITY = 1 << 25;
+	private static final double LOAD_FACTOR = 0.7;
+
+	// Header offsets
+	private static final int CAPACITY = 8;
+	private static final int HEIGHT = 16;
+
+	// Slot offsets, the block number is stored plus one so that 0 marks an
+	// empty slot
+	private static final int BLOCK = KEY_SIZE;
+	private static final int INDEX = KEY_SIZE + 8;
+	private static final int CODE = KEY_SIZE + 12;
+
+	private final File file;
+	private final TreeSet<Long> ahead = new TreeSet<>();
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private int size;
+	private long height;
+
+	/**
+	 * Open the index stored in the file, creating it if it doesn't exist.
+	 */
+	public TransactionIndex(File file) throws IOException {
+		this.file = file;
+		if (file.exists() && file.length() > 0) {
+			buffer = map(file, file.length());
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				throw new IOException("Not a transaction index: " + file);
+			}
+			capacity = buffer.getInt(CAPACITY);
+			height = buffer.getLong(HEIGHT);
+			for (int slot = 0; slot < capacity; slot++) {
+				if (buffer.getLong(offset(slot) + BLOCK) != 0) {
+					size++;
+				}
+			}
+		} else {
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (parent != null) {
+				parent.mkdirs();
+			}
+			capacity = MIN_CAPACITY;
+			buffer = create(file, capacity);
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the number of transactions indexed.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of blocks indexed from the genesis block on without a
+	 * gap, the first block to index after a restart.
+	 */
+	public synchronized long getHeight() {
+		return height;
+	}
+
+	@Override
+	public void received(BlockEvent blockEvent) {
+		index(blockEvent);
+	}
+
+	/**
+	 * Index the transactions of the block, which may be a filtered block.
+	 */
+	public void index(BlockInfo block) {
+		long number = block.getBlockNumber();
+		synchronized (this) {
+			if (number < height || ahead.contains(number)) {
+				return;
+			}
+		}
+		// Decode outside the lock
+		int count = block.getEnvelopeCount();
+		byte[][] keys = new byte[count][];
+		byte[] codes = new byte[count];
+		int position = 0;
+		for (EnvelopeInfo envelope : block.getEnvelopeInfos()) {
+			String txId = envelope.getTransactionID();
+			if (txId != null && !txId.isEmpty()) {
+				keys[position] = key(txId);
+				codes[position] = envelope.getValidationCode();
+			}
+			position++;
+		}
+		synchronized (this) {
+			if (buffer == null) {
+				return;
+			}
+			for (int i = 0; i < count; i++) {
+				if (keys[i] != null) {
+					put(keys[i], number, i, codes[i]);
+				}
+			}
+			if (number == height) {
+				height++;
+				while (!ahead.isEmpty() && ahead.first() == height) {
+					ahead.pollFirst();
+					height++;
+				}
+				buffer.putLong(HEIGHT, height);
+			} else if (number > height) {
+				ahead.add(number);
+			}
+		}
+	}
+
+	/**
+	 * Returns the status of the transaction, null if it has not been indexed.
+	 */
+	public synchronized TransactionStatus get(String txId) {
+		if (buffer == null || txId == null) {
+			return null;
+		}
+		int slot = find(key(txId));
+		if (slot < 0) {
+			return null;
+		}
+		int offset = offset(slot);
+		return new TransactionStatus(txId, buffer.getLong(offset + BLOCK) - 1, buffer.getInt(offset + INDEX),
+				buffer.get(offset + CODE));
+	}
+
+	/**
+	 * Write the index to disk.
+	 */
+	public synchronized void flush() {
+		if (buffer != null) {
+			buffer.force();
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (buffer != null) {
+			buffer.force();
+			buffer = null;
+		}
+	}
+
+	// Returns the slot holding the key, or -1 - the empty slot it would go to
+	private int find(byte[] key) {
+		int mask = capacity - 1;
+		int slot = (int) hash(key) & mask;
+		while (true) {
+			int offset = offset(slot);
+			if (buffer.getLong(offset + BLOCK) == 0) {
+				return -1 - slot;
+			}
+			if (matches(buffer, offset, key)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private void put(byte[] key, long blockNumber, int position, byte code) {
+		int slot = find(key);
+		if (slot >= 0) {
+			// A transaction id reused in a later block is an invalid duplicate
+			return;
+		}
+		if (size + 1 > capacity * LOAD_FACTOR) {
+			grow();
+			slot = find(key);
+		}
+		write(buffer, offset(-1 - slot), key, blockNumber + 1, position, code);
+		size++;
+	}
+
+	private void grow() {
+		if (capacity >= MAX_CAPACITY) {
+			throw new IllegalStateException("Transaction index " + file + " is full");
+		}
+		int newCapacity = capacity << 1;
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			MappedByteBuffer grown = create(tmp, newCapacity);
+			int mask = newCapacity - 1;
+			byte[] key = new byte[KEY_SIZE];
+			for (int slot = 0; slot < capacity; slot++) {
+				int offset = offset(slot);
+				long block = buffer.getLong(offset + BLOCK);
+				if (block == 0) {
+					continue;
+				}
+				for (int i = 0; i < KEY_SIZE; i++) {
+					key[i] = buffer.get(offset + i);
+				}
+				int target = (int) hash(key) & mask;
+				while (grown.getLong(offset(target) + BLOCK) != 0) {
+					target = (target + 1) & mask;
+				}
+				write(grown, offset(target), key, block, buffer.getInt(offset + INDEX), buffer.get(offset + CODE));
+			}
+			grown.putLong(HEIGHT, height);
+			grown.force();
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			buffer = grown;
+			capacity = newCapacity;
+			logger.log(Level.FINE, "Transaction index " + file + " grown to " + newCapacity + " slots");
+		} catch (IOException e) {
+			tmp.delete();
+			throw new IllegalStateException("Grow transaction index " + file + " failed", e);
+		}
+	}
+
+	private static MappedByteBuffer create(File file, int capacity) throws IOException {
+		MappedByteBuffer buffer = map(file, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(CAPACITY, capacity);
+		return buffer;
+	}
+
+	private static MappedByteBuffer map(File file, long length) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+			// The mapping stays valid once the channel is closed
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+		}
+	}
+
+	private static void write(MappedByteBuffer buffer, int offset, byte[] key, long block, int position,
+			byte code) {
+		for (int i = 0; i < KEY_SIZE; i++) {
+			buffer.put(offset + i, key[i]);
+		}
+		buffer.putInt(offset + INDEX, position);
+		buffer.put(offset + CODE, code);
+		// Written last, it makes the slot visible
+		buffer.putLong(offset + BLOCK, block);
+	}
+
+	private static boolean matches(MappedByteBuffer buffer, int offset, byte[] key) {
+		for (int i = 0; i < KEY_SIZE; i++) {
+			if (buffer.get(offset + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int offset(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	private static long hash(byte[] key) {
+		// The key is a hash already, its first bytes are well spread
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (key[i] & 0xFF);
+		}
+		return hash ^ (hash >>> 29);
+	}
+
+	static byte[] key(String txId) {
+		if (txId.length() == KEY_SIZE * 2) {
+			byte[] key = new byte[KEY_SIZE];
+			boolean hex = true;
+			for (int i = 0; i < KEY_SIZE && hex; i++) {
+				int high = Character.digit(txId.charAt(2 * i), 16);
+				int low = Character.digit(txId.charAt(2 * i + 1), 16);
+				hex = high >= 0 && low >= 0;
+				key[i] = (byte) ((high << 4) | low);
+			}
+			if (hex) {
+				return key;
+			}
+		}
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(txId.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
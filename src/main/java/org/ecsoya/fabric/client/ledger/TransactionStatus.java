@@ -0,0 +1,55 @@
+package org.ecsoya.fabric.client.ledger;
+
+import org.hyperledger.fabric.protos.peer.FabricTransaction.TxValidationCode;
+
+/**
+ * Where a transaction was committed and whether it was valid.
+ */
+public final class TransactionStatus {
+
+	private final String transactionId;
+	private final long blockNumber;
+	private final int transactionIndex;
+	private final byte validationCode;
+
+	public TransactionStatus(String transactionId, long blockNumber, int transactionIndex, byte validationCode) {
+		this.transactionId = transactionId;
+		this.blockNumber = blockNumber;
+		this.transactionIndex = transactionIndex;
+		this.validationCode = validationCode;
+	}
+
+	public String getTransactionId() {
+		return transactionId;
+	}
+
+	public long getBlockNumber() {
+		return blockNumber;
+	}
+
+	/**
+	 * Returns the position of the transaction in its block.
+	 */
+	public int getTransactionIndex() {
+		return transactionIndex;
+	}
+
+	public byte getValidationCode() {
+		return validationCode;
+	}
+
+	public TxValidationCode getTxValidationCode() {
+		TxValidationCode code = TxValidationCode.forNumber(validationCode & 0xFF);
+		return code == null ? TxValidationCode.UNRECOGNIZED : code;
+	}
+
+	public boolean isValid() {
+		return validationCode == TxValidationCode.VALID_VALUE;
+	}
+
+	@Override
+	public String toString() {
+		return "TransactionStatus [transactionId=" + transactionId + ", blockNumber=" + blockNumber
+				+ ", transactionIndex=" + transactionIndex + ", validationCode=" + getTxValidationCode() + "]";
+	}
+}
@@ -0,0 +1,192 @@
+package org.ecsoya.fabric.client.ledger;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads protobuf encoded messages in place, without parsing them into
+ * objects. A field of a message is located as a slice of the underlying
+ * array, packed in a long as the start offset in the high half and the
+ * length in the low half, so walking a message allocates nothing.
+ */
+final class WireFormat {
+
+	static final int VARINT = 0;
+	static final int FIXED64 = 1;
+	static final int LENGTH_DELIMITED = 2;
+	static final int FIXED32 = 5;
+
+	static final long NOT_FOUND = -1;
+
+	private final byte[] buffer;
+	private int position;
+	private int limit;
+	private int tag;
+	private int length;
+
+	WireFormat(byte[] buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Start reading the fields of the message in the slice.
+	 */
+	WireFormat reset(long slice) {
+		if (slice == NOT_FOUND) {
+			position = 0;
+			limit = 0;
+		} else {
+			position = start(slice);
+			limit = position + length(slice);
+		}
+		return this;
+	}
+
+	WireFormat reset(int offset, int length) {
+		position = offset;
+		limit = offset + length;
+		return this;
+	}
+
+	/**
+	 * Move to the next field, returns false at the end of the message.
+	 */
+	boolean next() {
+		if (position >= limit) {
+			return false;
+		}
+		tag = (int) readVarint();
+		return true;
+	}
+
+	int field() {
+		return tag >>> 3;
+	}
+
+	int wireType() {
+		return tag & 7;
+	}
+
+	long readVarint() {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (position >= limit) {
+				throw new IllegalArgumentException("Truncated varint at " + position);
+			}
+			byte b = buffer[position++];
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint at " + position);
+	}
+
+	/**
+	 * Read the current length delimited field, returns its slice.
+	 */
+	long readSlice() {
+		long value = readVarint();
+		if (value < 0 || value > limit - position) {
+			throw new IllegalArgumentException("Truncated field at " + position);
+		}
+		length = (int) value;
+		long slice = slice(position, length);
+		position += length;
+		return slice;
+	}
+
+	/**
+	 * Skip the value of the current field.
+	 */
+	void skip() {
+		switch (wireType()) {
+		case VARINT:
+			readVarint();
+			break;
+		case FIXED64:
+			advance(8);
+			break;
+		case LENGTH_DELIMITED:
+			readSlice();
+			break;
+		case FIXED32:
+			advance(4);
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported wire type " + wireType() + " at " + position);
+		}
+	}
+
+	private void advance(int bytes) {
+		if (bytes > limit - position) {
+			throw new IllegalArgumentException("Truncated field at " + position);
+		}
+		position += bytes;
+	}
+
+	/**
+	 * Returns the slice of the first length delimited field with the number in
+	 * the message slice, {@link #NOT_FOUND} if there is none.
+	 */
+	long find(long message, int field) {
+		if (message == NOT_FOUND) {
+			return NOT_FOUND;
+		}
+		int savedPosition = position;
+		int savedLimit = limit;
+		try {
+			reset(message);
+			while (next()) {
+				if (field() == field && wireType() == LENGTH_DELIMITED) {
+					return readSlice();
+				}
+				skip();
+			}
+			return NOT_FOUND;
+		} finally {
+			position = savedPosition;
+			limit = savedLimit;
+		}
+	}
+
+	/**
+	 * Returns the first varint field with the number in the message slice, the
+	 * default value if there is none.
+	 */
+	long findVarint(long message, int field, long defaultValue) {
+		if (message == NOT_FOUND) {
+			return defaultValue;
+		}
+		int savedPosition = position;
+		int savedLimit = limit;
+		try {
+			reset(message);
+			while (next()) {
+				if (field() == field && wireType() == VARINT) {
+					return readVarint();
+				}
+				skip();
+			}
+			return defaultValue;
+		} finally {
+			position = savedPosition;
+			limit = savedLimit;
+		}
+	}
+
+	String string(long slice) {
+		return slice == NOT_FOUND ? "" : new String(buffer, start(slice), length(slice), StandardCharsets.UTF_8);
+	}
+
+	static long slice(int start, int length) {
+		return ((long) start << 32) | (length & 0xFFFFFFFFL);
+	}
+
+	static int start(long slice) {
+		return (int) (slice >>> 32);
+	}
+
+	static int length(long slice) {
+		return (int) slice;
+	}
+}
@@ -0,0 +1,251 @@
+package org.ecsoya.fabric.client.limit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounds the number of requests in flight on a channel and per chaincode.
+ * Requests over the limit wait in a bounded queue for at most
+ * {@code maxWaitMillis}, and are rejected with an
+ * {@link AdmissionRejectedException} when the queue is full or the wait
+ * expires, so callers shed load early instead of timing out late.
+ * <p>
+ * Limits can be changed at any time. By default nothing is limited.
+ */
+public class AdmissionController {
+
+	private final ScheduledExecutorService scheduler;
+
+	private int maxInFlight = Integer.MAX_VALUE;
+	private int maxQueued;
+	private long maxWaitMillis;
+	private final Map<String, Integer> chaincodeMaxInFlight = new HashMap<>();
+
+	private int inUse;
+	private final Map<String, Integer> chaincodeInUse = new HashMap<>();
+	private final LinkedList<Waiter> queue = new LinkedList<>();
+	private long admitted;
+	private long rejected;
+
+	public AdmissionController(ScheduledExecutorService scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Maximum number of requests in flight on the channel.
+	 */
+	public AdmissionController maxInFlight(int maxInFlight) {
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("maxInFlight should be positive.");
+		}
+		synchronized (this) {
+			this.maxInFlight = maxInFlight;
+		}
+		drain();
+		return this;
+	}
+
+	/**
+	 * Maximum number of requests in flight for one chaincode, 0 or less to only
+	 * apply the channel limit.
+	 */
+	public AdmissionController maxInFlight(String chaincodeName, int maxInFlight) {
+		synchronized (this) {
+			if (maxInFlight <= 0) {
+				chaincodeMaxInFlight.remove(chaincodeName);
+			} else {
+				chaincodeMaxInFlight.put(chaincodeName, maxInFlight);
+			}
+		}
+		drain();
+		return this;
+	}
+
+	/**
+	 * Maximum number of requests waiting for admission, 0, the default, rejects
+	 * requests over the limit immediately.
+	 */
+	public synchronized AdmissionController maxQueued(int maxQueued) {
+		if (maxQueued < 0) {
+			throw new IllegalArgumentException("maxQueued can't be negative.");
+		}
+		this.maxQueued = maxQueued;
+		return this;
+	}
+
+	/**
+	 * Maximum time a request waits for admission, 0 or less to wait until
+	 * admitted.
+	 */
+	public synchronized AdmissionController maxWaitMillis(long maxWaitMillis) {
+		this.maxWaitMillis = maxWaitMillis;
+		return this;
+	}
+
+	/**
+	 * Acquire a permit for a request on the chaincode. The future fails with an
+	 * {@link AdmissionRejectedException} if the request is not admitted.
+	 *
+	 * @param chaincodeName The chaincode of the request, may be null
+	 * @return A future of the permit, to be released when the request is done
+	 */
+	public CompletableFuture<Permit> acquire(String chaincodeName) {
+		synchronized (this) {
+			if (canAdmit(chaincodeName)) {
+				return CompletableFuture.completedFuture(admit(chaincodeName));
+			}
+			if (queue.size() < maxQueued) {
+				Waiter waiter = new Waiter(chaincodeName);
+				queue.add(waiter);
+				if (maxWaitMillis > 0) {
+					waiter.timeout = scheduler.schedule(() -> expire(waiter), maxWaitMillis,
+							TimeUnit.MILLISECONDS);
+				}
+				return waiter.future;
+			}
+			rejected++;
+		}
+		CompletableFuture<Permit> failed = new CompletableFuture<>();
+		failed.completeExceptionally(new AdmissionRejectedException(
+				"Too many requests in flight" + (chaincodeName == null ? "" : " for " + chaincodeName),
+				chaincodeName));
+		return failed;
+	}
+
+	/**
+	 * Returns the number of permits in use on the channel.
+	 */
+	public synchronized int getInUse() {
+		return inUse;
+	}
+
+	/**
+	 * Returns the number of permits in use for the chaincode.
+	 */
+	public synchronized int getInUse(String chaincodeName) {
+		Integer count = chaincodeInUse.get(chaincodeName);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Returns the number of requests waiting for admission.
+	 */
+	public synchronized int getQueueDepth() {
+		return queue.size();
+	}
+
+	public synchronized long getAdmitted() {
+		return admitted;
+	}
+
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	private boolean canAdmit(String chaincodeName) {
+		if (inUse >= maxInFlight) {
+			return false;
+		}
+		Integer max = chaincodeName == null ? null : chaincodeMaxInFlight.get(chaincodeName);
+		return max == null || getInUse(chaincodeName) < max;
+	}
+
+	private Permit admit(String chaincodeName) {
+		inUse++;
+		admitted++;
+		if (chaincodeName != null) {
+			chaincodeInUse.merge(chaincodeName, 1, Integer::sum);
+		}
+		return new Permit(chaincodeName);
+	}
+
+	private void release(String chaincodeName) {
+		synchronized (this) {
+			inUse--;
+			if (chaincodeName != null && chaincodeInUse.merge(chaincodeName, -1, Integer::sum) <= 0) {
+				chaincodeInUse.remove(chaincodeName);
+			}
+		}
+		drain();
+	}
+
+	// Admit waiting requests in order, skipping those whose chaincode is full
+	private void drain() {
+		List<Waiter> ready = new ArrayList<>();
+		List<Permit> permits = new ArrayList<>();
+		synchronized (this) {
+			Iterator<Waiter> it = queue.iterator();
+			while (it.hasNext() && inUse < maxInFlight) {
+				Waiter waiter = it.next();
+				if (canAdmit(waiter.chaincodeName)) {
+					it.remove();
+					ready.add(waiter);
+					permits.add(admit(waiter.chaincodeName));
+				}
+			}
+		}
+		for (int i = 0; i < ready.size(); i++) {
+			Waiter waiter = ready.get(i);
+			if (waiter.timeout != null) {
+				waiter.timeout.cancel(false);
+			}
+			if (!waiter.future.complete(permits.get(i))) {
+				// Cancelled by the caller meanwhile
+				permits.get(i).release();
+			}
+		}
+	}
+
+	private void expire(Waiter waiter) {
+		synchronized (this) {
+			if (!queue.remove(waiter)) {
+				return;
+			}
+			rejected++;
+		}
+		waiter.future.completeExceptionally(new AdmissionRejectedException("Not admitted within " + maxWaitMillis
+				+ "ms" + (waiter.chaincodeName == null ? "" : " for " + waiter.chaincodeName),
+				waiter.chaincodeName));
+	}
+
+	private static class Waiter {
+		private final String chaincodeName;
+		private final CompletableFuture<Permit> future = new CompletableFuture<>();
+		private volatile ScheduledFuture<?> timeout;
+
+		Waiter(String chaincodeName) {
+			this.chaincodeName = chaincodeName;
+		}
+	}
+
+	/**
+	 * The right to have one request in flight.
+	 */
+	public class Permit {
+
+		private final String chaincodeName;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private Permit(String chaincodeName) {
+			this.chaincodeName = chaincodeName;
+		}
+
+		/**
+		 * Give the permit back, may be called more than once.
+		 */
+		public void release() {
+			if (released.compareAndSet(false, true)) {
+				AdmissionController.this.release(chaincodeName);
+			}
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package org.ecsoya.fabric.client.limit;
+
+import org.hyperledger.fabric.sdk.exception.ProposalException;
+
+/**
+ * Thrown when a request is not admitted because the channel or chaincode has
+ * too many requests in flight and the wait queue is full or the maximum wait
+ * elapsed. Nothing has been sent to any peer, so the request can safely be
+ * retried later.
+ */
+public class AdmissionRejectedException extends ProposalException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String chaincodeName;
+
+	public AdmissionRejectedException(String message, String chaincodeName) {
+		super(message);
+		this.chaincodeName = chaincodeName;
+	}
+
+	/**
+	 * Returns the chaincode of the rejected request, may be null.
+	 */
+	public String getChaincodeName() {
+		return chaincodeName;
+	}
+}
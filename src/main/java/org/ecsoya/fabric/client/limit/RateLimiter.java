@@ -0,0 +1,199 @@
+package org.ecsoya.fabric.client.limit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limits keyed by channel, chaincode and function. A null
+ * key part matches everything, so a limit may apply to the whole client, a
+ * channel, a chaincode on a channel, a function on every channel or any other
+ * combination. A request takes a token from every limit matching it.
+ *
+ * <pre>
+ * rateLimiter.setRate("mychannel", null, null, 500);
+ * rateLimiter.setRate("mychannel", "mycc", "transfer", 100);
+ * </pre>
+ */
+public class RateLimiter {
+
+	private final Map<Key, TokenBucket> buckets = new ConcurrentHashMap<>();
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Limit requests matching the key, or change the rate of an existing limit.
+	 * The burst is one second worth of requests.
+	 *
+	 * @param channelName      The channel, null for every channel
+	 * @param chaincodeName    The chaincode, null for every chaincode
+	 * @param functionName     The function, null for every function
+	 * @param permitsPerSecond
+	 */
+	public void setRate(String channelName, String chaincodeName, String functionName, double permitsPerSecond) {
+		setRate(channelName, chaincodeName, functionName, permitsPerSecond, Math.max(1, permitsPerSecond));
+	}
+
+	public void setRate(String channelName, String chaincodeName, String functionName, double permitsPerSecond,
+			double burst) {
+		buckets.compute(new Key(channelName, chaincodeName, functionName), (key, bucket) -> {
+			if (bucket == null) {
+				return new TokenBucket(permitsPerSecond, burst);
+			}
+			bucket.setRate(permitsPerSecond, burst);
+			return bucket;
+		});
+	}
+
+	public void removeRate(String channelName, String chaincodeName, String functionName) {
+		buckets.remove(new Key(channelName, chaincodeName, functionName));
+	}
+
+	/**
+	 * Returns the bucket of the limit with exactly this key, null if none, to
+	 * read its statistics.
+	 */
+	public TokenBucket getBucket(String channelName, String chaincodeName, String functionName) {
+		return buckets.get(new Key(channelName, chaincodeName, functionName));
+	}
+
+	/**
+	 * Take a token from every matching limit if all have one, without waiting.
+	 */
+	public synchronized boolean tryAcquire(String channelName, String chaincodeName, String functionName) {
+		List<TokenBucket> taken = new ArrayList<>();
+		for (TokenBucket bucket : match(channelName, chaincodeName, functionName)) {
+			if (!bucket.tryAcquire()) {
+				for (TokenBucket acquired : taken) {
+					acquired.refund();
+				}
+				return false;
+			}
+			taken.add(bucket);
+		}
+		return true;
+	}
+
+	/**
+	 * Take a token from every matching limit, waiting until they are available.
+	 */
+	public void acquire(String channelName, String chaincodeName, String functionName) throws InterruptedException {
+		long wait = reserve(channelName, chaincodeName, functionName);
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Take a token from every matching limit, the future completes when they are
+	 * available. A future that had to wait is completed on the limiter's single
+	 * scheduler thread, which then runs the dependent stages: use
+	 * {@link #acquireAsync(String, String, String, Executor)} unless they are
+	 * trivial.
+	 */
+	public CompletableFuture<Void> acquireAsync(String channelName, String chaincodeName, String functionName) {
+		return acquireAsync(channelName, chaincodeName, functionName, Runnable::run);
+	}
+
+	/**
+	 * Take a token from every matching limit, the future completes when they are
+	 * available. If it had to wait, it is completed on the executor.
+	 */
+	public CompletableFuture<Void> acquireAsync(String channelName, String chaincodeName, String functionName,
+			Executor executor) {
+		long wait = reserve(channelName, chaincodeName, functionName);
+		if (wait <= 0) {
+			return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		getScheduler().schedule(() -> {
+			try {
+				executor.execute(() -> future.complete(null));
+			} catch (RejectedExecutionException e) {
+				future.completeExceptionally(e);
+			}
+		}, wait, TimeUnit.NANOSECONDS);
+		return future;
+	}
+
+	/**
+	 * Returns the total time requests have been held back by any limit.
+	 */
+	public long getThrottledMillis() {
+		long millis = 0;
+		for (TokenBucket bucket : buckets.values()) {
+			millis += bucket.getThrottledMillis();
+		}
+		return millis;
+	}
+
+	private long reserve(String channelName, String chaincodeName, String functionName) {
+		long wait = 0;
+		for (TokenBucket bucket : match(channelName, chaincodeName, functionName)) {
+			wait = Math.max(wait, bucket.reserve());
+		}
+		return wait;
+	}
+
+	private List<TokenBucket> match(String channelName, String chaincodeName, String functionName) {
+		List<TokenBucket> matched = new ArrayList<>(4);
+		if (buckets.isEmpty()) {
+			return matched;
+		}
+		// Every combination of wildcard parts, whatever setRate was given
+		for (int wildcards = 0; wildcards < 8; wildcards++) {
+			Key key = new Key((wildcards & 4) != 0 ? null : channelName, (wildcards & 2) != 0 ? null : chaincodeName,
+					(wildcards & 1) != 0 ? null : functionName);
+			TokenBucket bucket = buckets.get(key);
+			if (bucket != null && !matched.contains(bucket)) {
+				matched.add(bucket);
+			}
+		}
+		return matched;
+	}
+
+	private synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "rate-limiter");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return scheduler;
+	}
+
+	private static class Key {
+		private final String channelName;
+		private final String chaincodeName;
+		private final String functionName;
+
+		Key(String channelName, String chaincodeName, String functionName) {
+			this.channelName = channelName;
+			this.chaincodeName = chaincodeName;
+			this.functionName = functionName;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(channelName, chaincodeName, functionName);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return Objects.equals(channelName, other.channelName) && Objects.equals(chaincodeName, other.chaincodeName)
+					&& Objects.equals(functionName, other.functionName);
+		}
+	}
+}
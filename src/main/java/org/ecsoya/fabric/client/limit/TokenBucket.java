@@ -0,0 +1,153 @@
+package org.ecsoya.fabric.client.limit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket refilled at a fixed rate up to a burst capacity.
+ * <p>
+ * Blocking and asynchronous acquires reserve a token ahead of time, letting
+ * the bucket go into debt, and wait until the token would have been
+ * available. Waiters are therefore served in order without polling, and the
+ * time they spent waiting is reported as throttled.
+ */
+public class TokenBucket {
+
+	private double permitsPerSecond;
+	private double burst;
+	private double tokens;
+	private long refilled;
+
+	private long acquired;
+	private long throttled;
+	private long throttledNanos;
+	private long denied;
+
+	/**
+	 * @param permitsPerSecond The refill rate
+	 * @param burst            The maximum number of tokens, which may be taken
+	 *                         at once
+	 */
+	public TokenBucket(double permitsPerSecond, double burst) {
+		check(permitsPerSecond, burst);
+		this.permitsPerSecond = permitsPerSecond;
+		this.burst = burst;
+		this.tokens = burst;
+		this.refilled = System.nanoTime();
+	}
+
+	/**
+	 * Change the rate, keeping the tokens already earned up to the new burst.
+	 */
+	public synchronized void setRate(double permitsPerSecond, double burst) {
+		check(permitsPerSecond, burst);
+		refill(System.nanoTime());
+		this.permitsPerSecond = permitsPerSecond;
+		this.burst = burst;
+		this.tokens = Math.min(tokens, burst);
+	}
+
+	public synchronized double getPermitsPerSecond() {
+		return permitsPerSecond;
+	}
+
+	public synchronized double getBurst() {
+		return burst;
+	}
+
+	/**
+	 * Take a token if one is available, without waiting.
+	 */
+	public synchronized boolean tryAcquire() {
+		refill(System.nanoTime());
+		if (tokens >= 1) {
+			tokens -= 1;
+			acquired++;
+			return true;
+		}
+		denied++;
+		return false;
+	}
+
+	/**
+	 * Take a token, waiting until it is available.
+	 */
+	public void acquire() throws InterruptedException {
+		long wait = reserve();
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Reserve a token and return how long to wait before using it, in
+	 * nanoseconds.
+	 */
+	public synchronized long reserve() {
+		refill(System.nanoTime());
+		tokens -= 1;
+		acquired++;
+		if (tokens >= 0) {
+			return 0;
+		}
+		long wait = (long) Math.ceil(-tokens / permitsPerSecond * 1e9);
+		throttled++;
+		throttledNanos += wait;
+		return wait;
+	}
+
+	/**
+	 * Give back a token taken by {@link #tryAcquire()} that was not used.
+	 */
+	synchronized void refund() {
+		tokens = Math.min(burst, tokens + 1);
+		acquired--;
+	}
+
+	/**
+	 * Returns the number of tokens taken.
+	 */
+	public synchronized long getAcquired() {
+		return acquired;
+	}
+
+	/**
+	 * Returns the number of acquires that had to wait.
+	 */
+	public synchronized long getThrottled() {
+		return throttled;
+	}
+
+	/**
+	 * Returns the total time acquires had to wait.
+	 */
+	public synchronized long getThrottledMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(throttledNanos);
+	}
+
+	/**
+	 * Returns the number of failed {@link #tryAcquire()}.
+	 */
+	public synchronized long getDenied() {
+		return denied;
+	}
+
+	private void refill(long now) {
+		tokens = Math.min(burst, tokens + (now - refilled) / 1e9 * permitsPerSecond);
+		refilled = now;
+	}
+
+	private static void check(double permitsPerSecond, double burst) {
+		if (permitsPerSecond <= 0) {
+			throw new IllegalArgumentException("Rate should be positive.");
+		}
+		if (burst < 1) {
+			throw new IllegalArgumentException("Burst should be at least 1.");
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("rate=%.1f/s, burst=%.0f, acquired=%d, throttled=%d, throttledMillis=%d, denied=%d",
+				permitsPerSecond, burst, acquired, throttled, getThrottledMillis(), denied);
+	}
+}
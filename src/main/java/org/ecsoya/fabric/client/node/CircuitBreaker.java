@@ -0,0 +1,230 @@
+package org.ecsoya.fabric.client.node;
+
+/**
+ * Stops sending requests to a node that keeps failing.
+ * <p>
+ * While {@link State#CLOSED} the outcome of the last {@code windowSize}
+ * requests is kept, and the circuit opens when at least {@code minRequests}
+ * of them were made and the share of failures reaches
+ * {@code failureRateThreshold}. An {@link State#OPEN} node is not selected
+ * for {@code openMillis}, after which the circuit is {@link State#HALF_OPEN}
+ * and a single probe request is let through: it closes the circuit if it
+ * succeeds and opens it again if it fails. Other requests are refused until
+ * then, and the outcomes of requests sent before the circuit opened are
+ * ignored.
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * The permit of a request that must not be sent.
+	 */
+	public static final long REFUSED = -1;
+
+	/**
+	 * The permit of a request sent while the circuit is closed.
+	 */
+	public static final long REQUEST = 0;
+
+	private static final long NO_PROBE = 0;
+
+	private int windowSize = 20;
+	private int minRequests = 10;
+	private double failureRateThreshold = 0.5;
+	private long openMillis = 5000;
+
+	private boolean[] window = new boolean[windowSize];
+	private int index;
+	private int count;
+	private int failures;
+
+	private State state = State.CLOSED;
+	private long openedAt;
+	private long probe = NO_PROBE;
+	private long probes;
+	private long probeStartedAt;
+	private long opened;
+
+	/**
+	 * Set the number of most recent requests the failure rate is computed on and
+	 * the number of requests needed before the circuit may open.
+	 */
+	public synchronized CircuitBreaker window(int windowSize, int minRequests) {
+		if (windowSize <= 0 || minRequests <= 0 || minRequests > windowSize) {
+			throw new IllegalArgumentException("minRequests should be between 1 and windowSize.");
+		}
+		this.windowSize = windowSize;
+		this.minRequests = minRequests;
+		reset();
+		return this;
+	}
+
+	public synchronized CircuitBreaker failureRateThreshold(double failureRateThreshold) {
+		if (failureRateThreshold <= 0 || failureRateThreshold > 1) {
+			throw new IllegalArgumentException("Failure rate threshold should be in (0, 1].");
+		}
+		this.failureRateThreshold = failureRateThreshold;
+		return this;
+	}
+
+	/**
+	 * Set how long the circuit stays open before a probe is let through.
+	 */
+	public synchronized CircuitBreaker openMillis(long openMillis) {
+		this.openMillis = openMillis;
+		return this;
+	}
+
+	/**
+	 * Returns true if requests may be sent to the node, without changing the
+	 * state of the circuit, to rank or filter nodes. An open node becomes
+	 * available once {@code openMillis} have passed, a half open node while no
+	 * probe is in flight. Use {@link #tryAcquire()} to actually send.
+	 */
+	public synchronized boolean isAvailable() {
+		long now = System.currentTimeMillis();
+		switch (state) {
+		case OPEN:
+			return now - openedAt >= openMillis;
+		case HALF_OPEN:
+			return canProbe(now);
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Check that a request may be sent to the node and reserve it: always
+	 * granted while closed, and to a single probe at a time once the circuit
+	 * has been open for {@code openMillis}. The permit identifies the request
+	 * to {@link #record(long, boolean)} and {@link #cancel(long)}, only the
+	 * outcome of the probe holding the half open circuit changes its state.
+	 *
+	 * @return The permit of the request, {@link #REFUSED} if it must not be
+	 *         sent
+	 */
+	public synchronized long tryAcquire() {
+		long now = System.currentTimeMillis();
+		switch (state) {
+		case OPEN:
+			if (now - openedAt < openMillis) {
+				return REFUSED;
+			}
+			state = State.HALF_OPEN;
+			return startProbe(now);
+		case HALF_OPEN:
+			return canProbe(now) ? startProbe(now) : REFUSED;
+		default:
+			return REQUEST;
+		}
+	}
+
+	private long startProbe(long now) {
+		probe = ++probes;
+		probeStartedAt = now;
+		return probe;
+	}
+
+	// A probe that never reported back does not block the node forever
+	private boolean canProbe(long now) {
+		return probe == NO_PROBE || now - probeStartedAt >= openMillis;
+	}
+
+	/**
+	 * Record the outcome of a request.
+	 *
+	 * @param permit  The permit the request was granted
+	 * @param success false if the node failed to answer, not if it answered
+	 *                with an error
+	 */
+	public synchronized void record(long permit, boolean success) {
+		switch (state) {
+		case HALF_OPEN:
+			if (probe == NO_PROBE || permit != probe) {
+				// Requests sent before the circuit opened, or a probe given up on
+				break;
+			}
+			probe = NO_PROBE;
+			if (success) {
+				state = State.CLOSED;
+				reset();
+			} else {
+				open();
+			}
+			break;
+		case CLOSED:
+			if (count == windowSize) {
+				if (!window[index]) {
+					failures--;
+				}
+			} else {
+				count++;
+			}
+			window[index] = success;
+			if (!success) {
+				failures++;
+			}
+			index = (index + 1) % windowSize;
+			if (count >= minRequests && getFailureRate() >= failureRateThreshold) {
+				open();
+			}
+			break;
+		default:
+			// Late answers of requests sent before the circuit opened
+			break;
+		}
+	}
+
+	/**
+	 * Mark a request as abandoned before its outcome was known. If it was the
+	 * probe, another probe may be sent right away.
+	 *
+	 * @param permit The permit the request was granted
+	 */
+	public synchronized void cancel(long permit) {
+		if (state == State.HALF_OPEN && probe != NO_PROBE && permit == probe) {
+			probe = NO_PROBE;
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Returns the share of failed requests in the window.
+	 */
+	public synchronized double getFailureRate() {
+		return count == 0 ? 0 : (double) failures / count;
+	}
+
+	/**
+	 * Returns how many times the circuit has opened.
+	 */
+	public synchronized long getOpened() {
+		return opened;
+	}
+
+	private void open() {
+		state = State.OPEN;
+		probe = NO_PROBE;
+		openedAt = System.currentTimeMillis();
+		opened++;
+		reset();
+	}
+
+	private void reset() {
+		window = new boolean[windowSize];
+		index = 0;
+		count = 0;
+		failures = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "CircuitBreaker [state=" + state + ", failureRate=" + getFailureRate() + ", opened=" + opened + "]";
+	}
+}
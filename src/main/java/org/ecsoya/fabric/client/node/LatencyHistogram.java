@@ -0,0 +1,84 @@
+package org.ecsoya.fabric.client.node;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A compact latency histogram with logarithmic buckets from 1 ms to about 65
+ * seconds, giving percentiles with roughly 20% precision. Counts decay by half
+ * every {@code decayInterval} recordings so the percentiles follow recent
+ * behavior.
+ */
+public class LatencyHistogram {
+
+	// Four buckets per power of two, 1ms .. 2^16ms
+	private static final int BUCKETS_PER_OCTAVE = 4;
+	private static final int BUCKETS = 16 * BUCKETS_PER_OCTAVE + 1;
+
+	private final long[] counts = new long[BUCKETS];
+	private final int decayInterval;
+	private long total;
+	private long recorded;
+
+	public LatencyHistogram() {
+		this(1000);
+	}
+
+	public LatencyHistogram(int decayInterval) {
+		this.decayInterval = decayInterval;
+	}
+
+	public synchronized void record(long latencyNanos) {
+		double millis = latencyNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+		counts[bucketOf(millis)]++;
+		total++;
+		if (++recorded % decayInterval == 0) {
+			total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] >>= 1;
+				total += counts[i];
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of recordings the percentiles are currently based on.
+	 */
+	public synchronized long getCount() {
+		return total;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket containing the given percentile, in
+	 * milliseconds, or -1 if nothing has been recorded.
+	 * 
+	 * @param percentile A value between 0 and 100
+	 * @return
+	 */
+	public synchronized double getPercentileMillis(double percentile) {
+		if (total == 0) {
+			return -1;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) {
+				return upperBoundOf(i);
+			}
+		}
+		return upperBoundOf(BUCKETS - 1);
+	}
+
+	private static int bucketOf(double millis) {
+		if (millis <= 1) {
+			return 0;
+		}
+		int bucket = (int) Math.ceil(Math.log(millis) / Math.log(2) * BUCKETS_PER_OCTAVE);
+		return Math.min(bucket, BUCKETS - 1);
+	}
+
+	private static double upperBoundOf(int bucket) {
+		return Math.pow(2, bucket / (double) BUCKETS_PER_OCTAVE);
+	}
+
+}
@@ -0,0 +1,252 @@
+package org.ecsoya.fabric.client.node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockListener;
+import org.hyperledger.fabric.sdk.BlockchainInfo;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.Peer;
+
+/**
+ * Tracks the ledger height of each peer, stored in its {@link NodeStats}, from
+ * the block events it delivers and from periodic blockchain info queries for
+ * peers that deliver no events. Peers lagging more than {@code maxLag} blocks
+ * behind the highest known peer can be filtered out of routing, and callers
+ * can wait until a peer reaches a given height.
+ */
+public class LedgerHeightTracker implements BlockListener {
+
+	private static final Logger logger = Logger.getLogger(LedgerHeightTracker.class.getName());
+
+	private final Channel channel;
+	private final NodeStatsRegistry nodeStats;
+	private final Executor executor;
+	private final ScheduledExecutorService scheduler;
+	private final List<Waiter> waiters = new ArrayList<>();
+	private final AtomicLong maxHeight = new AtomicLong();
+
+	private volatile long maxLag = 5;
+	private volatile long pollIntervalMillis = 10000;
+	private ScheduledFuture<?> poller;
+
+	public LedgerHeightTracker(Channel channel, NodeStatsRegistry nodeStats, Executor executor,
+			ScheduledExecutorService scheduler) {
+		this.channel = channel;
+		this.nodeStats = nodeStats;
+		this.executor = executor;
+		this.scheduler = scheduler;
+	}
+
+	public long getMaxLag() {
+		return maxLag;
+	}
+
+	/**
+	 * Set how many blocks a peer may be behind the highest known peer before it
+	 * is avoided, 0 or less to never avoid a peer.
+	 */
+	public void setMaxLag(long maxLag) {
+		this.maxLag = maxLag;
+	}
+
+	public long getPollIntervalMillis() {
+		return pollIntervalMillis;
+	}
+
+	/**
+	 * Set how often every peer's blockchain info is queried, 0 or less to only
+	 * rely on block events. Takes effect on the next {@link #start()}.
+	 */
+	public void setPollIntervalMillis(long pollIntervalMillis) {
+		this.pollIntervalMillis = pollIntervalMillis;
+	}
+
+	/**
+	 * Start polling peer heights, does nothing if already started or polling is
+	 * disabled.
+	 */
+	public synchronized void start() {
+		if (poller == null && pollIntervalMillis > 0) {
+			poller = scheduler.scheduleWithFixedDelay(this::poll, 0, pollIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public synchronized void stop() {
+		if (poller != null) {
+			poller.cancel(false);
+			poller = null;
+		}
+	}
+
+	/**
+	 * Query the height of every peer of the channel now.
+	 */
+	public void poll() {
+		for (Peer peer : channel.getPeers()) {
+			executor.execute(() -> {
+				try {
+					BlockchainInfo info = channel.queryBlockchainInfo(peer);
+					update(peer, info.getHeight());
+				} catch (Exception e) {
+					logger.log(Level.FINE, "Query blockchain info of peer " + peer.getName() + " failed", e);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void received(BlockEvent blockEvent) {
+		if (blockEvent.getPeer() != null) {
+			update(blockEvent.getPeer(), blockEvent.getBlockNumber() + 1);
+		}
+	}
+
+	/**
+	 * Record the ledger height of the peer, completing the waits it satisfies.
+	 */
+	public void update(Peer peer, long height) {
+		if (!nodeStats.get(peer).updateLedgerHeight(height)) {
+			return;
+		}
+		maxHeight.accumulateAndGet(height, Math::max);
+		List<Waiter> ready = new ArrayList<>();
+		synchronized (waiters) {
+			Iterator<Waiter> it = waiters.iterator();
+			while (it.hasNext()) {
+				Waiter waiter = it.next();
+				if (height >= waiter.height && waiter.peers.contains(peer)) {
+					it.remove();
+					ready.add(waiter);
+				}
+			}
+		}
+		for (Waiter waiter : ready) {
+			waiter.future.complete(peer);
+		}
+	}
+
+	public long getHeight(Peer peer) {
+		return nodeStats.get(peer).getLedgerHeight();
+	}
+
+	/**
+	 * Returns the highest ledger height known of any peer.
+	 */
+	public long getMaxHeight() {
+		return maxHeight.get();
+	}
+
+	/**
+	 * Returns how many blocks the peer is behind the highest known peer, 0 if
+	 * its height is unknown.
+	 */
+	public long getLag(Peer peer) {
+		long height = getHeight(peer);
+		return height == 0 ? 0 : Math.max(0, getMaxHeight() - height);
+	}
+
+	/**
+	 * Returns the lag of every peer of the channel, by peer name.
+	 */
+	public Map<String, Long> getLags() {
+		Map<String, Long> lags = new LinkedHashMap<>();
+		for (Peer peer : channel.getPeers()) {
+			lags.put(peer.getName(), getLag(peer));
+		}
+		return lags;
+	}
+
+	public boolean isLagging(Peer peer) {
+		long max = maxLag;
+		return max > 0 && getLag(peer) > max;
+	}
+
+	/**
+	 * Returns the peers that are not lagging, or all of them if they all are.
+	 */
+	public List<Peer> excludeLagging(Collection<Peer> peers) {
+		List<Peer> current = new ArrayList<>(peers.size());
+		for (Peer peer : peers) {
+			if (!isLagging(peer)) {
+				current.add(peer);
+			}
+		}
+		return current.isEmpty() ? new ArrayList<>(peers) : current;
+	}
+
+	/**
+	 * Returns the peers known to have reached the height.
+	 */
+	public List<Peer> filter(Collection<Peer> peers, long height) {
+		List<Peer> reached = new ArrayList<>();
+		for (Peer peer : peers) {
+			if (getHeight(peer) >= height) {
+				reached.add(peer);
+			}
+		}
+		return reached;
+	}
+
+	/**
+	 * Wait until one of the peers reaches the height. The future fails with a
+	 * {@link TimeoutException} if none does in time.
+	 *
+	 * @param peers         The peers to wait for
+	 * @param height        The ledger height to reach
+	 * @param timeoutMillis The maximum time to wait
+	 * @return A future of the first peer reaching the height
+	 */
+	public CompletableFuture<Peer> awaitHeight(Collection<Peer> peers, long height, long timeoutMillis) {
+		Waiter waiter = new Waiter(peers, height);
+		synchronized (waiters) {
+			waiters.add(waiter);
+		}
+		// Check after registering so that an update in between is not missed
+		List<Peer> reached = filter(peers, height);
+		if (!reached.isEmpty()) {
+			remove(waiter);
+			waiter.future.complete(reached.get(0));
+			return waiter.future;
+		}
+		scheduler.schedule(() -> {
+			if (remove(waiter)) {
+				waiter.future.completeExceptionally(
+						new TimeoutException("No peer reached ledger height " + height + " within " + timeoutMillis
+								+ "ms"));
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+		return waiter.future;
+	}
+
+	private boolean remove(Waiter waiter) {
+		synchronized (waiters) {
+			return waiters.remove(waiter);
+		}
+	}
+
+	private static class Waiter {
+		private final Collection<Peer> peers;
+		private final long height;
+		private final CompletableFuture<Peer> future = new CompletableFuture<>();
+
+		Waiter(Collection<Peer> peers, long height) {
+			this.peers = peers;
+			this.height = height;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package org.ecsoya.fabric.client.node;
+
+import java.util.concurrent.TimeoutException;
+
+import io.grpc.Status;
+import io.grpc.StatusException;
+import io.grpc.StatusRuntimeException;
+
+/**
+ * Classifies the failures of requests to peers and orderers from the gRPC
+ * status found in their cause chain, so that a node that did not answer is
+ * told apart from one that answered with an error.
+ */
+public final class NodeErrors {
+
+	// Bounds the walk of a cause chain that loops
+	private static final int MAX_CAUSES = 32;
+
+	private NodeErrors() {
+	}
+
+	/**
+	 * Returns the code of the first gRPC status in the cause chain of the error,
+	 * null if the error did not come from a gRPC call.
+	 */
+	public static Status.Code getStatusCode(Throwable error) {
+		Throwable cause = error;
+		for (int i = 0; cause != null && i < MAX_CAUSES; i++) {
+			if (cause instanceof StatusRuntimeException) {
+				return ((StatusRuntimeException) cause).getStatus().getCode();
+			}
+			if (cause instanceof StatusException) {
+				return ((StatusException) cause).getStatus().getCode();
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+			cause = cause.getCause();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if the error means the node did not answer: the call failed
+	 * as unavailable or past its deadline, or timed out waiting for the answer.
+	 */
+	public static boolean isUnreachable(Throwable error) {
+		Status.Code code = getStatusCode(error);
+		if (code == Status.Code.UNAVAILABLE || code == Status.Code.DEADLINE_EXCEEDED) {
+			return true;
+		}
+		Throwable cause = error;
+		for (int i = 0; cause != null && i < MAX_CAUSES; i++) {
+			if (cause instanceof TimeoutException) {
+				return true;
+			}
+			cause = cause.getCause();
+		}
+		return false;
+	}
+}
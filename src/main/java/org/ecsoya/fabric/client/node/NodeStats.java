@@ -0,0 +1,185 @@
+package org.ecsoya.fabric.client.node;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request statistics of a single peer or orderer as observed by this client.
+ */
+public class NodeStats {
+
+	private static final double EWMA_ALPHA = 0.2;
+
+	private final String name;
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong skippedNanos = new AtomicLong();
+	private final LatencyHistogram histogram = new LatencyHistogram();
+	private final AtomicLong ledgerHeight = new AtomicLong();
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+	private double ewmaLatencyMillis = -1;
+
+	public NodeStats(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Mark the start of a request to this node if its circuit breaker grants
+	 * it, see {@link CircuitBreaker#tryAcquire()}.
+	 * 
+	 * @return The permit to end or skip the request with,
+	 *         {@link CircuitBreaker#REFUSED} if the request must not be sent
+	 */
+	public long tryBegin() {
+		long permit = circuitBreaker.tryAcquire();
+		if (permit != CircuitBreaker.REFUSED) {
+			outstanding.incrementAndGet();
+		}
+		return permit;
+	}
+
+	/**
+	 * Mark the end of a request started with {@link #tryBegin()}.
+	 * 
+	 * @param permit
+	 * @param latencyNanos
+	 * @param success
+	 */
+	public void end(long permit, long latencyNanos, boolean success) {
+		end(permit, latencyNanos, success, success);
+	}
+
+	/**
+	 * Mark the end of a request started with {@link #tryBegin()}.
+	 * 
+	 * @param permit       The permit returned by {@link #tryBegin()}
+	 * @param latencyNanos
+	 * @param success
+	 * @param reachable    false if the node did not answer, which counts
+	 *                     against its circuit breaker, as opposed to answering
+	 *                     with an error
+	 */
+	public void end(long permit, long latencyNanos, boolean success, boolean reachable) {
+		circuitBreaker.record(permit, reachable);
+		outstanding.decrementAndGet();
+		requests.incrementAndGet();
+		if (!success) {
+			failures.incrementAndGet();
+		}
+		histogram.record(latencyNanos);
+		double millis = latencyNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+		synchronized (this) {
+			ewmaLatencyMillis = ewmaLatencyMillis < 0 ? millis
+					: EWMA_ALPHA * millis + (1 - EWMA_ALPHA) * ewmaLatencyMillis;
+		}
+	}
+
+	/**
+	 * Mark a request started with {@link #tryBegin()} as abandoned because its
+	 * answer was no longer needed.
+	 * 
+	 * @param permit      The permit returned by {@link #tryBegin()}
+	 * @param waitedNanos How long the request had been running when abandoned
+	 */
+	public void skip(long permit, long waitedNanos) {
+		circuitBreaker.cancel(permit);
+		outstanding.decrementAndGet();
+		skipped.incrementAndGet();
+		skippedNanos.addAndGet(waitedNanos);
+	}
+
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Returns the number of requests abandoned before the node answered.
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * Returns the total time abandoned requests had been waiting for this node.
+	 */
+	public long getSkippedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(skippedNanos.get());
+	}
+
+	/**
+	 * Returns the exponentially weighted moving average of the latency, or 0 if
+	 * no request has completed yet.
+	 */
+	public synchronized double getLatencyMillis() {
+		return ewmaLatencyMillis < 0 ? 0 : ewmaLatencyMillis;
+	}
+
+	/**
+	 * Returns the histogram of recent request latencies.
+	 */
+	public LatencyHistogram getHistogram() {
+		return histogram;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * Returns true unless the node's circuit breaker is open, without changing
+	 * its state.
+	 */
+	public boolean isAvailable() {
+		return circuitBreaker.isAvailable();
+	}
+
+	/**
+	 * Returns the ledger height last known for this peer, i.e. the number of its
+	 * last committed block plus one, or 0 if unknown.
+	 */
+	public long getLedgerHeight() {
+		return ledgerHeight.get();
+	}
+
+	/**
+	 * Record the ledger height of this peer, ignored if lower than the height
+	 * already known.
+	 * 
+	 * @param height
+	 * @return true if the known height increased
+	 */
+	public boolean updateLedgerHeight(long height) {
+		long current;
+		do {
+			current = ledgerHeight.get();
+			if (height <= current) {
+				return false;
+			}
+		} while (!ledgerHeight.compareAndSet(current, height));
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "NodeStats [name=" + name + ", outstanding=" + getOutstanding() + ", requests=" + getRequests()
+				+ ", failures=" + getFailures() + ", skipped=" + getSkipped() + ", latency=" + getLatencyMillis()
+				+ "ms, ledgerHeight=" + getLedgerHeight() + ", circuit=" + circuitBreaker.getState() + "]";
+	}
+
+}
@@ -0,0 +1,35 @@
+package org.ecsoya.fabric.client.node;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hyperledger.fabric.sdk.Orderer;
+import org.hyperledger.fabric.sdk.Peer;
+
+/**
+ * Holds the {@link NodeStats} of every node a channel client talks to, keyed
+ * by node name.
+ */
+public class NodeStatsRegistry {
+
+	private final ConcurrentMap<String, NodeStats> stats = new ConcurrentHashMap<>();
+
+	public NodeStats get(String name) {
+		return stats.computeIfAbsent(name, NodeStats::new);
+	}
+
+	public NodeStats get(Peer peer) {
+		return get(peer.getName());
+	}
+
+	public NodeStats get(Orderer orderer) {
+		return get(orderer.getName());
+	}
+
+	public Collection<NodeStats> getAll() {
+		return Collections.unmodifiableCollection(stats.values());
+	}
+
+}
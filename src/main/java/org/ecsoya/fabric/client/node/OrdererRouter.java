@@ -0,0 +1,202 @@
+package org.ecsoya.fabric.client.node;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.orderer.Ab.BroadcastResponse;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse.Endorsement;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.Orderer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.exception.TransactionException;
+import org.hyperledger.fabric.sdk.transaction.TransactionBuilder;
+import org.hyperledger.fabric.sdk.transaction.TransactionContext;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Chooses the orderer each transaction is broadcast to, and fails over to the
+ * next orderer when the broadcast fails. Broadcast latency and failures are
+ * recorded in each orderer's {@link NodeStats}, and orderers whose circuit
+ * breaker refuses the request are skipped.
+ * <p>
+ * The broadcast does not wait for commit events, commits are tracked
+ * separately. The envelope is sent to the orderer directly rather than
+ * through the channel, which reduces the orderer's answer and the gRPC
+ * failure to a message: both are needed to tell a transaction the orderer
+ * rejected from an orderer that did not answer.
+ */
+public class OrdererRouter {
+
+	public enum Strategy {
+		/**
+		 * Spread broadcasts evenly over the orderers.
+		 */
+		ROUND_ROBIN,
+		/**
+		 * Prefer the orderer with the lowest recent broadcast latency.
+		 */
+		LEAST_LATENCY
+	}
+
+	private static final Logger logger = Logger.getLogger(OrdererRouter.class.getName());
+
+	private static final Method SEND_TRANSACTION;
+	private static final Method GET_TRANSACTION_CONTEXT;
+
+	static {
+		try {
+			SEND_TRANSACTION = Orderer.class.getDeclaredMethod("sendTransaction", Common.Envelope.class);
+			SEND_TRANSACTION.setAccessible(true);
+			GET_TRANSACTION_CONTEXT = ProposalResponse.class.getDeclaredMethod("getTransactionContext");
+			GET_TRANSACTION_CONTEXT.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final Channel channel;
+	private final NodeStatsRegistry nodeStats;
+	private final AtomicInteger next = new AtomicInteger();
+	private volatile Strategy strategy = Strategy.ROUND_ROBIN;
+
+	public OrdererRouter(Channel channel, NodeStatsRegistry nodeStats) {
+		this.channel = channel;
+		this.nodeStats = nodeStats;
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	public void setStrategy(Strategy strategy) {
+		this.strategy = strategy == null ? Strategy.ROUND_ROBIN : strategy;
+	}
+
+	/**
+	 * Returns the orderers in the order they will be tried for the next
+	 * broadcast.
+	 */
+	public List<Orderer> route() {
+		List<Orderer> orderers = new ArrayList<>(channel.getOrderers());
+		if (orderers.isEmpty()) {
+			return orderers;
+		}
+		if (strategy == Strategy.LEAST_LATENCY) {
+			orderers.sort(Comparator.comparingDouble((Orderer orderer) -> nodeStats.get(orderer).getLatencyMillis())
+					.thenComparingInt(orderer -> nodeStats.get(orderer).getOutstanding()));
+		} else {
+			Collections.rotate(orderers, -Math.floorMod(next.getAndIncrement(), orderers.size()));
+		}
+		List<Orderer> available = new ArrayList<>(orderers.size());
+		List<Orderer> open = new ArrayList<>();
+		for (Orderer orderer : orderers) {
+			(nodeStats.get(orderer).isAvailable() ? available : open).add(orderer);
+		}
+		available.addAll(open);
+		return available;
+	}
+
+	/**
+	 * Send the endorsed transaction to one orderer, trying the next one if it
+	 * fails. A transaction the orderer rejected as bad or forbidden is not
+	 * retried.
+	 *
+	 * @param responses The endorsements of the transaction
+	 * @return The orderer that accepted the transaction
+	 * @throws TransactionException if no orderer accepted the transaction
+	 */
+	public Orderer broadcast(Collection<ProposalResponse> responses) throws TransactionException {
+		List<Orderer> orderers = route();
+		if (orderers.isEmpty()) {
+			throw new TransactionException("No orderer on channel " + channel.getName());
+		}
+		Common.Envelope envelope = createEnvelope(responses);
+		List<String> errors = new ArrayList<>();
+		for (Orderer orderer : orderers) {
+			NodeStats stats = nodeStats.get(orderer);
+			long permit = stats.tryBegin();
+			if (permit == CircuitBreaker.REFUSED) {
+				errors.add(orderer.getName() + ": circuit open");
+				continue;
+			}
+			if (send(orderer, stats, permit, envelope, errors)) {
+				return orderer;
+			}
+		}
+		throw new TransactionException("Broadcast failed on every orderer " + errors);
+	}
+
+	// Send a transaction started on the orderer, returns false if it failed
+	private boolean send(Orderer orderer, NodeStats stats, long permit, Common.Envelope envelope,
+			List<String> errors) throws TransactionException {
+		long start = System.nanoTime();
+		BroadcastResponse response;
+		try {
+			response = (BroadcastResponse) SEND_TRANSACTION.invoke(orderer, envelope);
+		} catch (InvocationTargetException | IllegalAccessException e) {
+			Throwable cause = e.getCause() == null ? e : e.getCause();
+			stats.end(permit, System.nanoTime() - start, false, !NodeErrors.isUnreachable(cause));
+			logger.log(Level.WARNING, "Broadcast to orderer " + orderer.getName() + " failed: " + cause.getMessage());
+			errors.add(orderer.getName() + ": " + cause.getMessage());
+			return false;
+		}
+		Common.Status status = response.getStatus();
+		if (status == Common.Status.SUCCESS) {
+			stats.end(permit, System.nanoTime() - start, true);
+			return true;
+		}
+		// The same transaction would be rejected by every orderer. Other errors,
+		// such as an orderer unable to serve, count against this orderer
+		boolean rejected = status == Common.Status.BAD_REQUEST || status == Common.Status.FORBIDDEN;
+		stats.end(permit, System.nanoTime() - start, false, rejected);
+		String message = status + " " + response.getInfo();
+		if (rejected) {
+			throw new TransactionException("Orderer " + orderer.getName() + " rejected the transaction: " + message);
+		}
+		logger.log(Level.WARNING, "Broadcast to orderer " + orderer.getName() + " failed: " + message);
+		errors.add(orderer.getName() + ": " + message);
+		return false;
+	}
+
+	// Build and sign the transaction envelope as the channel does
+	private static Common.Envelope createEnvelope(Collection<ProposalResponse> responses)
+			throws TransactionException {
+		if (responses == null || responses.isEmpty()) {
+			throw new TransactionException("No endorsement to broadcast");
+		}
+		ProposalResponse first = responses.iterator().next();
+		if (first.getProposalResponse() == null) {
+			throw new TransactionException("Endorsement of transaction " + first.getTransactionID() + " is empty");
+		}
+		ByteString payload = first.getProposalResponse().getPayload();
+		List<Endorsement> endorsements = new ArrayList<>(responses.size());
+		for (ProposalResponse response : responses) {
+			if (response.getProposalResponse() == null
+					|| !first.getTransactionID().equals(response.getTransactionID())
+					|| !payload.equals(response.getProposalResponse().getPayload())) {
+				throw new TransactionException(
+						"Endorsements of transaction " + first.getTransactionID() + " are not consistent");
+			}
+			endorsements.add(response.getProposalResponse().getEndorsement());
+		}
+		try {
+			Common.Payload transaction = TransactionBuilder.newBuilder().chaincodeProposal(first.getProposal())
+					.endorsements(endorsements).proposalResponsePayload(payload).build();
+			TransactionContext context = (TransactionContext) GET_TRANSACTION_CONTEXT.invoke(first);
+			return Common.Envelope.newBuilder().setPayload(transaction.toByteString())
+					.setSignature(context.signByteString(transaction.toByteArray())).build();
+		} catch (Exception e) {
+			throw new TransactionException(e);
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package org.ecsoya.fabric.client.query;
+
+/**
+ * How long a query result may be served from the {@link QueryCache}, counted
+ * in committed blocks.
+ */
+public final class CachePolicy {
+
+	private static final CachePolicy ALWAYS_FRESH = new CachePolicy(0);
+	private static final CachePolicy UNTIL_NEXT_BLOCK = new CachePolicy(1);
+
+	private final int blocks;
+
+	private CachePolicy(int blocks) {
+		this.blocks = blocks;
+	}
+
+	/**
+	 * Never cache, every query goes to a peer.
+	 */
+	public static CachePolicy alwaysFresh() {
+		return ALWAYS_FRESH;
+	}
+
+	/**
+	 * Cache until the next block is committed on the channel.
+	 */
+	public static CachePolicy untilNextBlock() {
+		return UNTIL_NEXT_BLOCK;
+	}
+
+	/**
+	 * Cache until the given number of blocks have been committed on the channel.
+	 */
+	public static CachePolicy forBlocks(int blocks) {
+		if (blocks < 0) {
+			throw new IllegalArgumentException("Number of blocks can't be negative.");
+		}
+		return blocks == 0 ? ALWAYS_FRESH : blocks == 1 ? UNTIL_NEXT_BLOCK : new CachePolicy(blocks);
+	}
+
+	public int getBlocks() {
+		return blocks;
+	}
+
+	public boolean isCacheable() {
+		return blocks > 0;
+	}
+
+	@Override
+	public String toString() {
+		return blocks == 0 ? "alwaysFresh" : blocks == 1 ? "untilNextBlock" : "forBlocks(" + blocks + ")";
+	}
+}
@@ -0,0 +1,172 @@
+package org.ecsoya.fabric.client.query;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ecsoya.fabric.util.LruCache;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockListener;
+
+/**
+ * Caches query results of a channel, bounded by entry count and total bytes.
+ * Results are tagged with the block height at which the query was sent and
+ * expire once their {@link CachePolicy} allows no more blocks, so the cache
+ * must receive each committed block of the channel once.
+ * <p>
+ * Nothing is cached by default, policies are set per chaincode or per
+ * function.
+ */
+public class QueryCache implements BlockListener {
+
+	private final LruCache<QueryKey, Entry> entries;
+	private final Map<String, CachePolicy> policies = new ConcurrentHashMap<>();
+	private volatile CachePolicy defaultPolicy = CachePolicy.alwaysFresh();
+
+	private volatile long height = -1;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxEntries The maximum number of cached results
+	 * @param maxBytes   The maximum total size of cached results and their keys
+	 */
+	public QueryCache(int maxEntries, long maxBytes) {
+		this.entries = new LruCache<>(maxEntries, maxBytes, (key, entry) -> key.getWeight() + entry.value.length);
+	}
+
+	public CachePolicy getDefaultPolicy() {
+		return defaultPolicy;
+	}
+
+	/**
+	 * Set the policy of queries with no chaincode or function policy.
+	 */
+	public void setDefaultPolicy(CachePolicy defaultPolicy) {
+		this.defaultPolicy = defaultPolicy == null ? CachePolicy.alwaysFresh() : defaultPolicy;
+	}
+
+	/**
+	 * Set the policy of a chaincode function, or of every function of the
+	 * chaincode if the function is null. Null removes the policy.
+	 */
+	public void setPolicy(String chaincodeName, String functionName, CachePolicy policy) {
+		String name = policyName(chaincodeName, functionName);
+		if (policy == null) {
+			policies.remove(name);
+		} else {
+			policies.put(name, policy);
+		}
+	}
+
+	public CachePolicy getPolicy(QueryKey key) {
+		CachePolicy policy = policies.get(policyName(key.getChaincodeName(), key.getFunctionName()));
+		if (policy == null) {
+			policy = policies.get(policyName(key.getChaincodeName(), null));
+		}
+		return policy == null ? defaultPolicy : policy;
+	}
+
+	/**
+	 * Returns the height of the channel as known from committed blocks, i.e. the
+	 * number of the last block plus one, 0 if no block has been received.
+	 */
+	public long getHeight() {
+		return height + 1;
+	}
+
+	/**
+	 * Returns a copy of the cached result, null if there is none or it expired.
+	 */
+	public byte[] get(QueryKey key) {
+		Entry entry = entries.get(key);
+		if (entry == null || entry.expiry <= getHeight()) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value.clone();
+	}
+
+	/**
+	 * Cache the result of a query sent when the channel had the given height,
+	 * unless its policy says otherwise.
+	 */
+	public void put(QueryKey key, byte[] value, long height) {
+		CachePolicy policy = getPolicy(key);
+		if (!policy.isCacheable() || value == null) {
+			return;
+		}
+		long expiry = height + policy.getBlocks();
+		if (expiry > getHeight()) {
+			entries.put(key, new Entry(value.clone(), expiry));
+		}
+	}
+
+	public void invalidate(QueryKey key) {
+		entries.remove(key);
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	@Override
+	public void received(BlockEvent blockEvent) {
+		if (blockEvent.getBlockNumber() <= height) {
+			return;
+		}
+		height = blockEvent.getBlockNumber();
+		long current = getHeight();
+		entries.removeIf((key, entry) -> entry.expiry <= current);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public double getHitRatio() {
+		long total = hits.get() + misses.get();
+		return total == 0 ? 0 : (double) hits.get() / total;
+	}
+
+	public long getEvictions() {
+		return entries.getEvictions();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the total size of the cached results and their keys, in bytes.
+	 */
+	public long getWeight() {
+		return entries.getWeight();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("size=%d, bytes=%d, hits=%d, misses=%d, hitRatio=%.2f, evictions=%d", size(),
+				getWeight(), getHits(), getMisses(), getHitRatio(), getEvictions());
+	}
+
+	private static String policyName(String chaincodeName, String functionName) {
+		return (chaincodeName == null ? "" : chaincodeName) + (functionName == null ? "" : "/" + functionName);
+	}
+
+	private static class Entry {
+		private final byte[] value;
+		// The channel height at which the entry is no longer valid
+		private final long expiry;
+
+		Entry(byte[] value, long expiry) {
+			this.value = value;
+			this.expiry = expiry;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package org.ecsoya.fabric.client.query;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Collapses identical queries in flight at the same time into one call. The
+ * first query for a key is sent, later ones arriving before it completes wait
+ * for its result instead of sending their own.
+ * <p>
+ * Queries are matched by {@link QueryKey} only, transient data and the
+ * signing user are not part of it: queries with either must not be
+ * coalesced.
+ */
+public class QueryCoalescer {
+
+	private final ConcurrentMap<QueryKey, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong calls = new AtomicLong();
+
+	/**
+	 * Run the query unless an identical one is in flight.
+	 *
+	 * @param key   The key of the query
+	 * @param query Sends the query
+	 * @return A future of the query result, each caller gets its own copy
+	 */
+	public CompletableFuture<byte[]> execute(QueryKey key, Supplier<CompletableFuture<byte[]>> query) {
+		requests.incrementAndGet();
+		CompletableFuture<byte[]> shared = inFlight.get(key);
+		if (shared != null) {
+			return shared.thenApply(QueryCoalescer::copy);
+		}
+		CompletableFuture<byte[]> future = new CompletableFuture<>();
+		shared = inFlight.putIfAbsent(key, future);
+		if (shared != null) {
+			return shared.thenApply(QueryCoalescer::copy);
+		}
+		calls.incrementAndGet();
+		try {
+			query.get().whenComplete((result, ex) -> {
+				inFlight.remove(key, future);
+				if (ex != null) {
+					future.completeExceptionally(ex);
+				} else {
+					future.complete(result);
+				}
+			});
+		} catch (RuntimeException e) {
+			inFlight.remove(key, future);
+			future.completeExceptionally(e);
+		}
+		return future.thenApply(QueryCoalescer::copy);
+	}
+
+	/**
+	 * Returns the number of queries in flight.
+	 */
+	public int getInFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * Returns the number of queries requested.
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns the number of queries actually sent.
+	 */
+	public long getCalls() {
+		return calls.get();
+	}
+
+	/**
+	 * Returns the share of requested queries that were served by another
+	 * query's call.
+	 */
+	public double getCoalescingRatio() {
+		long total = requests.get();
+		return total == 0 ? 0 : 1 - (double) calls.get() / total;
+	}
+
+	private static byte[] copy(byte[] result) {
+		return result == null ? null : result.clone();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("requests=%d, calls=%d, coalescingRatio=%.2f", getRequests(), getCalls(),
+				getCoalescingRatio());
+	}
+}
@@ -0,0 +1,110 @@
+package org.ecsoya.fabric.client.query;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.hyperledger.fabric.sdk.TransactionRequest;
+
+/**
+ * Identifies a query by channel, chaincode, function and arguments, so that
+ * identical queries can share a result.
+ */
+public final class QueryKey {
+
+	private final String channelName;
+	private final String chaincodeName;
+	private final String functionName;
+	private final List<byte[]> args;
+	private final int hash;
+
+	public QueryKey(String channelName, String chaincodeName, String functionName, List<byte[]> args) {
+		this.channelName = channelName;
+		this.chaincodeName = chaincodeName;
+		this.functionName = functionName;
+		this.args = args == null ? Collections.emptyList() : args;
+		int h = Objects.hash(channelName, chaincodeName, functionName);
+		for (byte[] arg : this.args) {
+			h = 31 * h + Arrays.hashCode(arg);
+		}
+		this.hash = h;
+	}
+
+	/**
+	 * Returns the key of a query request on the channel. String arguments and
+	 * byte arguments are both part of the key.
+	 */
+	public static QueryKey of(String channelName, TransactionRequest request) {
+		List<byte[]> args = new ArrayList<>();
+		if (request.getArgs() != null) {
+			for (String arg : request.getArgs()) {
+				args.add(arg == null ? new byte[0] : arg.getBytes(UTF_8));
+			}
+		}
+		if (request.getArgBytes() != null) {
+			args.addAll(request.getArgBytes());
+		}
+		String chaincodeName = request.getChaincodeID() == null ? null : request.getChaincodeID().getName();
+		return new QueryKey(channelName, chaincodeName, request.getFcn(), args);
+	}
+
+	public String getChannelName() {
+		return channelName;
+	}
+
+	public String getChaincodeName() {
+		return chaincodeName;
+	}
+
+	public String getFunctionName() {
+		return functionName;
+	}
+
+	/**
+	 * Returns an estimate of the memory used by the key, in bytes.
+	 */
+	public long getWeight() {
+		long weight = 64;
+		for (byte[] arg : args) {
+			weight += 16 + arg.length;
+		}
+		return weight;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof QueryKey)) {
+			return false;
+		}
+		QueryKey other = (QueryKey) obj;
+		if (hash != other.hash || !Objects.equals(channelName, other.channelName)
+				|| !Objects.equals(chaincodeName, other.chaincodeName)
+				|| !Objects.equals(functionName, other.functionName) || args.size() != other.args.size()) {
+			return false;
+		}
+		for (int i = 0; i < args.size(); i++) {
+			if (!Arrays.equals(args.get(i), other.args.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "QueryKey [channelName=" + channelName + ", chaincodeName=" + chaincodeName + ", functionName="
+				+ functionName + ", args=" + args.size() + "]";
+	}
+}
@@ -510,6 +510,21 @@ public class FabricNetwork {
 		return Collections.unmodifiableCollection(organizations.values());
 	}
 
+	/**
+	 * Returns the organization the specified peer belongs to
+	 *
+	 * @param peerName The name of the peer
+	 * @return The organization, or null if no organization lists the peer
+	 */
+	public FabricOrgInfo getOrganizationInfoOfPeer(String peerName) {
+		for (FabricOrgInfo org : organizations.values()) {
+			if (org.getPeerNames().contains(peerName)) {
+				return org;
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Returns the admin user associated with the client organization
 	 *
@@ -547,6 +562,21 @@ public class FabricNetwork {
 	 * @return A configured Channel instance
 	 */
 	public Channel loadChannel(HFClient client, String channelName) throws NetworkConfigurationException {
+		return loadChannel(client, channelName, false);
+	}
+
+	/**
+	 * Returns a channel configured using the details in the Network
+	 * Configuration file
+	 * 
+	 * @param client         The associated client
+	 * @param channelName    The name of the channel
+	 * @param filteredBlocks True to have the event source peers deliver filtered
+	 *                       blocks instead of full blocks
+	 * @return A configured Channel instance
+	 */
+	public Channel loadChannel(HFClient client, String channelName, boolean filteredBlocks)
+			throws NetworkConfigurationException {
 
 		if (logger.isTraceEnabled()) {
 			logger.trace(format("NetworkConfig.loadChannel: %s", channelName));
@@ -567,7 +597,7 @@ public class FabricNetwork {
 					throw new NetworkConfigurationException(
 							format("Channel %s is already configured in the client!", channelName));
 				}
-				channel = reconstructChannel(client, channelName, jsonChannel);
+				channel = reconstructChannel(client, channelName, jsonChannel, filteredBlocks);
 			} else {
 
 				final Set<String> channelNames = getChannelNames();
@@ -735,8 +765,8 @@ public class FabricNetwork {
 	}
 
 	// Reconstructs an existing channel
-	private Channel reconstructChannel(HFClient client, String channelName, JsonObject jsonChannel)
-			throws NetworkConfigurationException {
+	private Channel reconstructChannel(HFClient client, String channelName, JsonObject jsonChannel,
+			boolean filteredBlocks) throws NetworkConfigurationException {
 
 		Channel channel = null;
 
@@ -810,6 +840,9 @@ public class FabricNetwork {
 									PeerRole.LEDGER_QUERY));
 						}
 					}
+					if (filteredBlocks) {
+						peerOptions.registerEventsForFilteredBlocks();
+					}
 					channel.addPeer(peer, peerOptions);
 
 				}
@@ -0,0 +1,109 @@
+package org.ecsoya.fabric.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * A thread safe least recently used cache bounded by a number of entries and a
+ * total weight.
+ */
+public class LruCache<K, V> {
+
+	private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final int maxEntries;
+	private final long maxWeight;
+	private final ToLongBiFunction<K, V> weigher;
+
+	private long weight;
+	private long evictions;
+
+	public LruCache(int maxEntries) {
+		this(maxEntries, Long.MAX_VALUE, (key, value) -> 0);
+	}
+
+	/**
+	 * @param maxEntries The maximum number of entries
+	 * @param maxWeight  The maximum total weight of the entries
+	 * @param weigher    Returns the weight of an entry
+	 */
+	public LruCache(int maxEntries, long maxWeight, ToLongBiFunction<K, V> weigher) {
+		if (maxEntries <= 0 || maxWeight <= 0) {
+			throw new IllegalArgumentException("Cache bounds should be positive.");
+		}
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+	}
+
+	public synchronized V get(K key) {
+		return entries.get(key);
+	}
+
+	public synchronized void put(K key, V value) {
+		long entryWeight = weigher.applyAsLong(key, value);
+		if (entryWeight > maxWeight) {
+			remove(key);
+			return;
+		}
+		V previous = entries.put(key, value);
+		if (previous != null) {
+			weight -= weigher.applyAsLong(key, previous);
+		}
+		weight += entryWeight;
+		Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+		while ((entries.size() > maxEntries || weight > maxWeight) && it.hasNext()) {
+			Map.Entry<K, V> eldest = it.next();
+			it.remove();
+			weight -= weigher.applyAsLong(eldest.getKey(), eldest.getValue());
+			evictions++;
+		}
+	}
+
+	public synchronized V remove(K key) {
+		V value = entries.remove(key);
+		if (value != null) {
+			weight -= weigher.applyAsLong(key, value);
+		}
+		return value;
+	}
+
+	/**
+	 * Remove the entries matching the filter, returns the number removed.
+	 */
+	public synchronized int removeIf(BiPredicate<K, V> filter) {
+		int removed = 0;
+		Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<K, V> entry = it.next();
+			if (filter.test(entry.getKey(), entry.getValue())) {
+				it.remove();
+				weight -= weigher.applyAsLong(entry.getKey(), entry.getValue());
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Returns the number of entries evicted to respect the bounds.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+}
@@ -0,0 +1,167 @@
+package org.ecsoya.fabric.tests;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.ecsoya.fabric.client.ChannelClient;
+import org.ecsoya.fabric.client.FabricClient;
+import org.ecsoya.fabric.client.limit.AdmissionController;
+import org.ecsoya.fabric.client.limit.AdmissionController.Permit;
+import org.ecsoya.fabric.client.limit.AdmissionRejectedException;
+import org.hyperledger.fabric.sdk.ChaincodeID;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.HFClient;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.TransactionProposalRequest;
+
+/**
+ * Checks that the {@link AdmissionController} admits requests up to the
+ * channel and chaincode limits, queues and rejects the others, admits queued
+ * requests in order as permits are released, and that the channel client
+ * gives its permit back when a request fails. Throws on the first mismatch.
+ */
+public class AdmissionControllerCheck {
+
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	public static void main(String[] args) throws Exception {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			checkLimits(scheduler);
+			checkQueue(scheduler);
+			checkExpiry(scheduler);
+		} finally {
+			scheduler.shutdown();
+		}
+		checkReleaseOnFailure();
+		System.out.println("Admission controller checks passed");
+	}
+
+	private static void checkLimits(ScheduledExecutorService scheduler) throws Exception {
+		AdmissionController controller = new AdmissionController(scheduler).maxInFlight(2).maxInFlight("slow", 1);
+		Permit slow = controller.acquire("slow").get();
+		check(isRejected(controller.acquire("slow")), "Chaincode limit exceeded");
+		Permit other = controller.acquire("other").get();
+		check(controller.getInUse() == 2 && controller.getInUse("slow") == 1, "In use " + controller.getInUse());
+		check(isRejected(controller.acquire("other")), "Channel limit exceeded");
+		check(controller.getRejected() == 2, "Rejected " + controller.getRejected());
+
+		// Releasing twice gives a single permit back
+		slow.release();
+		slow.release();
+		check(controller.getInUse() == 1 && controller.getInUse("slow") == 0, "In use after release "
+				+ controller.getInUse());
+		other.release();
+		check(controller.getInUse() == 0, "In use after releasing all " + controller.getInUse());
+		check(controller.getAdmitted() == 2, "Admitted " + controller.getAdmitted());
+	}
+
+	private static void checkQueue(ScheduledExecutorService scheduler) throws Exception {
+		AdmissionController controller = new AdmissionController(scheduler).maxInFlight(2).maxInFlight("slow", 1)
+				.maxQueued(3);
+		Permit first = controller.acquire("slow").get();
+		Permit second = controller.acquire("other").get();
+		CompletableFuture<Permit> queuedSlow = controller.acquire("slow");
+		CompletableFuture<Permit> queuedOther = controller.acquire("other");
+		CompletableFuture<Permit> cancelled = controller.acquire("other");
+		check(controller.getQueueDepth() == 3, "Queue depth " + controller.getQueueDepth());
+		check(isRejected(controller.acquire("other")), "Admitted past a full queue");
+
+		// The slow chaincode is still full: the request queued behind it goes first
+		second.release();
+		check(!queuedSlow.isDone() && queuedOther.isDone(), "Queued requests admitted out of turn");
+		// A permit granted to a cancelled request is given back
+		cancelled.cancel(false);
+		queuedOther.get().release();
+		check(controller.getInUse() == 1, "Permit of a cancelled request kept " + controller.getInUse());
+		first.release();
+		check(queuedSlow.isDone(), "Queued slow request not admitted");
+		queuedSlow.get().release();
+		check(controller.getInUse() == 0 && controller.getQueueDepth() == 0,
+				"In use " + controller.getInUse() + ", queued " + controller.getQueueDepth());
+	}
+
+	private static void checkExpiry(ScheduledExecutorService scheduler) throws Exception {
+		AdmissionController controller = new AdmissionController(scheduler).maxInFlight(1).maxQueued(1)
+				.maxWaitMillis(100);
+		Permit permit = controller.acquire(null).get();
+		CompletableFuture<Permit> waiting = controller.acquire(null);
+		try {
+			waiting.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			check(false, "Request admitted while the permit is held");
+		} catch (ExecutionException e) {
+			check(e.getCause() instanceof AdmissionRejectedException, "Expired with " + e.getCause());
+		}
+		check(controller.getQueueDepth() == 0, "Expired request still queued");
+		permit.release();
+		check(controller.getInUse() == 0, "In use after expiry " + controller.getInUse());
+	}
+
+	// Endorsements failing before or after reaching a peer give their permit
+	// back, so the next request is admitted
+	private static void checkReleaseOnFailure() throws Exception {
+		HFClient client = BlockStreamCheck.createClient();
+		Channel channel = client.newChannel("check");
+		ChannelClient channelClient = new ChannelClient("check", channel, new FabricClient(null, client));
+		AdmissionController controller = channelClient.getAdmissionController().maxInFlight(1);
+
+		// No peer to endorse
+		checkFailed(channelClient, newRequest(client));
+		check(controller.getInUse() == 0, "Permit kept without peers");
+
+		// A peer that refuses the connection
+		Peer peer = client.newPeer("peer0", "grpc://localhost:" + closedPort());
+		channel.addPeer(peer);
+		checkFailed(channelClient, newRequest(client));
+		checkFailed(channelClient, newRequest(client));
+		check(channelClient.getNodeStats().get(peer).getFailures() == 2,
+				"Peer failures " + channelClient.getNodeStats().get(peer).getFailures());
+		check(controller.getInUse() == 0, "Permit kept after failed endorsements");
+		check(controller.getRejected() == 0, "Rejected " + controller.getRejected());
+		check(controller.getAdmitted() == 3, "Admitted " + controller.getAdmitted());
+	}
+
+	private static void checkFailed(ChannelClient channelClient, TransactionProposalRequest request)
+			throws Exception {
+		try {
+			channelClient.endorseAsync(request).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			check(false, "Endorsement succeeded");
+		} catch (ExecutionException e) {
+			check(!(e.getCause() instanceof AdmissionRejectedException), "Endorsement not admitted");
+		}
+	}
+
+	private static TransactionProposalRequest newRequest(HFClient client) {
+		TransactionProposalRequest request = client.newTransactionProposalRequest();
+		request.setChaincodeID(ChaincodeID.newBuilder().setName("assets").build());
+		request.setFcn("transfer");
+		request.setArgs("asset1", "owner2");
+		return request;
+	}
+
+	private static boolean isRejected(CompletableFuture<Permit> future) throws InterruptedException {
+		try {
+			future.get();
+			return false;
+		} catch (ExecutionException e) {
+			return e.getCause() instanceof AdmissionRejectedException;
+		}
+	}
+
+	private static int closedPort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("Check failed: " + message);
+		}
+	}
+}
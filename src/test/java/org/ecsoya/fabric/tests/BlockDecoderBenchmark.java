@@ -0,0 +1,189 @@
+package org.ecsoya.fabric.tests;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+
+import org.ecsoya.fabric.client.ledger.RawBlock;
+import org.ecsoya.fabric.client.ledger.RawTransaction;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.common.Common.HeaderType;
+import org.hyperledger.fabric.protos.ledger.rwset.Rwset;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.protos.peer.ChaincodeEventOuterClass;
+import org.hyperledger.fabric.protos.peer.FabricProposal;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse;
+import org.hyperledger.fabric.protos.peer.FabricTransaction;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.BlockInfo.EnvelopeInfo;
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo;
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo;
+import org.hyperledger.fabric.sdk.ChaincodeEvent;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Compares the bytes allocated and the time taken to read the transaction
+ * ids, validation codes, writes and chaincode events of a block through the
+ * SDK's {@link BlockInfo} and through {@link RawBlock}.
+ */
+public class BlockDecoderBenchmark {
+
+	static final int TRANSACTIONS = 500;
+	static final int WRITES = 4;
+	private static final int ITERATIONS = 200;
+
+	private static long sink;
+
+	public static void main(String[] args) throws Exception {
+		byte[] bytes = createBlock(42, 0).toByteArray();
+		System.out.println("Block of " + TRANSACTIONS + " transactions, " + bytes.length + " bytes");
+
+		long expected = readBlockInfo(bytes);
+		if (readRawBlock(bytes) != expected) {
+			throw new IllegalStateException("Decoders disagree");
+		}
+
+		for (int round = 0; round < 3; round++) {
+			measure("BlockInfo", () -> readBlockInfo(bytes));
+			measure("RawBlock ", () -> readRawBlock(bytes));
+		}
+	}
+
+	/**
+	 * Wrap the block as the SDK does for the blocks it receives.
+	 */
+	static BlockInfo newBlockInfo(Common.Block block) throws Exception {
+		Constructor<BlockInfo> constructor = BlockInfo.class.getDeclaredConstructor(Common.Block.class);
+		constructor.setAccessible(true);
+		return constructor.newInstance(block);
+	}
+
+	private interface Reader {
+		long read() throws Exception;
+	}
+
+	private static void measure(String name, Reader reader) throws Exception {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long allocated = threads.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			sink += reader.read();
+		}
+		long nanos = System.nanoTime() - start;
+		allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+		System.out.printf("%s: %8.1f us/block, %10d bytes allocated/block%n", name, nanos / 1000.0 / ITERATIONS,
+				allocated / ITERATIONS);
+	}
+
+	private static long readBlockInfo(byte[] bytes) throws Exception {
+		BlockInfo block = newBlockInfo(Common.Block.parseFrom(bytes));
+		long checksum = block.getBlockNumber();
+		for (EnvelopeInfo envelope : block.getEnvelopeInfos()) {
+			checksum += envelope.getTransactionID().hashCode() + envelope.getValidationCode();
+			if (!(envelope instanceof TransactionEnvelopeInfo)) {
+				continue;
+			}
+			for (TransactionActionInfo action : ((TransactionEnvelopeInfo) envelope).getTransactionActionInfos()) {
+				TxReadWriteSetInfo rwset = action.getTxReadWriteSet();
+				if (rwset != null) {
+					for (TxReadWriteSetInfo.NsRwsetInfo namespace : rwset.getNsRwsetInfos()) {
+						for (KvRwset.KVWrite write : namespace.getRwset().getWritesList()) {
+							checksum += write.getKey().hashCode() + write.getValue().size();
+						}
+					}
+				}
+				ChaincodeEvent event = action.getEvent();
+				if (event != null) {
+					checksum += event.getEventName().hashCode() + event.getPayload().length;
+				}
+			}
+		}
+		return checksum;
+	}
+
+	private static long readRawBlock(byte[] bytes) {
+		RawBlock block = RawBlock.parse(bytes);
+		long[] checksum = { block.getNumber() };
+		for (int i = 0; i < block.getTransactionCount(); i++) {
+			RawTransaction transaction = block.getTransaction(i);
+			checksum[0] += transaction.getTransactionId().hashCode() + transaction.getValidationCode();
+			transaction.forEachWrite(
+					(namespace, key, delete, value) -> checksum[0] += key.hashCode() + value.remaining());
+			transaction.forEachChaincodeEvent(
+					(chaincodeId, eventName, payload) -> checksum[0] += eventName.hashCode() + payload.remaining());
+		}
+		return checksum[0];
+	}
+
+	/**
+	 * Create a block of {@value #TRANSACTIONS} transactions of the "assets"
+	 * chaincode numbered from {@code firstTransaction}. Transaction {@code t}
+	 * has the id {@code %064x} of {@code t}, writes {@value #WRITES} keys
+	 * {@code asset<t>-<w>} and sets an event, every tenth transaction is
+	 * invalid.
+	 */
+	static Common.Block createBlock(long number, int firstTransaction) {
+		Common.BlockData.Builder data = Common.BlockData.newBuilder();
+		byte[] filter = new byte[TRANSACTIONS];
+		for (int i = 0; i < TRANSACTIONS; i++) {
+			data.addData(createEnvelope(firstTransaction + i).toByteString());
+			filter[i] = (byte) (i % 10 == 0 ? 11 : 0);
+		}
+		Common.BlockMetadata.Builder metadata = Common.BlockMetadata.newBuilder();
+		for (int i = 0; i < 4; i++) {
+			metadata.addMetadata(i == 2 ? ByteString.copyFrom(filter) : ByteString.EMPTY);
+		}
+		return Common.Block.newBuilder()
+				.setHeader(Common.BlockHeader.newBuilder().setNumber(number)
+						.setPreviousHash(ByteString.copyFrom(new byte[32]))
+						.setDataHash(ByteString.copyFrom(new byte[32])))
+				.setData(data).setMetadata(metadata).build();
+	}
+
+	private static Common.Envelope createEnvelope(int index) {
+		String txId = String.format("%064x", index);
+		KvRwset.KVRWSet.Builder kvrwset = KvRwset.KVRWSet.newBuilder();
+		for (int w = 0; w < WRITES; w++) {
+			kvrwset.addReads(KvRwset.KVRead.newBuilder().setKey("asset" + index + "-" + w));
+			kvrwset.addWrites(KvRwset.KVWrite.newBuilder().setKey("asset" + index + "-" + w)
+					.setValue(ByteString.copyFromUtf8("{\"owner\":\"org" + w + "\",\"value\":" + index + "}")));
+		}
+		Rwset.TxReadWriteSet rwset = Rwset.TxReadWriteSet.newBuilder()
+				.setDataModel(Rwset.TxReadWriteSet.DataModel.KV).addNsRwset(Rwset.NsReadWriteSet.newBuilder()
+						.setNamespace("assets").setRwset(kvrwset.build().toByteString()))
+				.build();
+		ChaincodeEventOuterClass.ChaincodeEvent event = ChaincodeEventOuterClass.ChaincodeEvent.newBuilder()
+				.setChaincodeId("assets").setTxId(txId).setEventName("AssetUpdated")
+				.setPayload(ByteString.copyFromUtf8("asset" + index)).build();
+		FabricProposal.ChaincodeAction chaincodeAction = FabricProposal.ChaincodeAction.newBuilder()
+				.setResults(rwset.toByteString()).setEvents(event.toByteString()).build();
+		FabricProposalResponse.ProposalResponsePayload responsePayload = FabricProposalResponse.ProposalResponsePayload
+				.newBuilder().setProposalHash(ByteString.copyFrom(new byte[32]))
+				.setExtension(chaincodeAction.toByteString()).build();
+		FabricTransaction.ChaincodeActionPayload actionPayload = FabricTransaction.ChaincodeActionPayload
+				.newBuilder()
+				.setAction(FabricTransaction.ChaincodeEndorsedAction.newBuilder()
+						.setProposalResponsePayload(responsePayload.toByteString())
+						.addEndorsements(FabricProposalResponse.Endorsement.newBuilder()
+								.setEndorser(ByteString.copyFrom(new byte[700]))
+								.setSignature(ByteString.copyFrom(new byte[72]))))
+				.build();
+		FabricTransaction.Transaction transaction = FabricTransaction.Transaction.newBuilder()
+				.addActions(FabricTransaction.TransactionAction.newBuilder()
+						.setHeader(ByteString.copyFrom(new byte[64])).setPayload(actionPayload.toByteString()))
+				.build();
+		Common.ChannelHeader channelHeader = Common.ChannelHeader.newBuilder()
+				.setType(HeaderType.ENDORSER_TRANSACTION_VALUE).setChannelId("mychannel").setTxId(txId)
+				.setTimestamp(com.google.protobuf.Timestamp.newBuilder().setSeconds(1500000000L + index))
+				.build();
+		Common.Payload payload = Common.Payload.newBuilder()
+				.setHeader(Common.Header.newBuilder().setChannelHeader(channelHeader.toByteString())
+						.setSignatureHeader(ByteString.copyFrom(new byte[800])))
+				.setData(transaction.toByteString()).build();
+		return Common.Envelope.newBuilder().setPayload(payload.toByteString())
+				.setSignature(ByteString.copyFrom(new byte[72])).build();
+	}
+}
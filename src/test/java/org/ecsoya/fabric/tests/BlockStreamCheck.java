@@ -0,0 +1,181 @@
+package org.ecsoya.fabric.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import org.ecsoya.fabric.client.event.BlockCheckpoint;
+import org.ecsoya.fabric.client.event.BlockEventDispatcher;
+import org.ecsoya.fabric.client.event.BlockStream;
+import org.ecsoya.fabric.user.CAEnrollment;
+import org.ecsoya.fabric.user.UserContext;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.peer.PeerEvents;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.HFClient;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.security.CryptoSuite;
+
+/**
+ * Checks that block checkpoints are saved atomically, and that a
+ * {@link BlockStream} delivers blocks in order, saves the last processed
+ * block when it stops or its consumer fails, and resumes after it. Blocks
+ * are fed as live events of a channel without peers. Throws on the first
+ * mismatch.
+ */
+public class BlockStreamCheck {
+
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	public static void main(String[] args) throws Exception {
+		File directory = Files.createTempDirectory("block-stream").toFile();
+		try {
+			checkBlockCheckpoint(new File(directory, "checkpoint"));
+			checkResume(createChannel(), new File(directory, "stream.checkpoint"));
+		} finally {
+			delete(directory);
+		}
+		System.out.println("Block stream checks passed");
+	}
+
+	private static void checkBlockCheckpoint(File file) throws IOException {
+		BlockCheckpoint checkpoint = new BlockCheckpoint(file);
+		check(checkpoint.load() == -1, "Missing checkpoint");
+		checkpoint.save(41);
+		checkpoint.save(42);
+		check(new BlockCheckpoint(file).load() == 42, "Saved checkpoint");
+		check(!new File(file.getPath() + ".tmp").exists(), "Temporary checkpoint left behind");
+		Files.write(file.toPath(), "not a number".getBytes(StandardCharsets.UTF_8));
+		try {
+			checkpoint.load();
+			check(false, "Invalid checkpoint accepted");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	private static void checkResume(Channel channel, File file) throws Exception {
+		BlockCheckpoint checkpoint = new BlockCheckpoint(file);
+
+		// Blocks 0 to 4, saved every 2 blocks: block 4 is saved on stop
+		List<Long> delivered = new CopyOnWriteArrayList<>();
+		BlockEventDispatcher dispatcher = new BlockEventDispatcher(channel);
+		BlockStream stream = new BlockStream(channel, dispatcher, block -> delivered.add(block.getBlockNumber()))
+				.checkpoint(file).checkpointInterval(2).retryMillis(10).start();
+		deliver(dispatcher, 0, 5);
+		await(() -> stream.getNextBlock() == 5, "Blocks 0 to 4 not processed");
+		check(checkpoint.load() == 3, "Checkpoint before stop " + checkpoint.load());
+		stream.stop();
+		check(stream.awaitStop(TIMEOUT_MILLIS), "Stream not stopped");
+		check(checkpoint.load() == 4, "Checkpoint after stop " + checkpoint.load());
+		check(Arrays.asList(0L, 1L, 2L, 3L, 4L).equals(delivered), "Delivered " + delivered);
+
+		// Resumed after block 4, the blocks the peer delivers again are ignored.
+		// The consumer fails on block 7
+		delivered.clear();
+		BlockEventDispatcher restarted = new BlockEventDispatcher(channel);
+		BlockStream resumed = new BlockStream(channel, restarted, block -> {
+			if (block.getBlockNumber() == 7) {
+				throw new IllegalStateException("Consumer failure");
+			}
+			delivered.add(block.getBlockNumber());
+		}).from(0).checkpoint(file).checkpointInterval(10).retryMillis(10).start();
+		check(resumed.getNextBlock() == 5, "Resumed at " + resumed.getNextBlock());
+		deliver(restarted, 3, 8);
+		await(() -> !resumed.isRunning(), "Stream not stopped by the failure");
+		check(resumed.awaitStop(TIMEOUT_MILLIS), "Failed stream not stopped");
+		check(resumed.getFailure() instanceof IllegalStateException, "Failure " + resumed.getFailure());
+		check(Arrays.asList(5L, 6L).equals(delivered), "Delivered after resume " + delivered);
+		check(checkpoint.load() == 6, "Checkpoint after failure " + checkpoint.load());
+
+		// The failed block is delivered again on the next start
+		delivered.clear();
+		BlockEventDispatcher again = new BlockEventDispatcher(channel);
+		BlockStream retried = new BlockStream(channel, again, block -> delivered.add(block.getBlockNumber()))
+				.checkpoint(file).retryMillis(10).start();
+		deliver(again, 7, 9);
+		await(() -> retried.getNextBlock() == 9, "Blocks 7 and 8 not processed");
+		retried.stop();
+		check(retried.awaitStop(TIMEOUT_MILLIS), "Retried stream not stopped");
+		check(Arrays.asList(7L, 8L).equals(delivered), "Delivered after failure " + delivered);
+		check(checkpoint.load() == 8, "Checkpoint after retry " + checkpoint.load());
+	}
+
+	private static void deliver(BlockEventDispatcher dispatcher, long from, long to) throws Exception {
+		for (long number = from; number < to; number++) {
+			dispatcher.received(newBlockEvent(BlockDecoderBenchmark.createBlock(number, 0)));
+		}
+	}
+
+	/**
+	 * Wrap the block as the SDK does for the blocks a peer delivers.
+	 */
+	static BlockEvent newBlockEvent(Common.Block block) throws Exception {
+		return newBlockEvent(null, block);
+	}
+
+	/**
+	 * Wrap the block as delivered by the peer.
+	 */
+	static BlockEvent newBlockEvent(Peer peer, Common.Block block) throws Exception {
+		Constructor<BlockEvent> constructor = BlockEvent.class.getDeclaredConstructor(Peer.class,
+				PeerEvents.DeliverResponse.class);
+		constructor.setAccessible(true);
+		return constructor.newInstance(peer, PeerEvents.DeliverResponse.newBuilder().setBlock(block).build());
+	}
+
+	/**
+	 * A channel without peers: blocks are only received as events, queries fail.
+	 */
+	static Channel createChannel() throws Exception {
+		return createClient().newChannel("check");
+	}
+
+	/**
+	 * A client signing with a throwaway key.
+	 */
+	static HFClient createClient() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+		generator.initialize(256);
+		UserContext user = new UserContext();
+		user.setName("check");
+		user.setMspId("Org1MSP");
+		user.setEnrollment(new CAEnrollment(generator.generateKeyPair().getPrivate(), "check"));
+		HFClient client = HFClient.createNewInstance();
+		client.setCryptoSuite(CryptoSuite.Factory.getCryptoSuite());
+		client.setUserContext(user);
+		return client;
+	}
+
+	private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!condition.getAsBoolean()) {
+			check(System.currentTimeMillis() < deadline, message);
+			Thread.sleep(5);
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("Check failed: " + message);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package org.ecsoya.fabric.tests;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+
+import org.ecsoya.fabric.client.event.BlockEventDispatcher;
+import org.ecsoya.fabric.client.event.ChaincodeEventSubscription;
+import org.ecsoya.fabric.client.event.ChaincodeEventSubscription.ChaincodeEventConsumer;
+import org.ecsoya.fabric.client.event.ChaincodeEventSubscription.OverflowPolicy;
+import org.hyperledger.fabric.sdk.Channel;
+
+/**
+ * Checks that chaincode event subscriptions keep the queue in front of their
+ * buffer bounded under every overflow policy, deliver every event in order
+ * with {@link OverflowPolicy#BLOCK} and {@link OverflowPolicy#SPILL} when the
+ * event thread may wait, and account for every dropped event. Throws on the
+ * first mismatch.
+ */
+public class ChaincodeEventSubscriptionCheck {
+
+	private static final int TRANSACTIONS = BlockDecoderBenchmark.TRANSACTIONS;
+	private static final int VALID = TRANSACTIONS - TRANSACTIONS / 10;
+	private static final int CAPACITY = 8;
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	private static long nextBlock;
+
+	public static void main(String[] args) throws Exception {
+		Channel channel = BlockStreamCheck.createChannel();
+		File directory = Files.createTempDirectory("chaincode-events").toFile();
+		try {
+			checkBounded(channel, OverflowPolicy.BLOCK, null);
+			checkBounded(channel, OverflowPolicy.DROP_OLDEST, null);
+			checkBounded(channel, OverflowPolicy.SPILL, new File(directory, "bounded.spill"));
+			checkLossless(channel, OverflowPolicy.BLOCK, null);
+			checkLossless(channel, OverflowPolicy.SPILL, new File(directory, "lossless.spill"));
+		} finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+		System.out.println("Chaincode event subscription checks passed");
+	}
+
+	// A stalled consumer and an event thread that never waits: events beyond the
+	// buffer and the queue are dropped and counted
+	private static void checkBounded(Channel channel, OverflowPolicy policy, File spillFile) throws Exception {
+		BlockEventDispatcher dispatcher = new BlockEventDispatcher(channel);
+		CountDownLatch stalled = new CountDownLatch(1);
+		List<String> delivered = new CopyOnWriteArrayList<>();
+		ChaincodeEventSubscription subscription = subscribe(dispatcher, policy, spillFile, 0, event -> {
+			stalled.await();
+			delivered.add(new String(event.getPayload(), StandardCharsets.UTF_8));
+		});
+		deliver(dispatcher, 2);
+		check(subscription.getPublished() == 2 * VALID, policy + " published " + subscription.getPublished());
+		check(subscription.getMaxPending() == CAPACITY, policy + " max pending " + subscription.getMaxPending());
+		check(subscription.getPending() <= CAPACITY, policy + " pending " + subscription.getPending());
+		if (policy != OverflowPolicy.SPILL) {
+			check(subscription.getDropped() > 0, policy + " dropped nothing");
+		}
+		stalled.countDown();
+		await(() -> subscription.getDelivered() + subscription.getDropped() == 2 * VALID,
+				policy + " events unaccounted for: delivered " + subscription.getDelivered() + ", dropped "
+						+ subscription.getDropped());
+		if (policy == OverflowPolicy.DROP_OLDEST) {
+			check(delivered.get(delivered.size() - 1).equals("asset" + (nextBlock * TRANSACTIONS - 1)),
+					"Newest event dropped: " + delivered.get(delivered.size() - 1));
+		}
+		check(subscription.getQueued() == 0, policy + " queued " + subscription.getQueued());
+		subscription.close();
+	}
+
+	// An event thread allowed to wait for the consumers: nothing is dropped
+	private static void checkLossless(Channel channel, OverflowPolicy policy, File spillFile) throws Exception {
+		BlockEventDispatcher dispatcher = new BlockEventDispatcher(channel);
+		List<String> delivered = new CopyOnWriteArrayList<>();
+		ChaincodeEventSubscription subscription = subscribe(dispatcher, policy, spillFile, TIMEOUT_MILLIS, event -> {
+			Thread.sleep(0, 100000);
+			delivered.add(new String(event.getPayload(), StandardCharsets.UTF_8));
+		});
+		long first = nextBlock * TRANSACTIONS;
+		deliver(dispatcher, 2);
+		await(() -> subscription.getDelivered() == 2 * VALID, policy + " delivered " + subscription.getDelivered());
+		check(subscription.getDropped() == 0, policy + " dropped " + subscription.getDropped());
+		List<String> expected = new ArrayList<>();
+		for (long t = first; t < nextBlock * TRANSACTIONS; t++) {
+			if (t % 10 != 0) {
+				expected.add("asset" + t);
+			}
+		}
+		check(expected.equals(delivered), policy + " delivered out of order");
+		subscription.close();
+		if (spillFile != null) {
+			await(() -> !spillFile.exists(), "Spill file left behind");
+		}
+	}
+
+	private static ChaincodeEventSubscription subscribe(BlockEventDispatcher dispatcher, OverflowPolicy policy,
+			File spillFile, long maxBlockMillis, ChaincodeEventConsumer consumer) throws Exception {
+		return new ChaincodeEventSubscription(dispatcher, "assets", "Asset.*", consumer).capacity(CAPACITY)
+				.overflow(policy, spillFile).maxBlockMillis(maxBlockMillis).start();
+	}
+
+	// Deliver blocks whose transactions are numbered on from the last block
+	private static void deliver(BlockEventDispatcher dispatcher, int blocks) throws Exception {
+		for (int i = 0; i < blocks; i++) {
+			long number = nextBlock++;
+			dispatcher.received(BlockStreamCheck
+					.newBlockEvent(BlockDecoderBenchmark.createBlock(number, (int) number * TRANSACTIONS)));
+		}
+	}
+
+	private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!condition.getAsBoolean()) {
+			check(System.currentTimeMillis() < deadline, message);
+			Thread.sleep(5);
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("Check failed: " + message);
+		}
+	}
+}
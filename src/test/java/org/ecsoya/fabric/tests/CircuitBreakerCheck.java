@@ -0,0 +1,154 @@
+package org.ecsoya.fabric.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.ecsoya.fabric.client.node.CircuitBreaker;
+import org.ecsoya.fabric.client.node.CircuitBreaker.State;
+import org.ecsoya.fabric.client.node.NodeStats;
+
+/**
+ * Checks the transitions of the {@link CircuitBreaker}: it opens on the
+ * failure rate, lets a single probe through once half open whatever the
+ * number of concurrent requests, and only that probe's outcome or
+ * cancellation changes the half open state. Throws on the first mismatch.
+ */
+public class CircuitBreakerCheck {
+
+	private static final long OPEN_MILLIS = 100;
+	private static final int THREADS = 16;
+
+	public static void main(String[] args) throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker().window(4, 4).failureRateThreshold(0.5).openMillis(OPEN_MILLIS);
+
+		// CLOSED to OPEN: 2 failures out of 4 requests
+		long[] permits = new long[4];
+		for (int i = 0; i < permits.length; i++) {
+			permits[i] = breaker.tryAcquire();
+			check(permits[i] == CircuitBreaker.REQUEST, "Closed circuit refused a request");
+		}
+		breaker.record(permits[0], true);
+		breaker.record(permits[1], false);
+		breaker.record(permits[2], true);
+		check(breaker.getState() == State.CLOSED, "Opened before the window is full");
+		breaker.record(permits[3], false);
+		check(breaker.getState() == State.OPEN, "Not opened at the failure rate threshold");
+		check(breaker.getOpened() == 1, "Opened " + breaker.getOpened());
+		check(breaker.tryAcquire() == CircuitBreaker.REFUSED, "Open circuit granted a request");
+		check(!breaker.isAvailable(), "Open circuit available");
+
+		// OPEN to HALF_OPEN: a single probe among concurrent requests
+		Thread.sleep(OPEN_MILLIS + 20);
+		check(breaker.isAvailable(), "Circuit not available after openMillis");
+		check(breaker.getState() == State.OPEN, "isAvailable changed the state");
+		long probe = acquireConcurrently(breaker);
+		check(breaker.getState() == State.HALF_OPEN, "Not half open after the probe " + breaker.getState());
+		check(!breaker.isAvailable(), "Half open circuit available while probed");
+
+		// Requests other than the probe don't change the half open state
+		breaker.record(CircuitBreaker.REQUEST, true);
+		breaker.record(CircuitBreaker.REQUEST, false);
+		breaker.cancel(CircuitBreaker.REQUEST);
+		check(breaker.getState() == State.HALF_OPEN, "Closed or opened by a request that was not the probe");
+		check(breaker.tryAcquire() == CircuitBreaker.REFUSED, "Second probe granted");
+
+		// A cancelled probe lets the next one through, the late outcome of the
+		// cancelled one is ignored
+		breaker.cancel(probe);
+		long second = breaker.tryAcquire();
+		check(second > 0 && second != probe, "No new probe after the cancel: " + second);
+		breaker.record(probe, true);
+		check(breaker.getState() == State.HALF_OPEN, "Closed by a cancelled probe");
+
+		// HALF_OPEN to OPEN on a failed probe
+		breaker.record(second, false);
+		check(breaker.getState() == State.OPEN, "Not opened again by a failed probe");
+		check(breaker.getOpened() == 2, "Opened " + breaker.getOpened());
+
+		// A probe that never reports back does not hold the circuit forever
+		Thread.sleep(OPEN_MILLIS + 20);
+		long lost = breaker.tryAcquire();
+		check(lost > 0, "No probe after reopening");
+		check(breaker.tryAcquire() == CircuitBreaker.REFUSED, "Second probe granted after reopening");
+		Thread.sleep(OPEN_MILLIS + 20);
+		long third = breaker.tryAcquire();
+		check(third > 0 && third != lost, "No probe after the lost one timed out");
+
+		// HALF_OPEN to CLOSED on a successful probe
+		breaker.record(third, true);
+		check(breaker.getState() == State.CLOSED, "Not closed by a successful probe " + breaker.getState());
+		check(breaker.tryAcquire() == CircuitBreaker.REQUEST, "Closed circuit refused a request");
+		check(breaker.getFailureRate() == 0, "Window not reset on close");
+
+		checkNodeStats();
+		System.out.println("Circuit breaker checks passed");
+	}
+
+	// Returns the only probe granted to requests racing for the circuit
+	private static long acquireConcurrently(CircuitBreaker breaker) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			CountDownLatch ready = new CountDownLatch(THREADS);
+			List<Future<Long>> results = new ArrayList<>();
+			for (int i = 0; i < THREADS; i++) {
+				results.add(executor.submit((Callable<Long>) () -> {
+					ready.countDown();
+					ready.await();
+					return breaker.tryAcquire();
+				}));
+			}
+			long probe = CircuitBreaker.REFUSED;
+			int granted = 0;
+			for (Future<Long> result : results) {
+				long permit = result.get();
+				if (permit != CircuitBreaker.REFUSED) {
+					probe = permit;
+					granted++;
+				}
+			}
+			check(granted == 1, granted + " probes granted to " + THREADS + " concurrent requests");
+			return probe;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void checkNodeStats() throws InterruptedException {
+		NodeStats stats = new NodeStats("peer0");
+		stats.getCircuitBreaker().window(2, 2).openMillis(OPEN_MILLIS);
+		stats.end(stats.tryBegin(), 1000000, false, false);
+		stats.end(stats.tryBegin(), 1000000, false, false);
+		check(stats.getCircuitBreaker().getState() == State.OPEN, "Unreachable node not opened");
+		check(stats.tryBegin() == CircuitBreaker.REFUSED, "Open node began a request");
+		check(stats.getOutstanding() == 0, "Refused request counted as outstanding");
+
+		// A node answering with an error is reachable, the probe closes it
+		Thread.sleep(OPEN_MILLIS + 20);
+		long probe = stats.tryBegin();
+		check(stats.getOutstanding() == 1, "Probe not outstanding");
+		stats.end(probe, 1000000, false, true);
+		check(stats.getCircuitBreaker().getState() == State.CLOSED, "Reachable probe did not close the node");
+		check(stats.getFailures() == 3, "Failures " + stats.getFailures());
+
+		// Skipping the probe frees it for the next request
+		stats.end(stats.tryBegin(), 1000000, false, false);
+		stats.end(stats.tryBegin(), 1000000, false, false);
+		Thread.sleep(OPEN_MILLIS + 20);
+		probe = stats.tryBegin();
+		check(stats.tryBegin() == CircuitBreaker.REFUSED, "Second probe began");
+		stats.skip(probe, 1000000);
+		check(stats.getSkipped() == 1, "Skipped " + stats.getSkipped());
+		check(stats.tryBegin() != CircuitBreaker.REFUSED, "No probe after the skipped one");
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("Check failed: " + message);
+		}
+	}
+}
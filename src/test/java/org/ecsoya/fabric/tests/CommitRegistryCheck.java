@@ -0,0 +1,156 @@
+package org.ecsoya.fabric.tests;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ecsoya.fabric.client.event.CommitRegistry;
+import org.ecsoya.fabric.client.event.TimerWheel;
+import org.ecsoya.fabric.client.event.TimerWheel.Timeout;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.sdk.BlockEvent.TransactionEvent;
+import org.hyperledger.fabric.sdk.HFClient;
+import org.hyperledger.fabric.sdk.Peer;
+
+/**
+ * Checks that timeouts of the {@link TimerWheel} expire on their tick, also
+ * after more than one turn of the wheel, and not once cancelled, and that the
+ * {@link CommitRegistry} completes waiting transactions on their commit
+ * events, on the required number of peers, or fails them when they expire or
+ * fail. Throws on the first mismatch.
+ */
+public class CommitRegistryCheck {
+
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	public static void main(String[] args) throws Exception {
+		checkTimerWheel();
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			checkCommitRegistry(scheduler);
+		} finally {
+			scheduler.shutdown();
+		}
+		System.out.println("Commit registry checks passed");
+	}
+
+	private static void checkTimerWheel() {
+		TimerWheel wheel = new TimerWheel(100, 4);
+		AtomicInteger expired = new AtomicInteger();
+
+		// 250ms is rounded up to 3 ticks, plus the current one which may be partly
+		// elapsed
+		wheel.schedule(expired::incrementAndGet, 250);
+		advance(wheel, 3);
+		check(expired.get() == 0, "Expired before its tick");
+		advance(wheel, 1);
+		check(expired.get() == 1, "Not expired on its tick");
+		check(wheel.size() == 0, "Size after expiry " + wheel.size());
+
+		// 11 ticks go round the wheel of 4 buckets twice before expiring
+		Timeout late = wheel.schedule(expired::incrementAndGet, 1000);
+		advance(wheel, 10);
+		check(expired.get() == 1, "Expired on an earlier turn of the wheel");
+		advance(wheel, 1);
+		check(expired.get() == 2, "Not expired after two turns of the wheel");
+		check(!late.cancel(), "Expired timeout cancelled");
+
+		// A cancelled timeout never runs
+		Timeout cancelled = wheel.schedule(expired::incrementAndGet, 100);
+		check(wheel.size() == 1, "Size " + wheel.size());
+		check(cancelled.cancel(), "Timeout not cancelled");
+		check(!cancelled.cancel(), "Timeout cancelled twice");
+		check(wheel.size() == 0, "Size after cancel " + wheel.size());
+		advance(wheel, 8);
+		check(expired.get() == 2, "Cancelled timeout expired");
+
+		// A failing task doesn't stop the others of its tick
+		wheel.schedule(() -> {
+			throw new IllegalStateException("Task failure");
+		}, 100);
+		wheel.schedule(expired::incrementAndGet, 100);
+		advance(wheel, 2);
+		check(expired.get() == 3, "Task after a failing one not run");
+	}
+
+	private static void checkCommitRegistry(ScheduledExecutorService scheduler) throws Exception {
+		CommitRegistry registry = new CommitRegistry(Runnable::run, scheduler);
+		HFClient client = BlockStreamCheck.createClient();
+		Peer peer0 = client.newPeer("peer0", "grpc://localhost:7051");
+		Peer peer1 = client.newPeer("peer1", "grpc://localhost:8051");
+		Common.Block block = BlockDecoderBenchmark.createBlock(0, 0);
+
+		// The first event completes a valid or an invalid transaction
+		CompletableFuture<TransactionEvent> valid = registry.register(txId(1));
+		CompletableFuture<TransactionEvent> invalid = registry.register(txId(0));
+		check(registry.register(txId(1)) == valid, "Second registration not sharing the first");
+		// On two given peers, events of other peers don't count
+		CompletableFuture<TransactionEvent> twoPeers = registry.register(txId(2),
+				new HashSet<>(Arrays.asList("peer0", "peer1")), 2);
+		registry.received(BlockStreamCheck.newBlockEvent(peer0, block));
+		check(valid.isDone() && valid.get().isValid(), "Valid transaction not committed");
+		check(invalid.isDone() && !invalid.get().isValid(), "Invalid transaction not completed");
+		check(!twoPeers.isDone(), "Committed on one of two peers");
+		registry.received(BlockStreamCheck.newBlockEvent(peer0, block));
+		check(!twoPeers.isDone(), "Same peer counted twice");
+		registry.received(BlockStreamCheck.newBlockEvent(peer1, block));
+		check(twoPeers.isDone(), "Not committed on both peers");
+		check(registry.getPendingCount() == 0, "Pending " + registry.getPendingCount());
+
+		// A transaction never committed expires
+		registry.setTimeoutMillis(200);
+		long start = System.nanoTime();
+		CompletableFuture<TransactionEvent> missing = registry.register("missing");
+		try {
+			missing.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			check(false, "Missing transaction committed");
+		} catch (ExecutionException e) {
+			check(e.getCause() instanceof TimeoutException, "Expired with " + e.getCause());
+		}
+		long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		check(waited >= 200, "Expired after " + waited + "ms");
+		check(registry.getPendingCount() == 0, "Expired transaction still pending");
+
+		// A failed transaction is completed with the failure and its timer cancelled
+		registry.setTimeoutMillis(TIMEOUT_MILLIS);
+		CompletableFuture<TransactionEvent> refused = registry.register(txId(3));
+		IllegalStateException failure = new IllegalStateException("Refused by the orderer");
+		check(registry.fail(txId(3), failure), "Pending transaction not failed");
+		check(!registry.fail(txId(3), failure), "Transaction failed twice");
+		try {
+			refused.get();
+			check(false, "Failed transaction completed");
+		} catch (ExecutionException e) {
+			check(e.getCause() == failure, "Failed with " + e.getCause());
+		}
+		// Its later commit event is ignored
+		registry.received(BlockStreamCheck.newBlockEvent(peer0, block));
+
+		// Closing cancels what is still waiting
+		CompletableFuture<TransactionEvent> open = registry.register("open");
+		registry.close();
+		check(open.isCancelled(), "Pending transaction not cancelled on close");
+	}
+
+	private static String txId(int transaction) {
+		return String.format("%064x", transaction);
+	}
+
+	private static void advance(TimerWheel wheel, int ticks) {
+		for (int i = 0; i < ticks; i++) {
+			wheel.advance();
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("Check failed: " + message);
+		}
+	}
+}
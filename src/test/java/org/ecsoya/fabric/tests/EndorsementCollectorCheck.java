@@ -0,0 +1,250 @@
+package org.ecsoya.fabric.tests;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.ecsoya.fabric.client.endorser.EndorsementCollector;
+import org.ecsoya.fabric.client.endorser.EndorsementCollector.ProposalCall;
+import org.ecsoya.fabric.client.endorser.EndorsementPolicyEvaluator;
+import org.ecsoya.fabric.client.node.NodeStats;
+import org.ecsoya.fabric.client.node.NodeStatsRegistry;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.HFClient;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.transaction.TransactionContext;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Checks that the {@link EndorsementCollector} completes as soon as the quorum
+ * or the endorsement policy is met, cancels the proposals still in flight and
+ * records them as skipped, and fails on inconsistent endorsements or when no
+ * peer can be sent to. Peers never connect: each one answers, fails or hangs
+ * as scripted. Throws on the first mismatch.
+ */
+public class EndorsementCollectorCheck {
+
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	private static HFClient client;
+	private static Channel channel;
+	private static final Map<String, Peer> peers = new HashMap<>();
+
+	public static void main(String[] args) throws Exception {
+		client = BlockStreamCheck.createClient();
+		channel = client.newChannel("check");
+		for (String name : Arrays.asList("peer0.org1", "peer1.org1", "peer0.org2", "peer1.org2")) {
+			peers.put(name, client.newPeer(name, "grpc://localhost:7051"));
+		}
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			checkQuorum(executor);
+			checkPolicy(executor);
+			checkFailure(executor);
+			checkInconsistent(executor);
+			checkCircuitOpen(executor);
+		} finally {
+			executor.shutdownNow();
+		}
+		System.out.println("Endorsement collector checks passed");
+	}
+
+	// Two of four peers answer: the quorum of two completes without the others,
+	// which are interrupted and skipped
+	private static void checkQuorum(ExecutorService executor) throws Exception {
+		NodeStatsRegistry stats = new NodeStatsRegistry();
+		Script script = new Script().answer("peer0.org1", "a").answer("peer0.org2", "a");
+		Collection<ProposalResponse> responses = new EndorsementCollector(executor, null, stats, Script::mspOf)
+				.collect(peers("peer0.org1", "peer1.org1", "peer0.org2", "peer1.org2"), null, 2, script)
+				.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		check(responses.size() == 2, "Endorsements " + responses.size());
+		await(() -> script.interrupted.size() == 2, "Stragglers not interrupted " + script.interrupted);
+		for (String name : Arrays.asList("peer1.org1", "peer1.org2")) {
+			NodeStats straggler = stats.get(peers.get(name));
+			check(straggler.getSkipped() == 1 && straggler.getRequests() == 0, name + " not skipped");
+			check(straggler.getOutstanding() == 0, name + " outstanding " + straggler.getOutstanding());
+		}
+		check(stats.get(peers.get("peer0.org1")).getRequests() == 1, "Answer not recorded");
+	}
+
+	// AND(Org1, Org2): two Org1 endorsements are not enough, the first Org2 one
+	// completes the round
+	private static void checkPolicy(ExecutorService executor) throws Exception {
+		EndorsementPolicyEvaluator policy = EndorsementPolicyCheck.compile(EndorsementPolicyCheck.outOf(2,
+				EndorsementPolicyCheck.signedBy(0), EndorsementPolicyCheck.signedBy(1)), "Org1MSP", "Org2MSP");
+		NodeStatsRegistry stats = new NodeStatsRegistry();
+		CountDownLatch org2 = new CountDownLatch(1);
+		Script script = new Script().answer("peer0.org1", "a").answer("peer1.org1", "a").answerAfter("peer0.org2",
+				"a", org2);
+		CompletableFuture<Collection<ProposalResponse>> result = new EndorsementCollector(executor, null, stats,
+				Script::mspOf).collect(peers("peer0.org1", "peer1.org1", "peer0.org2", "peer1.org2"), policy, 0,
+						script);
+		await(() -> stats.get(peers.get("peer0.org1")).getRequests() == 1
+				&& stats.get(peers.get("peer1.org1")).getRequests() == 1, "Org1 endorsements not received");
+		check(!result.isDone(), "Completed without Org2");
+		org2.countDown();
+		Collection<ProposalResponse> responses = result.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		check(responses.size() == 3, "Endorsements " + responses.size());
+		await(() -> stats.get(peers.get("peer1.org2")).getSkipped() == 1, "Straggler not skipped");
+	}
+
+	// A failing peer is recorded and doesn't keep the others from the quorum
+	private static void checkFailure(ExecutorService executor) throws Exception {
+		NodeStatsRegistry stats = new NodeStatsRegistry();
+		Script script = new Script().fail("peer0.org1").answer("peer1.org1", "a").answer("peer0.org2", "a");
+		Collection<ProposalResponse> responses = new EndorsementCollector(executor, null, stats, Script::mspOf)
+				.collect(peers("peer0.org1", "peer1.org1", "peer0.org2"), null, 2, script)
+				.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		check(responses.size() == 2, "Endorsements " + responses.size());
+		NodeStats failed = stats.get(peers.get("peer0.org1"));
+		await(() -> failed.getFailures() + failed.getSkipped() == 1, "Failure not recorded");
+
+		// Every peer failing fails the round with their errors
+		try {
+			new EndorsementCollector(executor, null, new NodeStatsRegistry(), Script::mspOf)
+					.collect(peers("peer0.org1", "peer1.org1"), null, 0, new Script().fail("peer0.org1")
+							.fail("peer1.org1"))
+					.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			check(false, "Round without endorsements completed");
+		} catch (ExecutionException e) {
+			check(e.getCause().getMessage().contains("peer1.org1: Endorsement refused"), "Error " + e.getCause());
+		}
+	}
+
+	private static void checkInconsistent(ExecutorService executor) throws Exception {
+		Script script = new Script().answer("peer0.org1", "a").answer("peer0.org2", "b");
+		try {
+			new EndorsementCollector(executor, null, new NodeStatsRegistry(), Script::mspOf)
+					.collect(peers("peer0.org1", "peer0.org2"), null, 0, script)
+					.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			check(false, "Inconsistent endorsements accepted");
+		} catch (ExecutionException e) {
+			check(e.getCause().getMessage().contains("inconsistent"), "Error " + e.getCause());
+		}
+	}
+
+	// No proposal is sent when every circuit is open
+	private static void checkCircuitOpen(ExecutorService executor) throws Exception {
+		NodeStatsRegistry stats = new NodeStatsRegistry();
+		for (String name : Arrays.asList("peer0.org1", "peer0.org2")) {
+			NodeStats node = stats.get(peers.get(name));
+			node.getCircuitBreaker().window(1, 1);
+			node.end(node.tryBegin(), 1000000, false, false);
+		}
+		Script script = new Script().answer("peer0.org1", "a").answer("peer0.org2", "a");
+		CompletableFuture<Collection<ProposalResponse>> result = new EndorsementCollector(executor, null, stats,
+				Script::mspOf).collect(peers("peer0.org1", "peer0.org2"), null, 0, script);
+		check(result.isCompletedExceptionally(), "Round with every circuit open not failed right away");
+		check(script.called.isEmpty(), "Proposal sent to " + script.called);
+	}
+
+	private static List<Peer> peers(String... names) {
+		Peer[] selected = new Peer[names.length];
+		for (int i = 0; i < names.length; i++) {
+			selected[i] = peers.get(names[i]);
+		}
+		return Arrays.asList(selected);
+	}
+
+	/**
+	 * How each peer answers: with an endorsement of the payload, possibly once
+	 * released, with an error, or never if not scripted.
+	 */
+	private static class Script implements ProposalCall {
+
+		private final Map<String, String> payloads = new HashMap<>();
+		private final Map<String, CountDownLatch> gates = new HashMap<>();
+		private final Set<String> failing = ConcurrentHashMap.newKeySet();
+		private final Set<String> called = ConcurrentHashMap.newKeySet();
+		private final Set<String> interrupted = ConcurrentHashMap.newKeySet();
+
+		Script answer(String peer, String payload) {
+			payloads.put(peer, payload);
+			return this;
+		}
+
+		Script answerAfter(String peer, String payload, CountDownLatch gate) {
+			gates.put(peer, gate);
+			return answer(peer, payload);
+		}
+
+		Script fail(String peer) {
+			failing.add(peer);
+			return this;
+		}
+
+		@Override
+		public ProposalResponse send(Peer peer) throws Exception {
+			String name = peer.getName();
+			called.add(name);
+			if (failing.contains(name)) {
+				throw new IllegalStateException("Endorsement refused");
+			}
+			try {
+				CountDownLatch gate = gates.get(name);
+				if (!payloads.containsKey(name)) {
+					new CountDownLatch(1).await();
+				} else if (gate != null) {
+					gate.await();
+				}
+			} catch (InterruptedException e) {
+				interrupted.add(name);
+				throw e;
+			}
+			return newResponse(peer, payloads.get(name));
+		}
+
+		static String mspOf(Peer peer) {
+			String org = peer.getName().substring(peer.getName().indexOf('.') + 1);
+			return Character.toUpperCase(org.charAt(0)) + org.substring(1) + "MSP";
+		}
+	}
+
+	// A successful response of the peer, as the SDK builds it
+	private static ProposalResponse newResponse(Peer peer, String payload) throws Exception {
+		TransactionContext context = new TransactionContext(channel, client.getUserContext(),
+				client.getCryptoSuite());
+		Constructor<ProposalResponse> constructor = ProposalResponse.class
+				.getDeclaredConstructor(TransactionContext.class, int.class, String.class);
+		constructor.setAccessible(true);
+		ProposalResponse response = constructor.newInstance(context, 200, "");
+		response.setProposalResponse(FabricProposalResponse.ProposalResponse.newBuilder()
+				.setResponse(FabricProposalResponse.Response.newBuilder().setStatus(200))
+				.setPayload(ByteString.copyFrom(payload, StandardCharsets.UTF_8)).build());
+		Method setPeer = ProposalResponse.class.getDeclaredMethod("setPeer", Peer.class);
+		setPeer.setAccessible(true);
+		setPeer.invoke(response, peer);
+		return response;
+	}
+
+	private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!condition.getAsBoolean()) {
+			check(System.currentTimeMillis() < deadline, message);
+			Thread.sleep(5);
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("Check failed: " + message);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package org.ecsoya.fabric.tests;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.ecsoya.fabric.client.endorser.EndorsementPolicyEvaluator;
+import org.hyperledger.fabric.protos.common.MspPrincipal.MSPPrincipal;
+import org.hyperledger.fabric.protos.common.MspPrincipal.MSPRole;
+import org.hyperledger.fabric.protos.common.MspPrincipal.MSPRole.MSPRoleType;
+import org.hyperledger.fabric.protos.common.Policies.SignaturePolicy;
+import org.hyperledger.fabric.protos.common.Policies.SignaturePolicy.NOutOf;
+import org.hyperledger.fabric.protos.common.Policies.SignaturePolicyEnvelope;
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+
+/**
+ * Checks which sets of endorsing organizations satisfy compiled endorsement
+ * policies, and the endorsers selected for them. Throws on the first
+ * mismatch.
+ */
+public class EndorsementPolicyCheck {
+
+	public static void main(String[] args) throws Exception {
+		// AND('Org1.member', 'Org2.member')
+		EndorsementPolicyEvaluator and = compile(outOf(2, signedBy(0), signedBy(1)), "Org1MSP", "Org2MSP");
+		check(and.isSatisfiedBy(Arrays.asList("Org1MSP", "Org2MSP")), "AND satisfied by both");
+		check(!and.isSatisfiedBy(Arrays.asList("Org1MSP")), "AND not satisfied by one");
+		check(!and.isSatisfiedBy(Arrays.asList("Org1MSP", "Org1MSP")), "AND not satisfied by the same org twice");
+
+		// OR('Org1.member', 'Org2.member')
+		EndorsementPolicyEvaluator or = compile(outOf(1, signedBy(0), signedBy(1)), "Org1MSP", "Org2MSP");
+		check(or.isSatisfiedBy(Arrays.asList("Org2MSP")), "OR satisfied by one");
+		check(!or.isSatisfiedBy(Arrays.asList("Org3MSP")), "OR not satisfied by another org");
+		check(!or.isSatisfiedBy(Collections.emptyList()), "OR not satisfied by nobody");
+
+		// OutOf(2, 'Org1.member', 'Org1.member'): an endorsement is used once
+		EndorsementPolicyEvaluator twice = compile(outOf(2, signedBy(0), signedBy(0)), "Org1MSP");
+		check(!twice.isSatisfiedBy(Arrays.asList("Org1MSP")), "Two Org1 rules not satisfied by one endorsement");
+		check(twice.isSatisfiedBy(Arrays.asList("Org1MSP", "Org1MSP")), "Two Org1 rules satisfied by two");
+
+		// OR(AND('Org1.member', 'Org2.member'), 'Org3.member')
+		EndorsementPolicyEvaluator nested = compile(
+				outOf(1, outOf(2, signedBy(0), signedBy(1)), signedBy(2)), "Org1MSP", "Org2MSP", "Org3MSP");
+		check(nested.isSatisfiedBy(Arrays.asList("Org3MSP")), "Nested satisfied by Org3");
+		check(nested.isSatisfiedBy(Arrays.asList("Org2MSP", "Org1MSP")), "Nested satisfied by Org1 and Org2");
+		check(!nested.isSatisfiedBy(Arrays.asList("Org1MSP")), "Nested not satisfied by Org1");
+
+		// Principals other than members or peers can't be met by peers
+		EndorsementPolicyEvaluator admin = compile(outOf(1, signedBy(0)), principal("Org1MSP", MSPRoleType.ADMIN));
+		check(!admin.isSatisfiedBy(Arrays.asList("Org1MSP")), "Admin principal not satisfied by a peer");
+
+		// The cheapest endorsers, without the ones the policy doesn't need
+		List<String> peers = Arrays.asList("peer0.org1:30", "peer1.org1:10", "peer0.org2:20", "peer0.org3:50");
+		List<String> selected = nested.selectEndorsers(peers, EndorsementPolicyCheck::mspOf,
+				EndorsementPolicyCheck::costOf);
+		check(Arrays.asList("peer1.org1:10", "peer0.org2:20").equals(selected), "Selected " + selected);
+		selected = and.selectEndorsers(Arrays.asList("peer0.org1:10", "peer0.org3:5"), EndorsementPolicyCheck::mspOf,
+				EndorsementPolicyCheck::costOf);
+		check(selected == null, "No selection without Org2, got " + selected);
+
+		try {
+			compile(outOf(1, signedBy(1)), "Org1MSP");
+			check(false, "Unknown identity accepted");
+		} catch (InvalidArgumentException e) {
+			// Expected
+		}
+		System.out.println("Endorsement policy checks passed");
+	}
+
+	private static String mspOf(String peer) {
+		String org = peer.substring(peer.indexOf('.') + 1, peer.indexOf(':'));
+		return Character.toUpperCase(org.charAt(0)) + org.substring(1) + "MSP";
+	}
+
+	private static double costOf(String peer) {
+		return Double.parseDouble(peer.substring(peer.indexOf(':') + 1));
+	}
+
+	static EndorsementPolicyEvaluator compile(SignaturePolicy rule, String... mspIds)
+			throws InvalidArgumentException {
+		MSPPrincipal[] principals = new MSPPrincipal[mspIds.length];
+		for (int i = 0; i < mspIds.length; i++) {
+			principals[i] = principal(mspIds[i], MSPRoleType.MEMBER);
+		}
+		return compile(rule, principals);
+	}
+
+	private static EndorsementPolicyEvaluator compile(SignaturePolicy rule, MSPPrincipal... principals)
+			throws InvalidArgumentException {
+		SignaturePolicyEnvelope envelope = SignaturePolicyEnvelope.newBuilder().setRule(rule)
+				.addAllIdentities(Arrays.asList(principals)).build();
+		return EndorsementPolicyEvaluator.compile(envelope.toByteArray());
+	}
+
+	private static MSPPrincipal principal(String mspId, MSPRoleType role) {
+		return MSPPrincipal.newBuilder().setPrincipalClassification(MSPPrincipal.Classification.ROLE)
+				.setPrincipal(MSPRole.newBuilder().setMspIdentifier(mspId).setRole(role).build().toByteString())
+				.build();
+	}
+
+	static SignaturePolicy signedBy(int index) {
+		return SignaturePolicy.newBuilder().setSignedBy(index).build();
+	}
+
+	static SignaturePolicy outOf(int n, SignaturePolicy... rules) {
+		return SignaturePolicy.newBuilder().setNOutOf(NOutOf.newBuilder().setN(n).addAllRules(Arrays.asList(rules)))
+				.build();
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("Check failed: " + message);
+		}
+	}
+}
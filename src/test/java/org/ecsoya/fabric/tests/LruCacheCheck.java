@@ -0,0 +1,64 @@
+package org.ecsoya.fabric.tests;
+
+import org.ecsoya.fabric.util.LruCache;
+
+/**
+ * Checks that the {@link LruCache} evicts the least recently used entries to
+ * stay within its entry and weight bounds, and keeps its weight in step with
+ * replaced and removed entries. Throws on the first mismatch.
+ */
+public class LruCacheCheck {
+
+	public static void main(String[] args) {
+		checkEntries();
+		checkWeight();
+		System.out.println("LRU cache checks passed");
+	}
+
+	private static void checkEntries() {
+		LruCache<String, String> cache = new LruCache<>(2);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		// Reading a makes b the least recently used
+		check("1".equals(cache.get("a")), "Entry a missing");
+		cache.put("c", "3");
+		check(cache.get("b") == null, "Least recently used entry kept");
+		check("1".equals(cache.get("a")) && "3".equals(cache.get("c")), "Recently used entries evicted");
+		check(cache.size() == 2, "Size " + cache.size());
+		check(cache.getEvictions() == 1, "Evictions " + cache.getEvictions());
+
+		// Replacing an entry evicts nothing
+		cache.put("a", "4");
+		check(cache.size() == 2 && cache.getEvictions() == 1, "Replacement evicted an entry");
+		check(cache.removeIf((key, value) -> value.equals("4")) == 1, "Entry not removed by the filter");
+		check(cache.get("a") == null && cache.size() == 1, "Filtered entry kept");
+	}
+
+	private static void checkWeight() {
+		LruCache<String, String> cache = new LruCache<>(100, 10, (key, value) -> value.length());
+		cache.put("a", "aaaa");
+		cache.put("b", "bbbb");
+		check(cache.getWeight() == 8, "Weight " + cache.getWeight());
+		cache.put("c", "cccc");
+		check(cache.get("a") == null, "Weight bound exceeded");
+		check(cache.getWeight() == 8, "Weight after eviction " + cache.getWeight());
+
+		// A replaced entry's weight is given back
+		cache.put("b", "bb");
+		check(cache.getWeight() == 6, "Weight after replacement " + cache.getWeight());
+		check(cache.remove("c") != null && cache.getWeight() == 2, "Weight after removal " + cache.getWeight());
+
+		// An entry heavier than the bound is not cached and drops the previous value
+		cache.put("b", "bbbbbbbbbbbb");
+		check(cache.get("b") == null, "Entry above the weight bound cached");
+		check(cache.getWeight() == 0 && cache.size() == 0, "Weight after oversized entry " + cache.getWeight());
+		cache.clear();
+		check(cache.getWeight() == 0, "Weight after clear " + cache.getWeight());
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("Check failed: " + message);
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package org.ecsoya.fabric.tests;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.ecsoya.fabric.client.ChannelClient;
+import org.ecsoya.fabric.client.FabricClient;
+import org.ecsoya.fabric.client.node.NodeErrors;
+import org.ecsoya.fabric.client.node.NodeStats;
+import org.hyperledger.fabric.protos.peer.FabricProposal.Proposal;
+import org.hyperledger.fabric.protos.peer.FabricProposal.SignedProposal;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse;
+import org.hyperledger.fabric.sdk.ChaincodeID;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.HFClient;
+import org.hyperledger.fabric.sdk.Orderer;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.TransactionProposalRequest;
+import org.hyperledger.fabric.sdk.exception.TransactionException;
+import org.hyperledger.fabric.sdk.transaction.ProposalBuilder;
+import org.hyperledger.fabric.sdk.transaction.TransactionContext;
+
+import io.grpc.Status;
+import io.grpc.StatusException;
+
+/**
+ * Checks that failures of peers and orderers are classified from the gRPC
+ * status in their cause chain: a transaction lookup on a peer and a broadcast
+ * to an orderer that do not answer count against the node's circuit breaker.
+ * Throws on the first mismatch.
+ */
+public class NodeErrorsCheck {
+
+	public static void main(String[] args) throws Exception {
+		checkClassification();
+		HFClient client = BlockStreamCheck.createClient();
+		Channel channel = client.newChannel("check");
+		checkTransactionLookup(client, channel);
+		checkBroadcast(client, channel);
+		System.out.println("Node error checks passed");
+	}
+
+	private static void checkClassification() {
+		Exception unavailable = new ExecutionException(Status.UNAVAILABLE.withDescription("down").asRuntimeException());
+		check(NodeErrors.getStatusCode(unavailable) == Status.Code.UNAVAILABLE,
+				"Status " + NodeErrors.getStatusCode(unavailable));
+		check(NodeErrors.isUnreachable(unavailable), "Unavailable node reachable");
+		check(NodeErrors.isUnreachable(new CompletionException(new StatusException(Status.DEADLINE_EXCEEDED))),
+				"Node past the deadline reachable");
+		check(NodeErrors.isUnreachable(new IllegalStateException(new TimeoutException())), "Timed out node reachable");
+
+		Exception denied = new ExecutionException(Status.PERMISSION_DENIED.asRuntimeException());
+		check(!NodeErrors.isUnreachable(denied), "Node answering with an error unreachable");
+		// The status is read from the exception, never from a message
+		Exception message = new IllegalStateException("UNAVAILABLE DEADLINE_EXCEEDED");
+		check(NodeErrors.getStatusCode(message) == null, "Status read from a message");
+		check(!NodeErrors.isUnreachable(message), "Unreachable read from a message");
+
+		// A cause chain that loops ends the walk
+		Exception first = new Exception("first");
+		Exception second = new Exception("second", first);
+		first.initCause(second);
+		check(NodeErrors.getStatusCode(first) == null, "Status in a looping chain");
+		check(!NodeErrors.isUnreachable(first), "Looping chain unreachable");
+	}
+
+	// A peer that refuses the connection fails the lookup as unreachable
+	private static void checkTransactionLookup(HFClient client, Channel channel) throws Exception {
+		Peer peer = client.newPeer("peer0", "grpc://localhost:" + closedPort());
+		channel.addPeer(peer);
+		ChannelClient channelClient = new ChannelClient("check", channel, new FabricClient(null, client));
+		NodeStats stats = channelClient.getNodeStats().get(peer);
+		stats.getCircuitBreaker().window(4, 4);
+		try {
+			channelClient.queryByTransactionIdAsync("missing").get(10, TimeUnit.SECONDS);
+			check(false, "Lookup on an unreachable peer succeeded");
+		} catch (ExecutionException e) {
+			check(String.valueOf(e.getCause().getMessage()).contains("peer0"), "Lookup error " + e.getCause());
+		}
+		check(stats.getFailures() == 1, "Lookup failures " + stats.getFailures());
+		check(stats.getOutstanding() == 0, "Lookup outstanding " + stats.getOutstanding());
+		check(stats.getCircuitBreaker().getFailureRate() == 1, "Unreachable peer not counted against its breaker");
+		channel.removePeer(peer);
+	}
+
+	// An orderer that refuses the connection fails over and counts against its
+	// breaker, an empty broadcast is refused before anything is sent
+	private static void checkBroadcast(HFClient client, Channel channel) throws Exception {
+		Orderer orderer = client.newOrderer("orderer0", "grpc://localhost:" + closedPort());
+		channel.addOrderer(orderer);
+		ChannelClient channelClient = new ChannelClient("check", channel, new FabricClient(null, client));
+		NodeStats stats = channelClient.getNodeStats().get(orderer);
+		stats.getCircuitBreaker().window(4, 4);
+		try {
+			channelClient.getOrdererRouter().broadcast(Collections.emptyList());
+			check(false, "Empty broadcast accepted");
+		} catch (TransactionException e) {
+			check(stats.getRequests() == 0, "Empty broadcast sent");
+		}
+		try {
+			channelClient.getOrdererRouter().broadcast(Collections.singletonList(newEndorsement(client, channel)));
+			check(false, "Broadcast to an unreachable orderer succeeded");
+		} catch (TransactionException e) {
+			check(e.getMessage().contains("every orderer"), "Broadcast error " + e.getMessage());
+		}
+		check(stats.getFailures() == 1, "Broadcast failures " + stats.getFailures());
+		check(stats.getCircuitBreaker().getFailureRate() == 1, "Unreachable orderer not counted against its breaker");
+	}
+
+	// An endorsement as a peer would return it, built without a peer
+	private static ProposalResponse newEndorsement(HFClient client, Channel channel) throws Exception {
+		TransactionProposalRequest request = client.newTransactionProposalRequest();
+		request.setChaincodeID(ChaincodeID.newBuilder().setName("assets").build());
+		request.setFcn("transfer");
+		request.setArgs("asset1", "owner2");
+		TransactionContext context = new TransactionContext(channel, client.getUserContext(), client.getCryptoSuite());
+		Proposal proposal = ProposalBuilder.newBuilder().context(context).request(request).build();
+		SignedProposal signedProposal = SignedProposal.newBuilder().setProposalBytes(proposal.toByteString())
+				.setSignature(context.signByteString(proposal.toByteArray())).build();
+
+		Constructor<ProposalResponse> constructor = ProposalResponse.class
+				.getDeclaredConstructor(TransactionContext.class, int.class, String.class);
+		constructor.setAccessible(true);
+		ProposalResponse response = constructor.newInstance(context, 200, "");
+		response.setProposal(signedProposal);
+		response.setProposalResponse(FabricProposalResponse.ProposalResponse.newBuilder()
+				.setResponse(FabricProposalResponse.Response.newBuilder().setStatus(200))
+				.setEndorsement(FabricProposalResponse.Endorsement.getDefaultInstance()).build());
+		return response;
+	}
+
+	private static int closedPort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("Check failed: " + message);
+		}
+	}
+}
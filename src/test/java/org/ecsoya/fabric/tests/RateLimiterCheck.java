@@ -0,0 +1,117 @@
+package org.ecsoya.fabric.tests;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.ecsoya.fabric.client.limit.RateLimiter;
+import org.ecsoya.fabric.client.limit.TokenBucket;
+
+/**
+ * Checks token bucket refill, bursts and debt, and that the rate limiter
+ * takes tokens from every matching limit, gives them back when one is
+ * missing and completes waiting acquires on the given executor. Throws on the
+ * first mismatch.
+ */
+public class RateLimiterCheck {
+
+	public static void main(String[] args) throws Exception {
+		checkRefill();
+		checkDebt();
+		checkMatching();
+		checkAsync();
+		System.out.println("Rate limiter checks passed");
+	}
+
+	private static void checkRefill() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(10, 2);
+		check(bucket.tryAcquire() && bucket.tryAcquire(), "Burst not available");
+		check(!bucket.tryAcquire(), "Token taken past the burst");
+		check(bucket.getDenied() == 1, "Denied " + bucket.getDenied());
+
+		// 10 tokens per second, one is back after 100ms
+		Thread.sleep(150);
+		check(bucket.tryAcquire(), "Token not refilled");
+		check(!bucket.tryAcquire(), "More tokens refilled than earned");
+
+		// Refills never exceed the burst
+		Thread.sleep(500);
+		check(bucket.tryAcquire() && bucket.tryAcquire(), "Burst not refilled");
+		check(!bucket.tryAcquire(), "Refilled past the burst");
+
+		// A lower burst drops the tokens above it
+		Thread.sleep(500);
+		bucket.setRate(10, 1);
+		check(bucket.tryAcquire(), "Token lost on rate change");
+		check(!bucket.tryAcquire(), "Tokens kept above the new burst");
+	}
+
+	private static void checkDebt() {
+		TokenBucket bucket = new TokenBucket(10, 1);
+		check(bucket.reserve() == 0, "Available token reserved with a wait");
+		// Each reservation in debt waits one more refill period of 100ms
+		long first = TimeUnit.NANOSECONDS.toMillis(bucket.reserve());
+		long second = TimeUnit.NANOSECONDS.toMillis(bucket.reserve());
+		check(first > 80 && first <= 100, "First wait in debt " + first + "ms");
+		check(second > 180 && second <= 200, "Second wait in debt " + second + "ms");
+		check(bucket.getThrottled() == 2, "Throttled " + bucket.getThrottled());
+		check(bucket.getAcquired() == 3, "Acquired " + bucket.getAcquired());
+		check(!bucket.tryAcquire(), "Token taken while in debt");
+	}
+
+	private static void checkMatching() {
+		RateLimiter limiter = new RateLimiter();
+		limiter.setRate("mychannel", null, null, 1000);
+		limiter.setRate(null, "mycc", null, 1000);
+		limiter.setRate("mychannel", "mycc", "transfer", 1, 1);
+
+		check(limiter.tryAcquire("mychannel", "mycc", "transfer"), "First transfer refused");
+		check(!limiter.tryAcquire("mychannel", "mycc", "transfer"), "Second transfer allowed");
+		// The tokens taken from the other limits before the refusal are given back
+		check(limiter.getBucket("mychannel", null, null).getAcquired() == 1,
+				"Channel tokens " + limiter.getBucket("mychannel", null, null).getAcquired());
+		check(limiter.getBucket(null, "mycc", null).getAcquired() == 1,
+				"Chaincode tokens " + limiter.getBucket(null, "mycc", null).getAcquired());
+
+		// Other functions only match the channel and chaincode limits
+		check(limiter.tryAcquire("mychannel", "mycc", "query"), "Query refused");
+		// The chaincode limit applies on every channel
+		check(limiter.tryAcquire("otherchannel", "mycc", "transfer"), "Other channel refused");
+		check(limiter.getBucket(null, "mycc", null).getAcquired() == 3,
+				"Chaincode tokens " + limiter.getBucket(null, "mycc", null).getAcquired());
+		check(limiter.getBucket("mychannel", null, null).getAcquired() == 2,
+				"Channel tokens " + limiter.getBucket("mychannel", null, null).getAcquired());
+
+		limiter.removeRate("mychannel", "mycc", "transfer");
+		check(limiter.tryAcquire("mychannel", "mycc", "transfer"), "Removed limit still applied");
+	}
+
+	private static void checkAsync() throws Exception {
+		RateLimiter limiter = new RateLimiter();
+		limiter.setRate("mychannel", null, null, 10, 1);
+		ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "check-executor"));
+		try {
+			CompletableFuture<String> first = limiter.acquireAsync("mychannel", "mycc", "transfer", executor)
+					.thenApply(v -> Thread.currentThread().getName());
+			check(first.isDone(), "Available token not granted right away");
+
+			long start = System.nanoTime();
+			CompletableFuture<String> second = limiter.acquireAsync("mychannel", "mycc", "transfer", executor)
+					.thenApply(v -> Thread.currentThread().getName());
+			check(!second.isDone(), "Throttled acquire granted right away");
+			String thread = second.get(1, TimeUnit.SECONDS);
+			long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			check("check-executor".equals(thread), "Throttled acquire completed on " + thread);
+			check(waited >= 80, "Throttled acquire waited " + waited + "ms");
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("Check failed: " + message);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package org.ecsoya.fabric.tests;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ecsoya.fabric.client.ledger.RawBlock;
+import org.ecsoya.fabric.client.ledger.RawTransaction;
+import org.hyperledger.fabric.protos.common.Common;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.BlockInfo.EnvelopeInfo;
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo;
+import org.hyperledger.fabric.sdk.BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+
+/**
+ * Checks that {@link RawBlock} reads the same transaction ids, validation
+ * codes, writes and chaincode events as the SDK's {@link BlockInfo}, and
+ * rejects malformed blocks. Throws on the first mismatch.
+ */
+public class RawBlockCheck {
+
+	private static final int TRANSACTIONS = BlockDecoderBenchmark.TRANSACTIONS;
+
+	public static void main(String[] args) throws Exception {
+		checkRawBlock();
+		System.out.println("Raw block checks passed");
+	}
+
+	private static void checkRawBlock() throws Exception {
+		Common.Block block = BlockDecoderBenchmark.createBlock(7, 0);
+		byte[] bytes = block.toByteArray();
+		BlockInfo expected = BlockDecoderBenchmark.newBlockInfo(block);
+		RawBlock raw = RawBlock.parse(bytes);
+		check(raw.getNumber() == 7, "Block number " + raw.getNumber());
+		check(raw.getTransactionCount() == expected.getEnvelopeCount(),
+				"Transaction count " + raw.getTransactionCount());
+		check(raw.getPreviousHash().remaining() == 32, "Previous hash length");
+
+		int index = 0;
+		for (EnvelopeInfo envelope : expected.getEnvelopeInfos()) {
+			RawTransaction transaction = raw.getTransaction(index);
+			check(envelope.getTransactionID().equals(transaction.getTransactionId()), "Transaction id " + index);
+			check(envelope.getValidationCode() == transaction.getValidationCode(), "Validation code " + index);
+			check(envelope.isValid() == transaction.isValid(), "Validity " + index);
+			check(envelope.getChannelId().equals(transaction.getChannelId()), "Channel id " + index);
+			check(envelope.getTimestamp().getTime() == transaction.getTimestampMillis(), "Timestamp " + index);
+
+			List<String> expectedWrites = new ArrayList<>();
+			List<String> expectedEvents = new ArrayList<>();
+			for (TransactionActionInfo action : ((TransactionEnvelopeInfo) envelope).getTransactionActionInfos()) {
+				TxReadWriteSetInfo rwset = action.getTxReadWriteSet();
+				for (TxReadWriteSetInfo.NsRwsetInfo namespace : rwset.getNsRwsetInfos()) {
+					for (KvRwset.KVWrite write : namespace.getRwset().getWritesList()) {
+						expectedWrites.add(namespace.getNamespace() + "/" + write.getKey() + "="
+								+ write.getValue().toStringUtf8());
+					}
+				}
+				expectedEvents.add(action.getEvent().getChaincodeId() + "/" + action.getEvent().getEventName() + "="
+						+ new String(action.getEvent().getPayload(), StandardCharsets.UTF_8));
+			}
+			List<String> writes = new ArrayList<>();
+			List<String> events = new ArrayList<>();
+			transaction.forEachWrite(
+					(namespace, key, delete, value) -> writes.add(namespace + "/" + key + "=" + string(value)));
+			transaction.forEachChaincodeEvent(
+					(chaincodeId, eventName, payload) -> events.add(chaincodeId + "/" + eventName + "=" + string(payload)));
+			check(expectedWrites.equals(writes), "Writes of transaction " + index + ": " + writes);
+			check(expectedEvents.equals(events), "Events of transaction " + index + ": " + events);
+			index++;
+		}
+
+		try {
+			RawBlock.parse(Arrays.copyOf(bytes, bytes.length / 2));
+			check(false, "Truncated block accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		// Block.data with a length of 0x7FFFFFFF, past the end of the bytes
+		checkMalformed(new byte[] { 0x12, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0 },
+				"Overlong field");
+		// Block.data with a length over 32 bits
+		checkMalformed(new byte[] { 0x12, (byte) 0x85, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10, 0 },
+				"Field length over 32 bits");
+		// Fixed width fields with fewer bytes than their width
+		checkMalformed(new byte[] { 0x29, 1, 2, 3 }, "Truncated fixed64");
+		checkMalformed(new byte[] { 0x2D, 1, 2 }, "Truncated fixed32");
+		try {
+			raw.getTransaction(TRANSACTIONS);
+			check(false, "Transaction out of range accepted");
+		} catch (IndexOutOfBoundsException e) {
+			// Expected
+		}
+	}
+
+	private static void checkMalformed(byte[] bytes, String message) {
+		try {
+			RawBlock.parse(bytes);
+			check(false, message + " accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	private static String string(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("Check failed: " + message);
+		}
+	}
+}
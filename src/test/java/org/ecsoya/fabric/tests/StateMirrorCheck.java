@@ -0,0 +1,116 @@
+package org.ecsoya.fabric.tests;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.ecsoya.fabric.client.ledger.StateMirror;
+
+/**
+ * Checks that the {@link StateMirror} applies the writes of valid
+ * transactions only, refuses blocks out of order and reads back the same
+ * state from its snapshot after a reopen, also when snapshots are taken
+ * concurrently with blocks being applied. Throws on the first mismatch.
+ */
+public class StateMirrorCheck {
+
+	private static final int TRANSACTIONS = BlockDecoderBenchmark.TRANSACTIONS;
+
+	public static void main(String[] args) throws Exception {
+		File directory = Files.createTempDirectory("state-mirror").toFile();
+		try {
+			checkStateMirror(new File(directory, "mirror"));
+			checkConcurrentSnapshots(new File(directory, "concurrent"));
+		} finally {
+			delete(directory);
+		}
+		System.out.println("State mirror checks passed");
+	}
+
+	private static void checkStateMirror(File directory) throws Exception {
+		StateMirror mirror = new StateMirror("assets", directory);
+		mirror.apply(BlockDecoderBenchmark.newBlockInfo(BlockDecoderBenchmark.createBlock(0, 0)));
+		try {
+			mirror.apply(BlockDecoderBenchmark.newBlockInfo(BlockDecoderBenchmark.createBlock(2, 0)));
+			check(false, "Block after a gap applied");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		int valid = TRANSACTIONS - TRANSACTIONS / 10;
+		check(mirror.getHeight() == 1, "Mirror height " + mirror.getHeight());
+		check(mirror.size() == valid * BlockDecoderBenchmark.WRITES, "Mirror size " + mirror.size());
+		check(mirror.get("asset0-0") == null, "Write of an invalid transaction applied");
+		mirror.close();
+
+		mirror = new StateMirror("assets", directory);
+		try {
+			check(mirror.getHeight() == 1, "Mirror height after reopen " + mirror.getHeight());
+			check(mirror.size() == valid * BlockDecoderBenchmark.WRITES, "Mirror size after reopen");
+			check("{\"owner\":\"org1\",\"value\":3}".equals(new String(mirror.get("asset3-1"), StandardCharsets.UTF_8)),
+					"Mirrored value");
+			check(mirror.getRange("asset3-", "asset3.").size() == BlockDecoderBenchmark.WRITES, "Mirrored range");
+		} finally {
+			mirror.close();
+		}
+	}
+
+	private static void checkConcurrentSnapshots(File directory) throws Exception {
+		int blocks = 10;
+		StateMirror mirror = new StateMirror("assets", directory);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		AtomicBoolean applying = new AtomicBoolean(true);
+		List<Thread> snapshotters = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			Thread thread = new Thread(() -> {
+				try {
+					while (applying.get()) {
+						mirror.snapshot();
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			});
+			thread.start();
+			snapshotters.add(thread);
+		}
+		for (int number = 0; number < blocks; number++) {
+			mirror.apply(BlockDecoderBenchmark
+					.newBlockInfo(BlockDecoderBenchmark.createBlock(number, number * TRANSACTIONS)));
+		}
+		applying.set(false);
+		for (Thread thread : snapshotters) {
+			thread.join();
+		}
+		check(failure.get() == null, "Snapshot failed: " + failure.get());
+		mirror.close();
+
+		int keys = blocks * (TRANSACTIONS - TRANSACTIONS / 10) * BlockDecoderBenchmark.WRITES;
+		StateMirror reopened = new StateMirror("assets", directory);
+		try {
+			check(reopened.getHeight() == blocks, "Height after concurrent snapshots " + reopened.getHeight());
+			check(reopened.size() == keys, "Size after concurrent snapshots " + reopened.size());
+		} finally {
+			reopened.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("Check failed: " + message);
+		}
+	}
+}
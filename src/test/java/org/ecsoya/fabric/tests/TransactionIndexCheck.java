@@ -0,0 +1,73 @@
+package org.ecsoya.fabric.tests;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.ecsoya.fabric.client.ledger.TransactionIndex;
+import org.ecsoya.fabric.client.ledger.TransactionStatus;
+
+/**
+ * Checks that the {@link TransactionIndex} finds every indexed transaction,
+ * grows past its initial capacity, waits for gaps to be filled before moving
+ * its height and reads back the same entries after a reopen. Throws on the
+ * first mismatch.
+ */
+public class TransactionIndexCheck {
+
+	private static final int TRANSACTIONS = BlockDecoderBenchmark.TRANSACTIONS;
+
+	public static void main(String[] args) throws Exception {
+		File directory = Files.createTempDirectory("transaction-index").toFile();
+		try {
+			checkTransactionIndex(new File(directory, "transactions.idx"));
+		} finally {
+			delete(directory);
+		}
+		System.out.println("Transaction index checks passed");
+	}
+
+	private static void checkTransactionIndex(File file) throws Exception {
+		// Enough transactions to grow the table past its initial capacity, block 2
+		// arrives before block 1
+		TransactionIndex index = new TransactionIndex(file);
+		index.index(BlockDecoderBenchmark.newBlockInfo(BlockDecoderBenchmark.createBlock(0, 0)));
+		index.index(BlockDecoderBenchmark.newBlockInfo(BlockDecoderBenchmark.createBlock(2, 2 * TRANSACTIONS)));
+		check(index.getHeight() == 1, "Height with a gap " + index.getHeight());
+		index.index(BlockDecoderBenchmark.newBlockInfo(BlockDecoderBenchmark.createBlock(1, TRANSACTIONS)));
+		check(index.getHeight() == 3, "Height after the gap is filled " + index.getHeight());
+		check(index.size() == 3 * TRANSACTIONS, "Size " + index.size());
+		index.close();
+
+		index = new TransactionIndex(file);
+		try {
+			check(index.getHeight() == 3, "Height after reopen " + index.getHeight());
+			check(index.size() == 3 * TRANSACTIONS, "Size after reopen " + index.size());
+			for (int t = 0; t < 3 * TRANSACTIONS; t++) {
+				TransactionStatus status = index.get(String.format("%064x", t));
+				check(status != null, "Transaction " + t + " missing");
+				check(status.getBlockNumber() == t / TRANSACTIONS, "Block of transaction " + t);
+				check(status.getTransactionIndex() == t % TRANSACTIONS, "Position of transaction " + t);
+				check(status.isValid() == (t % 10 != 0), "Validity of transaction " + t);
+			}
+			check(index.get(String.format("%064x", 3 * TRANSACTIONS)) == null, "Unknown transaction found");
+		} finally {
+			index.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("Check failed: " + message);
+		}
+	}
+}